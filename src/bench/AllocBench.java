@@ -0,0 +1,98 @@
+/* File AllocBench.java */
+
+package bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import global.*;
+import diskmgr.*;
+import bufmgr.*;
+
+/**
+ * Cost of page allocation by database size and fullness.  The database is
+ * filled from the front before measuring, so the first free page lies
+ * past a long stretch of used pages in the space map, as it does in a
+ * database that has grown.
+ * <br>
+ * allocateFree allocates and frees one page in the disk manager;
+ * allocateFreeRun does the same with runs of 16 pages, and
+ * allocateFreeLargeRun with runs of a thirty-second of the database,
+ * where the cost is in marking the space map; allocateFreeNear places a
+ * page as close as it can to one in the middle of the used pages;
+ * newFreePage goes through the buffer manager, pinning and unpinning the
+ * new page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AllocBench implements GlobalConst {
+
+  @Param({ "1000", "100000", "1000000" })
+  public int dbPages;
+
+  /** fraction of the pages allocated before measuring */
+  @Param({ "0.5", "0.95" })
+  public double fill;
+
+  private String dbpath;
+  private final PageId pid = new PageId();
+  private PageId near;
+  private final Page page = new Page();
+
+  @Setup
+  public void setup () throws Exception {
+    dbpath = Workload.dbpath("allocbench");
+    new SystemDefs(dbpath, dbPages, 1024, "Clock");
+    int used = (int) (fill * dbPages);
+    PageId first = new PageId();
+    SystemDefs.JavabaseDB.allocate_page(first, used);
+    near = new PageId(used / 2);
+  }
+
+  @TearDown
+  public void teardown () throws IOException {
+    SystemDefs.JavabaseBM.stopPageCleaner();
+    SystemDefs.JavabaseDB.closeDB();
+    new File(dbpath).delete();
+  }
+
+  @Benchmark
+  public int allocateFree () throws Exception {
+    SystemDefs.JavabaseDB.allocate_page(pid);
+    SystemDefs.JavabaseDB.deallocate_page(pid);
+    return pid.pid;
+  }
+
+  @Benchmark
+  public int allocateFreeRun () throws Exception {
+    SystemDefs.JavabaseDB.allocate_page(pid, 16);
+    SystemDefs.JavabaseDB.deallocate_page(pid, 16);
+    return pid.pid;
+  }
+
+  @Benchmark
+  public int allocateFreeLargeRun () throws Exception {
+    SystemDefs.JavabaseDB.allocate_page(pid, dbPages / 32);
+    SystemDefs.JavabaseDB.deallocate_page(pid, dbPages / 32);
+    return pid.pid;
+  }
+
+  @Benchmark
+  public int allocateFreeNear () throws Exception {
+    SystemDefs.JavabaseDB.allocate_page(pid, 1, near);
+    SystemDefs.JavabaseDB.deallocate_page(pid);
+    return pid.pid;
+  }
+
+  @Benchmark
+  public int newFreePage () throws Exception {
+    PageId p = SystemDefs.JavabaseBM.newPage(page, 1);
+    SystemDefs.JavabaseBM.unpinPage(p, false);
+    SystemDefs.JavabaseBM.freePage(p);
+    return p.pid;
+  }
+}
@@ -0,0 +1,101 @@
+/* File BufMgrBench.java */
+
+package bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import global.*;
+import diskmgr.*;
+import bufmgr.*;
+
+/**
+ * Throughput of the buffer manager's pin and unpin paths, by pool size,
+ * replacement policy and access distribution.
+ * <br>
+ * pinUnpinHit draws from half as many pages as there are frames, so once
+ * warmed up every pin is a hit and only the page table, the pin count and
+ * the replacer are measured.  pinUnpinMiss draws from four times as many
+ * pages as there are frames, so pins also evict, write back and read;
+ * every other unpin marks the page dirty.
+ * <br>
+ * Run with more threads (-t) to measure contention.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BufMgrBench implements GlobalConst {
+
+  @Param({ "64", "1024", "16384" })
+  public int poolSize;
+
+  @Param({ "Clock", "LRU", "LRU-2", "2Q" })
+  public String policy;
+
+  @Param({ "sequential", "uniform", "zipf" })
+  public String distribution;
+
+  private String dbpath;
+  int firstPid;
+
+  @Setup
+  public void setup () throws Exception {
+    int numPages = 4 * poolSize;
+    dbpath = Workload.dbpath("bufmgrbench");
+    new SystemDefs(dbpath, numPages + 2 * poolSize + 100, poolSize, policy);
+    PageId first = SystemDefs.JavabaseBM.newPage(new Page(), numPages);
+    SystemDefs.JavabaseBM.unpinPage(first, false);
+    firstPid = first.pid;
+  }
+
+  @TearDown
+  public void teardown () throws IOException {
+    SystemDefs.JavabaseBM.stopPageCleaner();
+    SystemDefs.JavabaseDB.closeDB();
+    new File(dbpath).delete();
+  }
+
+  /**
+   * Each thread walks its own reference strings.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    int [] hot;
+    int [] cold;
+    int next;
+    final Page page = new Page();
+    final PageId pid = new PageId();
+
+    @Setup
+    public void setup (BufMgrBench b) {
+      long seed = Thread.currentThread().getId();
+      hot = Workload.trace(b.distribution, Math.max(1, b.poolSize / 2), seed);
+      cold = Workload.trace(b.distribution, 4 * b.poolSize, seed);
+      for (int i = 0; i < hot.length; i++) {
+	hot[i] += b.firstPid;
+	cold[i] += b.firstPid;
+      }
+    }
+  }
+
+  @Benchmark
+  public Page pinUnpinHit (Cursor c) throws Exception {
+    c.pid.pid = c.hot[c.next++ & (Workload.LENGTH - 1)];
+    SystemDefs.JavabaseBM.pinPage(c.pid, c.page, false);
+    SystemDefs.JavabaseBM.unpinPage(c.pid, false);
+    return c.page;
+  }
+
+  @Benchmark
+  public Page pinUnpinMiss (Cursor c) throws Exception {
+    int i = c.next++;
+    c.pid.pid = c.cold[i & (Workload.LENGTH - 1)];
+    SystemDefs.JavabaseBM.pinPage(c.pid, c.page, false);
+    SystemDefs.JavabaseBM.unpinPage(c.pid, (i & 1) == 0);
+    return c.page;
+  }
+}
@@ -0,0 +1,175 @@
+/* File DiskBench.java */
+
+package bench;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import global.*;
+import diskmgr.*;
+
+/**
+ * Cost of single-page I/O in the disk manager, by access distribution, by
+ * kind of page (a heap array, or direct memory as used by an off-heap
+ * buffer pool) and by storage mode (channel I/O, a memory mapping,
+ * direct I/O past the operating system's cache, or compressed pages).
+ * The file is small enough to stay in the operating system's cache, so
+ * except for direct I/O this measures the I/O path rather than the
+ * device.  The pages hold text-like records that compress about twofold,
+ * so that the compressed mode pays a realistic codec cost.
+ * <br>
+ * With checksums=true every page read is checked against a CRC32C, and
+ * every page written stamped with one; compare the scores with
+ * checksums=false for the cost of checking.
+ * <br>
+ * With stripes=4 the pages are striped over four files in units of
+ * STRIPE_UNIT pages (compressed databases are not striped).  All four
+ * files are on one device here, so the scores show what routing pages
+ * to their stripes costs, not what parallel devices gain.
+ * <br>
+ * readPagesAsync keeps ASYNC_BATCH reads in flight at once through the
+ * asynchronous interface; its score is per page.
+ * <br>
+ * Run with more threads (-t) to see how concurrent readers scale.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskBench implements GlobalConst {
+
+  private static final int NUM_PAGES = 16384;
+  private static final int ASYNC_BATCH = 16;
+  private static final int STRIPE_UNIT = 64;
+  /** the vocabulary of the records on the pages */
+  private static final byte [][] WORDS = {
+    "minibase ".getBytes(), "buffer ".getBytes(), "page ".getBytes(),
+    "record ".getBytes(), "heap file ".getBytes(), "index ".getBytes(),
+  };
+
+  @Param({ "sequential", "uniform" })
+  public String distribution;
+
+  @Param({ "heap", "direct" })
+  public String pageKind;
+
+  @Param({ "channel", "mapped", "direct", "compressed" })
+  public String storage;
+
+  @Param({ "false", "true" })
+  public boolean checksums;
+
+  @Param({ "1", "4" })
+  public int stripes;
+
+  private String dbpath;
+  private String [] stripe_files;
+
+  @Setup
+  public void setup () throws Exception {
+    dbpath = Workload.dbpath("diskbench");
+    System.setProperty("minibase.db.mmap", "" + storage.equals("mapped"));
+    System.setProperty("minibase.db.direct", "" + storage.equals("direct"));
+    System.setProperty("minibase.db.checksums", "" + checksums);
+    System.setProperty("minibase.db.compress", "" + storage.equals("compressed"));
+    stripe_files = new String[stripes - 1];
+    for (int i = 0; i < stripe_files.length; i++)
+      stripe_files[i] = dbpath + ".stripe" + (i + 1);
+    System.setProperty("minibase.db.stripes",
+		       String.join(File.pathSeparator, stripe_files));
+    System.setProperty("minibase.db.stripeunit", "" + STRIPE_UNIT);
+    new SystemDefs(dbpath, NUM_PAGES, 64, "Clock");
+    // Write every page once, so the file has its full length.
+    Page page = new Page();
+    PageId pid = new PageId();
+    Random words = new Random(42);
+    for (pid.pid = 0; pid.pid < NUM_PAGES; pid.pid++) {
+      fill(page, words);
+      SystemDefs.JavabaseDB.write_page(pid, page);
+    }
+  }
+
+  /**
+   * Fill a page with records of words drawn from a small vocabulary and
+   * random numbers, as a page of a table might hold.
+   */
+  private static void fill (Page page, Random words) {
+    ByteBuffer buf = page.getBuffer();
+    buf.clear();
+    while (buf.remaining() >= 16) {
+      buf.putInt(words.nextInt(1000));
+      byte [] word = WORDS[words.nextInt(WORDS.length)];
+      buf.put(word, 0, Math.min(word.length, buf.remaining()));
+    }
+    while (buf.hasRemaining())
+      buf.put((byte)0);
+    buf.clear();
+  }
+
+  @TearDown
+  public void teardown () throws IOException {
+    SystemDefs.JavabaseBM.stopPageCleaner();
+    SystemDefs.JavabaseDB.closeDB();
+    new File(dbpath).delete();
+    for (String f : stripe_files)
+      new File(f).delete();
+  }
+
+  /**
+   * Each thread has its own page and reference string.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    int [] trace;
+    int next;
+    Page page;
+    Page [] batch = new Page[ASYNC_BATCH];
+    final PageId pid = new PageId();
+
+    @Setup
+    public void setup (DiskBench b) {
+      trace = Workload.trace(b.distribution, NUM_PAGES,
+			     Thread.currentThread().getId());
+      page = b.pageKind.equals("direct")
+	? new Page(ByteBuffer.allocateDirect(MINIBASE_PAGESIZE))
+	: new Page();
+      for (int i = 0; i < ASYNC_BATCH; i++)
+	batch[i] = b.pageKind.equals("direct")
+	  ? new Page(ByteBuffer.allocateDirect(MINIBASE_PAGESIZE))
+	  : new Page();
+    }
+  }
+
+  @Benchmark
+  public Page readPage (Cursor c) throws Exception {
+    c.pid.pid = c.trace[c.next++ & (Workload.LENGTH - 1)];
+    SystemDefs.JavabaseDB.read_page(c.pid, c.page);
+    return c.page;
+  }
+
+  @Benchmark
+  public Page writePage (Cursor c) throws Exception {
+    c.pid.pid = c.trace[c.next++ & (Workload.LENGTH - 1)];
+    SystemDefs.JavabaseDB.write_page(c.pid, c.page);
+    return c.page;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ASYNC_BATCH)
+  public void readPagesAsync (Cursor c, Blackhole bh) throws Exception {
+    CompletableFuture<?> [] reads = new CompletableFuture<?>[ASYNC_BATCH];
+    for (int i = 0; i < ASYNC_BATCH; i++) {
+      c.pid.pid = c.trace[c.next++ & (Workload.LENGTH - 1)];
+      reads[i] = SystemDefs.JavabaseDB.read_page_async(c.pid, c.batch[i]);
+    }
+    for (CompletableFuture<?> r : reads)
+      bh.consume(r.get());
+  }
+}
@@ -0,0 +1,68 @@
+/* File Workload.java */
+
+package bench;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Page reference strings for the benchmarks.  They are built before
+ * measurement starts, so drawing the next page costs an array read.
+ */
+class Workload {
+
+  /** references per string; a power of two, so a cursor can wrap cheaply */
+  static final int LENGTH = 1 << 20;
+
+  /**
+   * Build a reference string over pages 0 to n-1.
+   *   sequential - 0, 1, ..., n-1, 0, 1, ...
+   *   uniform    - uniformly random pages
+   *   zipf       - Zipf (s = 0.9), page 0 the most popular
+   *
+   * @param distribution one of the names above
+   * @param n number of distinct pages
+   * @param seed random seed, so each thread can walk its own string
+   */
+  static int [] trace (String distribution, int n, long seed) {
+
+    Random rand = new Random(seed);
+    int [] t = new int[LENGTH];
+
+    if (distribution.equals("sequential")) {
+      for (int i = 0; i < LENGTH; i++)
+	t[i] = i % n;
+    }
+    else if (distribution.equals("uniform")) {
+      for (int i = 0; i < LENGTH; i++)
+	t[i] = rand.nextInt(n);
+    }
+    else if (distribution.equals("zipf")) {
+      double [] cdf = new double[n];
+      double sum = 0;
+      for (int i = 0; i < n; i++) {
+	sum += 1.0 / Math.pow(i + 1, 0.9);
+	cdf[i] = sum;
+      }
+      for (int i = 0; i < n; i++)
+	cdf[i] /= sum;
+      for (int i = 0; i < LENGTH; i++) {
+	int j = Arrays.binarySearch(cdf, rand.nextDouble());
+	t[i] = Math.min(n - 1, (j >= 0) ? j : -j - 1);
+      }
+    }
+    else
+      throw new IllegalArgumentException("unknown distribution "
+					 + distribution);
+    return t;
+  }
+
+  /**
+   * @return a database file name that no other benchmark run uses.
+   */
+  static String dbpath (String name) throws IOException {
+    File f = File.createTempFile(name, ".minibase-db");
+    f.delete();
+    return f.getPath();
+  }
+}
@@ -7,103 +7,342 @@ import global.GlobalConst;
 import global.PageId;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import chainexception.ChainException;
+import diskmgr.DB;
 import diskmgr.DiskMgrException;
 import diskmgr.FileIOException;
 import diskmgr.InvalidPageNumberException;
 import diskmgr.InvalidRunSizeException;
 import diskmgr.OutOfSpaceException;
 import diskmgr.Page;
+import logmgr.LogMgr;
+
+/**
+ * The buffer manager. It is safe for concurrent use: pin counts are atomic
+ * per frame, the page table is striped, and no lock is held while a page is
+ * read or written. A frame being loaded, written back or evicted is marked
+ * BUSY; pinners of its page wait on the frame until it settles.
+ * <p>
+ * Each thread's pins are watched for sequential runs. Once a thread has
+ * pinned two consecutive pages, the pages ahead of it are read into unpinned
+ * frames, a window at a time, with one multi-page read per window. The
+ * pinning thread only claims clean frames for the window, so read-ahead
+ * writes nothing back; the reads are left to prefetch threads, and a pin
+ * of a page still being read waits for it. The pages enter the replacer as
+ * cold candidates, so a scan that stops early costs other pages little.
+ * <p>
+ * Gauges, counters and latency histograms can be published through JMX,
+ * by registerMBean(); see BufMgrMXBean.
+ * <p>
+ * Given a write-ahead log (setLogMgr()), the buffer manager follows the WAL
+ * rule: changes logged through logUpdate() raise their frame's LSN, and no
+ * frame is written to disk before the log is flushed up to that LSN.
+ */
+public class BufMgr implements GlobalConst, BufMgrMXBean {
+
+	private static final String MBEAN_NAME = "minibase:type=BufMgr";
+
+	/** Pin count of a frame that is being loaded, written back or evicted. */
+	private static final int BUSY = -1;
+
+	/** most frames held at once by a batched write */
+	private static final int WRITE_BATCH = 64;
+
+	/** threads reading ahead, for all buffer managers */
+	private static final int PREFETCH_THREADS = 4;
+
+	/** most read-ahead reads waiting for a prefetch thread */
+	private static final int PREFETCH_QUEUE = 64;
 
-public class BufMgr implements GlobalConst {
+	/** map() result: the victim was dirty, and the caller wanted a clean one */
+	private static final int DIRTY_VICTIM = -2;
+
+	/**
+	 * Reads ahead for every buffer manager. The threads exit when idle. A
+	 * read that finds the queue full is done by the pinning thread, as its
+	 * frames are already claimed.
+	 */
+	private static final ThreadPoolExecutor PREFETCHER = new ThreadPoolExecutor(
+			PREFETCH_THREADS, PREFETCH_THREADS, 1, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE),
+			new ThreadFactory() {
+				private int n;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "BufMgr-prefetch-" + n++);
+					t.setDaemon(true);
+					return t;
+				}
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+
+	static {
+		PREFETCHER.allowCoreThreadTimeOut(true);
+	}
 
-	private class FrameDescriptor {
+	private static class FrameDescriptor {
 
-		public PageId page_number = null;
-		public int pin_count = 0;
-		public boolean dirtybit = false;
+		/** page in the frame, or INVALID_PAGE; changes only while BUSY */
+		public volatile int page_number = INVALID_PAGE;
+		/** number of pins, or BUSY */
+		public final AtomicInteger pin_count = new AtomicInteger();
+		public volatile boolean dirtybit = false;
+		/** read ahead and not pinned since */
+		public volatile boolean prefetched = false;
+		/** LSN of the last logged change to the page; 0 if none */
+		public final AtomicLong lsn = new AtomicLong();
+		/**
+		 * a record boundary at or before the first logged change not on
+		 * disk, or at the last write; 0 if nothing was logged
+		 */
+		public final AtomicLong recLsn = new AtomicLong();
+		/**
+		 * the bytes of an off-heap frame once moved to the heap for
+		 * Page.getpage(), or null; cleared when the frame takes another page
+		 */
+		public volatile ByteBuffer heap;
 
 	}
 
-	public static class NoAvailableFramesException extends ChainException {
+	/**
+	 * The bytes of an off-heap frame, as handed to the pages pinned in it.
+	 * They stay in the arena until someone asks for an array; then they are
+	 * copied to the heap, where they live until the frame holds another
+	 * page, so that clients written against Page.getpage() keep working.
+	 * Buffers taken from the frame before the copy still show the arena,
+	 * which is no longer the page: changes made through them are lost, and
+	 * they do not see changes made since. Each copy is counted in
+	 * getHeapCopies().
+	 */
+	private class FrameStorage implements Page.Storage {
+
+		private final int fdid;
+
+		FrameStorage(int fdid) {
+			this.fdid = fdid;
+		}
+
+		public ByteBuffer buffer() {
+			ByteBuffer heap = bufDescr[fdid].heap;
+			return (heap != null) ? heap : arena.frame(fdid);
+		}
+
+		public byte[] array() {
+			FrameDescriptor fd = bufDescr[fdid];
+			synchronized (fd) {
+				if (fd.heap == null) {
+					byte[] bytes = new byte[MINIBASE_PAGESIZE];
+					arena.frame(fdid).get(bytes);
+					fd.heap = ByteBuffer.wrap(bytes);
+					heapCopies.increment();
+				}
+				return fd.heap.array();
+			}
+		}
 
 	}
 
-	private ArrayList<Integer>[] tab;
+	/** A thread's position in a sequential scan. */
+	private static class ScanState {
+
+		/** the page a sequential scan would pin next */
+		int next = INVALID_PAGE;
+		/** length of the current run of consecutive pins */
+		int run;
+		/** end (exclusive) of the pages read ahead of the run */
+		int ahead;
+
+	}
+
+	private ConcurrentPageTable tab;
 	private final int NBUF;
-	private final int HTSIZE = 23;
-	private final int SALT = 3;
-	private final int PEPPER = 5;
 
 	private String replacementPolicy;
 
+	/** the frames, on the heap; null if they are in the arena */
 	private byte[][] bufpool;
+	/** the frames, off the heap; null if they are in bufpool */
+	private FrameArena arena;
+	/** the storage of each off-heap frame; null with bufpool */
+	private FrameStorage[] storage;
 	private FrameDescriptor bufDescr[];
 
-	private LinkedList<Integer> lruQueue;
+	/** the replacement policy; guarded by its own monitor */
+	private Replacer replacer;
 
-	private int hash(int value) {
-		return (SALT * value + PEPPER) % HTSIZE;
-	}
+	private PageCleaner cleaner;
+
+	private Checkpointer checkpointer;
+
+	/** the name this buffer manager is registered under in JMX, or null */
+	private ObjectName registered;
+
+	/** the write-ahead log, or null */
+	private volatile LogMgr log;
+
+	/** pages read ahead of a sequential scan; 0 turns read-ahead off */
+	private volatile int readAhead;
+
+	private final ThreadLocal<ScanState> scans = new ThreadLocal<ScanState>() {
+		protected ScanState initialValue() {
+			return new ScanState();
+		}
+	};
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder writebacks = new LongAdder();
+	private final LongAdder failedPins = new LongAdder();
+	private final LongAdder prefetchReads = new LongAdder();
+	private final LongAdder prefetchedPages = new LongAdder();
+	private final LongAdder prefetchHits = new LongAdder();
+	private final LongAdder prefetchWasted = new LongAdder();
+	private final LongAdder prefetchFailures = new LongAdder();
+
+	/** frames BUSY being read ahead; guarded by prefetchLock */
+	private int prefetching;
+	private final Object prefetchLock = new Object();
+	private final LongAdder cleanerWrites = new LongAdder();
+	private final LongAdder heapCopies = new LongAdder();
+	private final LongAdder backgroundFailures = new LongAdder();
+	private volatile String lastBackgroundFailure;
+
+	private final LatencyHistogram pinLatency = new LatencyHistogram();
+	private final LatencyHistogram readLatency = new LatencyHistogram();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
 
 	public void set(PageId pageNum, int fd) {
-		int index = hash(pageNum.pid);
-		tab[index].add(fd);
+		tab.put(pageNum.pid, fd);
 	}
 
 	public void remove(PageId pageNum) {
-		int index = hash(pageNum.pid);
-		ArrayList<Integer> bucket = tab[index];
-		for (int i = 0; i < bucket.size(); i++) {
-			FrameDescriptor fd = bufDescr[bucket.get(i)];
-			if (fd.page_number.pid == pageNum.pid) {
-				bucket.remove(i);
-				return;
-			}
-		}
+		tab.remove(pageNum.pid);
 	}
 
 	public int get(PageId pageNum) {
-		int index = hash(pageNum.pid);
-		ArrayList<Integer> bucket = tab[index];
-		for (int i = 0; i < bucket.size(); i++) {
-			int fdid = bucket.get(i);
-			FrameDescriptor fd = bufDescr[fdid];
-			if (fd.page_number.pid == pageNum.pid)
-				return fdid;
-		}
-		return -1;
+		return tab.get(pageNum.pid);
 	}
 
 	/**
 	 * Create the BufMgr object. Allocate pages (frames) for the buffer pool in
 	 * main memory and make the buffer manage aware that the replacement policy
-	 * is specified by replacerArg (i.e. HL, Clock, LRU, MRU etc.).
+	 * is specified by replacerArg (i.e. Clock, LRU, MRU, LRU-K, 2Q).
+	 * <p>
+	 * If the system property minibase.bufmgr.offheap is true, the frames are
+	 * kept off the Java heap. If minibase.bufmgr.cleaner is set, a
+	 * page cleaner writing that many pages per second is started. The
+	 * read-ahead window is taken from minibase.bufmgr.readahead (8 pages by
+	 * default).
 	 *
 	 * @param numbufs
 	 *            number of buffers in the buffer pool.
 	 * @param replacerArg
 	 *            name of the buffer replacement policy.
+	 * @throws IllegalArgumentException
+	 *             if replacerArg names no policy.
 	 */
 	public BufMgr(int numbufs, String replacerArg) {
+		this(numbufs, replacerArg, Boolean
+				.getBoolean("minibase.bufmgr.offheap"));
+	}
+
+	/**
+	 * Create the BufMgr object, with the frames either on the Java heap or in
+	 * one off-heap arena. Off-heap frames cost the garbage collector nothing
+	 * as long as their pages are reached through Page.getBuffer(). A frame
+	 * whose page is asked for its array, by Page.getpage(), is copied to the
+	 * heap and stays there until it holds another page, so clients that use
+	 * getpage() give up the arena's benefit; getHeapCopies() counts how
+	 * often. A buffer obtained before the copy is left stale: it neither
+	 * sees nor makes changes to the page. Clients sharing a page should all
+	 * use one or the other.
+	 *
+	 * @param numbufs
+	 *            number of buffers in the buffer pool.
+	 * @param replacerArg
+	 *            name of the buffer replacement policy.
+	 * @param offHeap
+	 *            true to keep the frames outside the Java heap.
+	 * @throws IllegalArgumentException
+	 *             if replacerArg names no policy.
+	 */
+	public BufMgr(int numbufs, String replacerArg, boolean offHeap) {
 		this.NBUF = numbufs;
-		bufpool = new byte[numbufs][];
+		if (offHeap) {
+			arena = new FrameArena(numbufs);
+			storage = new FrameStorage[numbufs];
+			for (int i = 0; i < numbufs; i++)
+				storage[i] = new FrameStorage(i);
+		} else {
+			bufpool = new byte[numbufs][];
+			for (int i = 0; i < numbufs; i++)
+				bufpool[i] = new byte[MINIBASE_PAGESIZE];
+		}
 		bufDescr = new FrameDescriptor[numbufs];
-		lruQueue = new LinkedList<Integer>();
-		for (int i = 0; i < numbufs; i++) {
-			bufpool[i] = new byte[MINIBASE_PAGESIZE];
+		for (int i = 0; i < numbufs; i++)
 			bufDescr[i] = new FrameDescriptor();
-			lruQueue.push(i);
-		}
 		replacementPolicy = replacerArg;
-		tab = new ArrayList[HTSIZE];
-		for (int i = 0; i < HTSIZE; i++) {
-			tab[i] = new ArrayList<Integer>();
-		}
+		replacer = Replacer.newReplacer(replacerArg, numbufs);
+		replacer.setClaim(new Replacer.Claim() {
+			public boolean claim(int frame) {
+				return bufDescr[frame].pin_count.compareAndSet(0, BUSY);
+			}
+		});
+		tab = new ConcurrentPageTable(numbufs);
+		setReadAhead(Integer.getInteger("minibase.bufmgr.readahead", 8));
+
+		Integer rate = Integer.getInteger("minibase.bufmgr.cleaner");
+		if (rate != null && rate > 0)
+			startPageCleaner(rate);
+	}
 
+	/**
+	 * Publish this buffer manager through JMX, as
+	 * <code>minibase:type=BufMgr</code>, so that jconsole or any JMX client
+	 * can watch it. One buffer manager can be registered at a time; another
+	 * must be unregistered first.
+	 *
+	 * @throws InstanceAlreadyExistsException
+	 *             if a buffer manager is registered already.
+	 * @throws JMException
+	 *             if the MBean server refuses this one.
+	 */
+	public synchronized void registerMBean() throws JMException {
+		ObjectName name = new ObjectName(MBEAN_NAME);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		registered = name;
+	}
+
+	/**
+	 * Withdraw this buffer manager from JMX. Does nothing if it is not the
+	 * one registered.
+	 *
+	 * @throws JMException
+	 *             if the MBean server refuses.
+	 */
+	public synchronized void unregisterMBean() throws JMException {
+		if (registered == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(registered))
+			server.unregisterMBean(registered);
+		registered = null;
 	}
 
 	/**
@@ -114,8 +353,17 @@ public class BufMgr implements GlobalConst {
 	 * frame (from the set of replacement candidates) to hold this page, read
 	 * the page (using the appropriate method from {\em diskmgr} package) and
 	 * pin it. Also, must write out the old page in chosen frame if it is dirty
-	 * before reading new page. (You can assume that emptyPage==false for this
-	 * assignment.)
+	 * before reading new page. If emptyPage is true and the page is not in
+	 * the pool, it is not read at all: the frame is zero-filled instead.
+	 * <p>
+	 * The page is never copied: on return <code>page</code> is set to the
+	 * frame itself, so every pinner of a page sees the same bytes, and the
+	 * disk read of a missing page goes straight into its frame. When several
+	 * threads pin a missing page at once, one of them reads it and the others
+	 * wait for that read.
+	 * <p>
+	 * A pin that continues a sequential run may read the following pages
+	 * ahead before returning; see setReadAhead().
 	 *
 	 * @param Page_Id_in_a_DB
 	 *            page number in the minibase.
@@ -126,47 +374,417 @@ public class BufMgr implements GlobalConst {
 	 * @throws IOException
 	 * @throws FileIOException
 	 * @throws InvalidPageNumberException
-	 * @throws NoAvailableFramesException
+	 * @throws BufferPoolExceededException
 	 */
 	public void pinPage(PageId pin_pgid, Page page, boolean emptyPage)
 			throws InvalidPageNumberException, FileIOException, IOException,
-			NoAvailableFramesException {
-		int fdid = get(pin_pgid);
-		FrameDescriptor fd;
-		if (fdid != -1) {
-			fd = bufDescr[fdid];
-			fd.pin_count++;
+			BufferPoolExceededException {
+		long start = System.nanoTime();
+		try {
+			pin(pin_pgid.pid, page, emptyPage);
+		} catch (BufferPoolExceededException e) {
+			failedPins.increment();
+			throw e;
+		} finally {
+			pinLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	private void pin(int pid, Page page, boolean emptyPage)
+			throws InvalidPageNumberException, FileIOException, IOException,
+			BufferPoolExceededException {
+		int fdid;
+		for (;;) {
+			fdid = tab.get(pid);
+			if (fdid != -1) {
+				int before = addPin(fdid, pid);
+				if (before == -1)
+					continue; // the frame moved on to another page
+				if (before == 0) {
+					// Only the first pin of a read-ahead page gets here.
+					FrameDescriptor fd = bufDescr[fdid];
+					if (fd.prefetched) {
+						fd.prefetched = false;
+						prefetchHits.increment();
+					}
+					synchronized (replacer) {
+						replacer.pinned(fdid);
+					}
+				}
+				hits.increment();
+				break;
+			}
+			fdid = load(pid, emptyPage);
+			if (fdid != -1) {
+				misses.increment();
+				break;
+			}
+		}
+		if (!emptyPage && readAhead > 0)
+			readAhead(pid);
+		if (bufpool != null)
+			page.setpage(bufpool[fdid]);
+		else
+			page.setpage(storage[fdid]);
+	}
+
+	/**
+	 * @return a Page over the bytes of a frame.
+	 */
+	private Page frame(int fdid) {
+		return (bufpool != null) ? new Page(bufpool[fdid]) : new Page(
+				storage[fdid]);
+	}
+
+	/**
+	 * Bring a page that was not in the page table into a frame, pinned once.
+	 * An empty page is zero-filled rather than read.
+	 *
+	 * @return the frame, or -1 if another thread mapped the page first.
+	 */
+	private int load(int pid, boolean empty)
+			throws InvalidPageNumberException, FileIOException, IOException,
+			BufferPoolExceededException {
+		int fdid = map(pid, false);
+		if (fdid == -1)
+			return -1;
+		FrameDescriptor fd = bufDescr[fdid];
+		if (empty) {
+			if (bufpool != null)
+				Arrays.fill(bufpool[fdid], (byte) 0);
+			else
+				arena.clear(fdid);
+			synchronized (replacer) {
+				replacer.loaded(fdid, pid);
+			}
+			release(fd, 1);
+			return fdid;
+		}
+		boolean read = false;
+		long start = System.nanoTime();
+		try {
+			JavabaseDB.read_page(new PageId(pid), frame(fdid));
+			read = true;
+		} finally {
+			readLatency.record(System.nanoTime() - start);
+			if (!read) {
+				tab.remove(pid, fdid);
+				discard(fdid);
+			}
+		}
+		synchronized (replacer) {
+			replacer.loaded(fdid, pid);
+		}
+		release(fd, 1);
+		return fdid;
+	}
+
+	/**
+	 * Pick a frame for a page that was not in the page table, write back the
+	 * page it held, and map the new page to it. The frame is returned BUSY,
+	 * for the caller to read the page into. While frames are BUSY being read
+	 * ahead, a caller that finds no other frame waits for them.
+	 *
+	 * @param cleanOnly
+	 *            true to take no victim that would have to be written back.
+	 * @return the frame, -1 if another thread mapped the page first, or
+	 *         DIRTY_VICTIM if cleanOnly is set and the victim is dirty.
+	 */
+	private int map(int pid, boolean cleanOnly)
+			throws InvalidPageNumberException, FileIOException, IOException, BufferPoolExceededException {
+		int fdid;
+		do {
+			synchronized (replacer) {
+				fdid = replacer.pick();
+			}
+		} while (fdid == -1 && awaitPrefetch());
+		if (fdid == -1)
+			throw new BufferPoolExceededException(null,
+					"BUFMGR: every frame is pinned");
+
+		// The frame is BUSY now: nobody else can pin, load or evict it.
+		FrameDescriptor fd = bufDescr[fdid];
+		int old = fd.page_number;
+		if (old != INVALID_PAGE && cleanOnly && fd.dirtybit) {
+			release(fd, 0);
+			synchronized (replacer) {
+				replacer.unpinned(fdid);
+			}
+			return DIRTY_VICTIM;
+		}
+		if (old != INVALID_PAGE) {
+			if (fd.dirtybit) {
+				boolean written = false;
+				try {
+					writeFrame(fdid, old);
+					written = true;
+				} finally {
+					// On failure the old page stays and the frame is a
+					// replacement candidate again.
+					if (!written) {
+						release(fd, 0);
+						synchronized (replacer) {
+							replacer.unpinned(fdid);
+						}
+					}
+				}
+			}
+			tab.remove(old, fdid);
+			evictions.increment();
+			if (fd.prefetched) {
+				fd.prefetched = false;
+				prefetchWasted.increment();
+			}
+		}
+
+		fd.heap = null;
+		if (tab.putIfAbsent(pid, fdid) != -1) {
+			// Another thread is loading the same page; wait on its frame.
+			discard(fdid);
+			return -1;
+		}
+		fd.page_number = pid;
+		fd.lsn.set(0);
+		fd.recLsn.set(0);
+		return fdid;
+	}
+
+	/**
+	 * Note a pin by the current thread, and read ahead if it continues a
+	 * sequential run that is within half a window of the pages already read
+	 * ahead.
+	 */
+	private void readAhead(int pid) {
+		ScanState scan = scans.get();
+		if (pid == scan.next) {
+			scan.run++;
 		} else {
-			fdid = getReplacement();
-			if (fdid == -1)
-				throw new NoAvailableFramesException();
-			fd = bufDescr[fdid];
-			if (fd.page_number != null) {
-				if (fd.dirtybit) {
-					Page p = (new Page());
-					p.setpage(bufpool[fdid]);
-					JavabaseDB.write_page(fd.page_number, p);
+			scan.run = 1;
+			scan.ahead = pid + 1;
+		}
+		scan.next = pid + 1;
+		int window = readAhead;
+		if (scan.run < 2 || scan.ahead - pid > window / 2)
+			return;
+		int from = Math.max(scan.ahead, pid + 1);
+		int to = Math.min(pid + 1 + window, JavabaseDB.db_num_pages());
+		scan.ahead = to;
+		if (from < to)
+			prefetch(from, to);
+	}
+
+	/**
+	 * Claim unpinned frames for the pages in [from, to) that are not in the
+	 * pool, and have the prefetch threads read them in, a consecutive run at
+	 * a time. Read-ahead is only a hint: it stops at the first victim that is
+	 * pinned or dirty.
+	 */
+	private void prefetch(int from, int to) {
+		DB db = JavabaseDB;
+		int[] frames = new int[to - from];
+		int n = 0;
+		int first = from;
+		try {
+			for (int pid = from; pid < to; pid++) {
+				int fdid = (tab.get(pid) == -1) ? map(pid, true) : -1;
+				if (fdid == DIRTY_VICTIM)
+					break;
+				if (fdid == -1) {
+					// Already in the pool: read the run so far around it.
+					readRunAsync(db, first, frames, n);
+					frames = new int[to - pid - 1];
+					n = 0;
+					first = pid + 1;
+				} else {
+					frames[n++] = fdid;
 				}
-				remove(fd.page_number);
 			}
-			fd.page_number = pin_pgid;
-			fd.dirtybit = false;
-			fd.pin_count = 1;
-			JavabaseDB.read_page(pin_pgid, page);
-			for (int i = 0; i < page.getpage().length; i++) {
-				bufpool[fdid][i] = page.getpage()[i];
+		} catch (BufferPoolExceededException e) {
+			// Every frame is pinned; the scan reads the rest itself.
+		} catch (ChainException e) {
+			// map() writes nothing back for read-ahead, so this is not
+			// expected; count it, and read what was claimed.
+			prefetchFailures.increment();
+		} catch (IOException e) {
+			// As above.
+			prefetchFailures.increment();
+		} finally {
+			readRunAsync(db, first, frames, n);
+		}
+	}
+
+	/**
+	 * Hand readRun() to a prefetch thread.
+	 */
+	private void readRunAsync(final DB db, final int first,
+			final int[] frames, final int n) {
+		if (n == 0)
+			return;
+		synchronized (prefetchLock) {
+			prefetching += n;
+		}
+		PREFETCHER.execute(new Runnable() {
+			public void run() {
+				try {
+					readRun(db, first, frames, n);
+				} finally {
+					prefetchSettled(n);
+				}
 			}
+		});
+	}
+
+	/**
+	 * Read a run of mapped, BUSY frames holding consecutive pages, and hand
+	 * them to the replacer unpinned. On failure they are discarded.
+	 */
+	private void readRun(DB db, int first, int[] frames, int n) {
+		Page[] pages = new Page[n];
+		for (int i = 0; i < n; i++)
+			pages[i] = frame(frames[i]);
+		boolean read = false;
+		long start = System.nanoTime();
+		try {
+			db.read_pages(new PageId(first), pages);
+			read = true;
+		} catch (ChainException e) {
+			// The frames are discarded below, and the pages read again,
+			// with the error reported, when they are pinned.
+			prefetchFailures.increment();
+		} catch (IOException e) {
+			// As above.
+			prefetchFailures.increment();
+		} finally {
+			readLatency.record(System.nanoTime() - start);
+			if (!read) {
+				for (int i = 0; i < n; i++) {
+					tab.remove(first + i, frames[i]);
+					discard(frames[i]);
+				}
+			}
+		}
+		if (!read)
+			return;
+		prefetchReads.increment();
+		prefetchedPages.add(n);
+		for (int i = 0; i < n; i++) {
+			FrameDescriptor fd = bufDescr[frames[i]];
+			fd.prefetched = true;
+			synchronized (replacer) {
+				replacer.prefetched(frames[i], first + i);
+			}
+			release(fd, 0);
 		}
 	}
 
-	private int getReplacement() {
-		while (!lruQueue.isEmpty()) {
-			int fdid = lruQueue.pop();
-			FrameDescriptor fd = bufDescr[fdid];
-			if (fd.pin_count == 0)
-				return fdid;
+	/**
+	 * Note that the frames of a run read ahead are no longer BUSY, and wake
+	 * the threads waiting for a victim.
+	 */
+	private void prefetchSettled(int n) {
+		synchronized (prefetchLock) {
+			prefetching -= n;
+			prefetchLock.notifyAll();
 		}
-		return -1;
+	}
+
+	/**
+	 * Wait for a read-ahead to settle, when no frame can be claimed but some
+	 * are only BUSY being read ahead.
+	 *
+	 * @return false if no read-ahead was in flight.
+	 */
+	private boolean awaitPrefetch() {
+		synchronized (prefetchLock) {
+			if (prefetching == 0)
+				return false;
+			try {
+				prefetchLock.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Empty a BUSY frame and return it to the free list.
+	 */
+	private void discard(int fdid) {
+		FrameDescriptor fd = bufDescr[fdid];
+		fd.page_number = INVALID_PAGE;
+		fd.dirtybit = false;
+		fd.prefetched = false;
+		release(fd, 0);
+		synchronized (replacer) {
+			replacer.freed(fdid);
+		}
+	}
+
+	/**
+	 * End the BUSY state of a frame, and wake the threads waiting on it.
+	 */
+	private void release(FrameDescriptor fd, int pins) {
+		synchronized (fd) {
+			fd.pin_count.set(pins);
+			fd.notifyAll();
+		}
+	}
+
+	/**
+	 * Add a pin to a frame, provided it still holds the given page. Waits
+	 * while the frame is BUSY. The replacer is not told.
+	 *
+	 * @return the pin count before the call, or -1 if the frame holds some
+	 *         other page.
+	 */
+	private int addPin(int fdid, int pid) {
+		FrameDescriptor fd = bufDescr[fdid];
+		int count;
+		for (;;) {
+			count = fd.pin_count.get();
+			if (count == BUSY)
+				awaitSettled(fd);
+			else if (fd.pin_count.compareAndSet(count, count + 1))
+				break;
+		}
+		if (fd.page_number != pid) {
+			dropPin(fdid);
+			return -1;
+		}
+		return count;
+	}
+
+	/**
+	 * Remove a pin added by addPin().
+	 */
+	private void dropPin(int fdid) {
+		FrameDescriptor fd = bufDescr[fdid];
+		if (fd.pin_count.decrementAndGet() == 0
+				&& fd.page_number != INVALID_PAGE) {
+			synchronized (replacer) {
+				replacer.unpinned(fdid);
+			}
+		}
+	}
+
+	/**
+	 * Wait until a frame is no longer BUSY.
+	 */
+	private void awaitSettled(FrameDescriptor fd) {
+		boolean interrupted = false;
+		synchronized (fd) {
+			while (fd.pin_count.get() == BUSY) {
+				try {
+					fd.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
 	}
 
 	/**
@@ -184,14 +802,28 @@ public class BufMgr implements GlobalConst {
 	 * @throws ChainException
 	 */
 	public void unpinPage(PageId pageNum, boolean dirty) throws ChainException {
-		int fdid = get(pageNum);
+		int fdid = tab.get(pageNum.pid);
+		if (fdid == -1)
+			throw new HashEntryNotFoundException(null,
+					"BUFMGR: page not in the buffer pool");
 		FrameDescriptor fd = bufDescr[fdid];
-		if (fd.pin_count == 0)
-			throw new ChainException();
-		fd.pin_count--;
-		fd.dirtybit = dirty || fd.dirtybit;
-		if (fd.pin_count == 0) {
-			lruQueue.push(fdid);
+		for (;;) {
+			int count = fd.pin_count.get();
+			if (count <= 0 || fd.page_number != pageNum.pid)
+				throw new PageUnpinnedException(null,
+						"BUFMGR: page is not pinned");
+			// Mark the frame dirty while the pin still keeps it from being
+			// written back and evicted.
+			if (dirty)
+				fd.dirtybit = true;
+			if (fd.pin_count.compareAndSet(count, count - 1)) {
+				if (count == 1) {
+					synchronized (replacer) {
+						replacer.unpinned(fdid);
+					}
+				}
+				return;
+			}
 		}
 	}
 
@@ -200,7 +832,9 @@ public class BufMgr implements GlobalConst {
 	 * find a frame in the buffer pool for the first page and pin it. (This call
 	 * allows a client of the Buffer Manager to allocate pages on disk.) If
 	 * buffer is full, i.e., you can't find a frame for the first page, ask DB
-	 * to deallocate all these pages, and return null.
+	 * to deallocate all these pages, and return null. If the page cannot be
+	 * pinned for another reason, the pages are deallocated too, and the
+	 * exception is rethrown.
 	 *
 	 * @param firstpage
 	 *            the address of the first page.
@@ -220,22 +854,96 @@ public class BufMgr implements GlobalConst {
 			InvalidPageNumberException, FileIOException, DiskMgrException,
 			IOException {
 		PageId pageId = new PageId();
-		System.out.println("Page id in newPage() " + pageId.pid);
 
 		JavabaseDB.allocate_page(pageId, howmany);
 		try {
 			pinPage(pageId, firstpage, true);
-		} catch (NoAvailableFramesException e) {
+		} catch (BufferPoolExceededException e) {
 			// No available frames, so deallocate those pages from just now
 			JavabaseDB.deallocate_page(pageId, howmany);
 			return null;
+		} catch (Exception e) {
+			undoNewPages(e, pageId, 0, howmany);
+			throw e;
 		}
 		return pageId;
 	};
 
+	/**
+	 * Allocate a run of new pages and pin every one of them, one page object
+	 * per page. No page is read from disk: each frame is zero-filled. If the
+	 * pool cannot hold the whole run, nothing stays pinned, the pages are
+	 * deallocated, and null is returned. If a page cannot be pinned for
+	 * another reason, such as a failed write of a dirty victim, the same is
+	 * undone and the exception is rethrown.
+	 *
+	 * @param pages
+	 *            the page objects, one per page of the run; pages[i] is set
+	 *            to the frame of the i-th page.
+	 *
+	 * @return the first page id of the new pages. null, if error.
+	 * @throws IOException
+	 * @throws DiskMgrException
+	 * @throws FileIOException
+	 * @throws InvalidPageNumberException
+	 * @throws InvalidRunSizeException
+	 * @throws OutOfSpaceException
+	 */
+	public PageId newPage(Page[] pages) throws OutOfSpaceException,
+			InvalidRunSizeException, InvalidPageNumberException,
+			FileIOException, DiskMgrException, IOException {
+		PageId pageId = new PageId();
+		JavabaseDB.allocate_page(pageId, pages.length);
+		int pinned = 0;
+		try {
+			for (; pinned < pages.length; pinned++)
+				pinPage(new PageId(pageId.pid + pinned), pages[pinned], true);
+		} catch (BufferPoolExceededException e) {
+			unpinNewPages(pageId, pinned);
+			JavabaseDB.deallocate_page(pageId, pages.length);
+			return null;
+		} catch (Exception e) {
+			undoNewPages(e, pageId, pinned, pages.length);
+			throw e;
+		}
+		return pageId;
+	}
+
+	/**
+	 * Unpin the first pages of a run newPage() pinned.
+	 */
+	private void unpinNewPages(PageId first, int pinned) {
+		for (int i = 0; i < pinned; i++) {
+			try {
+				unpinPage(new PageId(first.pid + i), false);
+			} catch (ChainException e) {
+				// cannot happen: the page was pinned by newPage()
+			}
+		}
+	}
+
+	/**
+	 * Undo a newPage() that failed: unpin the pages it pinned and deallocate
+	 * the run. A failure to deallocate is added to the original failure as
+	 * suppressed, so that the original is what the caller sees.
+	 */
+	private void undoNewPages(Exception failure, PageId first, int pinned,
+			int howmany) {
+		unpinNewPages(first, pinned);
+		try {
+			JavabaseDB.deallocate_page(first, howmany);
+		} catch (Exception e) {
+			failure.addSuppressed(e);
+		}
+	}
+
 	/**
 	 * This method should be called to delete a page that is on disk. This
 	 * routine must call the method in diskmgr package to deallocate the page.
+	 * <p>
+	 * If the page is in the pool, it leaves it: the frame is emptied, and any
+	 * changes are dropped. The caller may hold one pin on the page, which is
+	 * released; a page pinned more than once cannot be freed.
 	 *
 	 * @param globalPageId
 	 *            the page number in the data base.
@@ -247,7 +955,31 @@ public class BufMgr implements GlobalConst {
 	 */
 	public void freePage(PageId globalPageId) throws InvalidRunSizeException,
 			InvalidPageNumberException, FileIOException, DiskMgrException,
-			IOException {
+			IOException, PagePinnedException {
+		int pid = globalPageId.pid;
+		for (;;) {
+			int fdid = tab.get(pid);
+			if (fdid == -1)
+				break;
+			FrameDescriptor fd = bufDescr[fdid];
+			int count = fd.pin_count.get();
+			if (count == BUSY) {
+				awaitSettled(fd);
+				continue;
+			}
+			if (count > 1)
+				throw new PagePinnedException(null,
+						"BUFMGR: page is pinned more than once");
+			if (!fd.pin_count.compareAndSet(count, BUSY))
+				continue;
+			if (fd.page_number != pid) {
+				release(fd, count);
+				continue;
+			}
+			tab.remove(pid, fdid);
+			discard(fdid);
+			break;
+		}
 		JavabaseDB.deallocate_page(globalPageId);
 	};
 
@@ -263,32 +995,525 @@ public class BufMgr implements GlobalConst {
 	 */
 	public void flushPage(PageId pageid) throws InvalidPageNumberException,
 			FileIOException, IOException {
-		int fdid = get(pageid);
-		if (fdid == -1)
-			return;
-		FrameDescriptor fd = bufDescr[fdid];
-		if (fd.page_number != null) {
-			Page p = (new Page());
-			p.setpage(bufpool[fdid]);
-			JavabaseDB.write_page(fd.page_number, p);
-		} else {
+		int fdid = tab.get(pageid.pid);
+		if (fdid == -1 || addPin(fdid, pageid.pid) == -1)
 			return;
+		try {
+			writeFrame(fdid, pageid.pid);
+		} finally {
+			dropPin(fdid);
 		}
 	}
 
 	/**
-	 * Flushes all pages of the buffer pool to disk
+	 * Flushes all pages of the buffer pool to disk. Only dirty pages are
+	 * written; pinned pages are written as they are now. The database is
+	 * then forced, so that every page written so far is durable along with
+	 * the checksums and compressed-page entries it keeps beside its pages.
+	 * <p>
+	 * The dirty pages are written in page order, in batches, so that runs of
+	 * adjacent pages go out as single writes.
+	 *
+	 * @throws IOException
+	 * @throws FileIOException
+	 * @throws InvalidPageNumberException
 	 */
-	public void flushAllPages() {
+	public void flushAllPages() throws InvalidPageNumberException,
+			FileIOException, IOException {
+		// Page number in the high half, frame in the low half, so sorting
+		// orders the frames by page.
+		long[] dirty = new long[NBUF];
+		int n = 0;
+		for (int i = 0; i < NBUF; i++) {
+			FrameDescriptor fd = bufDescr[i];
+			int pid = fd.page_number;
+			if (fd.dirtybit && pid != INVALID_PAGE)
+				dirty[n++] = ((long) pid << 32) | i;
+		}
+		Arrays.sort(dirty, 0, n);
+
+		int[] busy = new int[n];
+		int waiting = 0;
+		for (int i = 0; i < n; i += WRITE_BATCH)
+			waiting = writeBatch(dirty, i, Math.min(n, i + WRITE_BATCH),
+					busy, waiting);
+
+		// Frames that were BUSY are waited for one at a time, holding
+		// nothing else, so flushers cannot wait on each other.
+		for (int i = 0; i < waiting; i++)
+			cleanFrame(busy[i], true);
+
+		DB db = JavabaseDB;
+		if (db != null)
+			db.force();
 	};
 
+	/**
+	 * Write the dirty frames dirty[from..to) with one DB.write_pages() call.
+	 * Unpinned frames are made BUSY for the write and pinned frames get an
+	 * extra pin, as in cleanFrame(), but no frame is waited for: BUSY frames
+	 * are added to busy[] instead.
+	 *
+	 * @return the new number of frames in busy[].
+	 */
+	private int writeBatch(long[] dirty, int from, int to, int[] busy,
+			int waiting) throws InvalidPageNumberException, FileIOException,
+			IOException {
+		int[] frames = new int[to - from];
+		boolean[] pinned = new boolean[to - from];
+		int m = 0;
+		for (int k = from; k < to; k++) {
+			int pid = (int) (dirty[k] >>> 32);
+			int fdid = (int) dirty[k];
+			FrameDescriptor fd = bufDescr[fdid];
+			int count;
+			for (;;) {
+				count = fd.pin_count.get();
+				if (count == BUSY
+						|| fd.pin_count.compareAndSet(count, (count == 0) ? BUSY
+								: count + 1))
+					break;
+			}
+			if (count == BUSY) {
+				busy[waiting++] = fdid;
+				continue;
+			}
+			if (fd.page_number != pid || !fd.dirtybit) {
+				// Evicted or written since it was seen.
+				unhold(fdid, count > 0);
+				continue;
+			}
+			frames[m] = fdid;
+			pinned[m] = count > 0;
+			m++;
+		}
+		if (m == 0)
+			return waiting;
+
+		PageId[] pids = new PageId[m];
+		Page[] pages = new Page[m];
+		long[] lsns = new long[m];
+		long lsn = 0;
+		for (int i = 0; i < m; i++) {
+			FrameDescriptor fd = bufDescr[frames[i]];
+			pids[i] = new PageId(fd.page_number);
+			pages[i] = frame(frames[i]);
+			fd.dirtybit = false;
+			lsns[i] = fd.lsn.get();
+			lsn = Math.max(lsn, lsns[i]);
+		}
+		boolean written = false;
+		long start = System.nanoTime();
+		try {
+			forceLog(lsn);
+			JavabaseDB.write_pages(pids, pages);
+			written = true;
+			writebacks.add(m);
+		} finally {
+			writeLatency.record(System.nanoTime() - start);
+			for (int i = 0; i < m; i++) {
+				if (!written)
+					bufDescr[frames[i]].dirtybit = true;
+				else
+					written(bufDescr[frames[i]], lsns[i]);
+				unhold(frames[i], pinned[i]);
+			}
+		}
+		return waiting;
+	}
+
+	/**
+	 * Let go of a frame held by writeBatch().
+	 */
+	private void unhold(int fdid, boolean pinned) {
+		if (pinned)
+			dropPin(fdid);
+		else
+			release(bufDescr[fdid], 0);
+	}
+
+	/**
+	 * Write out a frame if it is dirty. An unpinned frame is made BUSY for
+	 * the write, so it can neither change nor be evicted meanwhile, and keeps
+	 * its place in the replacer. A pinned frame is written under an extra pin,
+	 * and only if pinnedToo is set.
+	 *
+	 * @return true if the frame was written.
+	 */
+	boolean cleanFrame(int fdid, boolean pinnedToo)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		FrameDescriptor fd = bufDescr[fdid];
+		if (!fd.dirtybit)
+			return false;
+		if (fd.pin_count.compareAndSet(0, BUSY)) {
+			try {
+				int pid = fd.page_number;
+				if (pid == INVALID_PAGE || !fd.dirtybit)
+					return false;
+				writeFrame(fdid, pid);
+				return true;
+			} finally {
+				release(fd, 0);
+			}
+		}
+		if (!pinnedToo)
+			return false;
+		int pid = fd.page_number;
+		if (pid == INVALID_PAGE || addPin(fdid, pid) == -1)
+			return false;
+		try {
+			if (!fd.dirtybit)
+				return false;
+			writeFrame(fdid, pid);
+			return true;
+		} finally {
+			dropPin(fdid);
+		}
+	}
+
+	/**
+	 * Write a frame to disk. The caller keeps it from being evicted, by a
+	 * pin or by making it BUSY.
+	 */
+	private void writeFrame(int fdid, int pid)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		FrameDescriptor fd = bufDescr[fdid];
+		// Clear the bit first, so a change made during the write marks the
+		// frame dirty again.
+		fd.dirtybit = false;
+		boolean written = false;
+		long lsn = fd.lsn.get();
+		long start = System.nanoTime();
+		try {
+			forceLog(lsn);
+			JavabaseDB.write_page(new PageId(pid), frame(fdid));
+			written = true;
+			writebacks.increment();
+		} finally {
+			writeLatency.record(System.nanoTime() - start);
+			if (!written)
+				fd.dirtybit = true;
+			else
+				written(fd, lsn);
+		}
+	}
+
+	/**
+	 * Note that a frame is on disk with every change logged up to lsn, its
+	 * LSN when the write began. Changes logged later start at or after lsn,
+	 * so the frame's recovery LSN moves up to it.
+	 */
+	private void written(FrameDescriptor fd, long lsn) {
+		long old;
+		do
+			old = fd.recLsn.get();
+		while (old < lsn && !fd.recLsn.compareAndSet(old, lsn));
+	}
+
+	/**
+	 * The recovery LSN of a frame, if its page may have logged changes that
+	 * are not on disk: if it is dirty, has been logged since it was last
+	 * written, or is pinned, and so could be being logged now.
+	 *
+	 * @return the recovery LSN, or 0 if the frame has nothing to redo.
+	 */
+	private long dirtySince(FrameDescriptor fd) {
+		long rec = fd.recLsn.get();
+		if (rec == 0 || fd.page_number == INVALID_PAGE)
+			return 0;
+		if (fd.dirtybit || fd.lsn.get() > rec || fd.pin_count.get() != 0)
+			return rec;
+		return 0;
+	}
+
+	/**
+	 * The WAL rule: flush the log up to a frame's LSN before the frame is
+	 * written.
+	 */
+	private void forceLog(long lsn) throws IOException {
+		LogMgr l = log;
+		if (l != null && lsn > l.getFlushedLSN())
+			l.flush(lsn);
+	}
+
+	/**
+	 * Attach a write-ahead log, or detach it with null. Attach it before
+	 * changes are logged, and while no page is dirty.
+	 *
+	 * @param log
+	 *            the log.
+	 */
+	public void setLogMgr(LogMgr log) {
+		this.log = log;
+	}
+
+	/**
+	 * @return the write-ahead log, or null.
+	 */
+	public LogMgr getLogMgr() {
+		return log;
+	}
+
+	/**
+	 * Log a change to a pinned page, and mark the page dirty. The record
+	 * holds bytes offset .. offset+length-1 of the page as they are now, so
+	 * log each change after making it and before unpinning the page; the page
+	 * is not written to disk until the log holds the record.
+	 *
+	 * @param pageNum
+	 *            the page changed.
+	 * @param offset
+	 *            the first byte changed.
+	 * @param length
+	 *            the number of bytes changed.
+	 * @return the record's LSN.
+	 * @throws ChainException
+	 *             if the page is not pinned.
+	 * @throws IllegalStateException
+	 *             if there is no log.
+	 */
+	public long logUpdate(PageId pageNum, int offset, int length)
+			throws ChainException {
+		LogMgr l = log;
+		if (l == null)
+			throw new IllegalStateException("BUFMGR: no log");
+		int fdid = tab.get(pageNum.pid);
+		if (fdid == -1)
+			throw new HashEntryNotFoundException(null,
+					"BUFMGR: page not in the buffer pool");
+		FrameDescriptor fd = bufDescr[fdid];
+		if (fd.pin_count.get() <= 0 || fd.page_number != pageNum.pid)
+			throw new PageUnpinnedException(null, "BUFMGR: page is not pinned");
+		// The record goes at or after the end of the log as it is now.
+		fd.recLsn.compareAndSet(0, l.getEndLSN());
+		long lsn = l.logUpdate(pageNum.pid, frame(fdid), offset, length);
+		long old;
+		do
+			old = fd.lsn.get();
+		while (old < lsn && !fd.lsn.compareAndSet(old, lsn));
+		fd.dirtybit = true;
+		return lsn;
+	}
+
+	/**
+	 * Start a background thread that writes dirty, unpinned pages to disk,
+	 * so that evictions find clean victims and a miss costs a single read.
+	 * Frames are visited round-robin. Replaces any running page cleaner.
+	 *
+	 * @param pagesPerSecond
+	 *            the most pages the cleaner writes per second.
+	 */
+	public synchronized void startPageCleaner(int pagesPerSecond) {
+		stopPageCleaner();
+		cleaner = new PageCleaner(this, NBUF, pagesPerSecond);
+		cleaner.start();
+	}
+
+	/**
+	 * Stop the background page cleaner, if one is running, and wait for it
+	 * to finish its current write.
+	 */
+	public synchronized void stopPageCleaner() {
+		if (cleaner != null) {
+			cleaner.shutdown();
+			cleaner = null;
+		}
+	}
+
+	/**
+	 * Note a page written by the page cleaner.
+	 */
+	void cleaned() {
+		cleanerWrites.increment();
+	}
+
+	/**
+	 * Note a write the page cleaner or the checkpointer could not do, or a
+	 * checkpoint the checkpointer could not take. The thread carries on, the
+	 * page staying dirty or the last checkpoint standing, so the failure is
+	 * only counted and kept for getLastBackgroundFailure().
+	 */
+	void backgroundFailure(Exception e) {
+		backgroundFailures.increment();
+		lastBackgroundFailure = e.toString();
+	}
+
+	public long getHeapCopies() {
+		return heapCopies.sum();
+	}
+
+	/**
+	 * @return the number of pages written by the page cleaner.
+	 */
+	public long getCleanerWrites() {
+		return cleanerWrites.sum();
+	}
+
+	/**
+	 * @return the number of writes and checkpoints the page cleaner and the
+	 *         checkpointer could not do.
+	 */
+	public long getBackgroundFailures() {
+		return backgroundFailures.sum();
+	}
+
+	/**
+	 * @return the last of those failures, or null if there was none.
+	 */
+	public String getLastBackgroundFailure() {
+		return lastBackgroundFailure;
+	}
+
+	/**
+	 * Take a fuzzy checkpoint: log the pages that may have changes not on
+	 * disk, with their recovery LSNs, so that recovery need only redo the log
+	 * from the oldest of them. Nothing is locked or written back; the frames
+	 * are read as they are while the pool stays in use. The database is
+	 * forced before the record is logged, since the pages written back
+	 * before it, which it leaves out, must be durable.
+	 *
+	 * @return the checkpoint record's LSN.
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 *             if there is no log.
+	 */
+	public long checkpoint() throws IOException {
+		LogMgr l = log;
+		if (l == null)
+			throw new IllegalStateException("BUFMGR: no log");
+		long begin = l.getEndLSN();
+		int[] pids = new int[NBUF];
+		long[] recs = new long[NBUF];
+		int n = 0;
+		for (int i = 0; i < NBUF; i++) {
+			FrameDescriptor fd = bufDescr[i];
+			int pid = fd.page_number;
+			long rec = dirtySince(fd);
+			if (rec != 0 && rec < begin && pid != INVALID_PAGE) {
+				pids[n] = pid;
+				recs[n] = rec;
+				n++;
+			}
+		}
+		DB db = JavabaseDB;
+		if (db != null)
+			db.force();
+		return l.checkpoint(begin, pids, recs, n);
+	}
+
+	/**
+	 * Write out a frame if it is unpinned and holds changes logged before an
+	 * LSN, so that the next checkpoint can start recovery after it.
+	 *
+	 * @return true if the frame was written.
+	 */
+	boolean cleanOlder(int fdid, long lsn) throws InvalidPageNumberException,
+			FileIOException, IOException {
+		long rec = dirtySince(bufDescr[fdid]);
+		return rec != 0 && rec < lsn && cleanFrame(fdid, false);
+	}
+
+	/**
+	 * Start a background thread that takes a fuzzy checkpoint whenever the
+	 * interval has passed or the log has grown by the given amount since the
+	 * last one, and in between writes back, at a bounded rate, the unpinned
+	 * pages whose changes go back past the last checkpoint, so that the next
+	 * one moves the start of recovery forward. Replaces any running
+	 * checkpointer.
+	 *
+	 * @param intervalMillis
+	 *            the most time between checkpoints; 0 for no limit.
+	 * @param intervalBytes
+	 *            the most log between checkpoints; 0 for no limit.
+	 * @param pagesPerSecond
+	 *            the most pages written back per second.
+	 * @throws IllegalStateException
+	 *             if there is no log.
+	 */
+	public synchronized void startCheckpointer(long intervalMillis,
+			long intervalBytes, int pagesPerSecond) {
+		if (log == null)
+			throw new IllegalStateException("BUFMGR: no log");
+		stopCheckpointer();
+		checkpointer = new Checkpointer(this, log, NBUF, intervalMillis,
+				intervalBytes, pagesPerSecond);
+		checkpointer.start();
+	}
+
+	/**
+	 * Stop the background checkpointer, if one is running, and wait for it
+	 * to finish its current write or checkpoint.
+	 */
+	public synchronized void stopCheckpointer() {
+		if (checkpointer != null) {
+			checkpointer.shutdown();
+			checkpointer = null;
+		}
+	}
+
+	/**
+	 * Set how many pages are read ahead of a sequential scan. The window is
+	 * capped at a quarter of the pool, so read-ahead cannot flush the pool.
+	 *
+	 * @param pages
+	 *            the read-ahead window; 0 turns read-ahead off.
+	 */
+	public void setReadAhead(int pages) {
+		readAhead = Math.max(0, Math.min(pages, NBUF / 4));
+	}
+
+	/**
+	 * @return the number of pages read ahead of a sequential scan.
+	 */
+	public int getReadAhead() {
+		return readAhead;
+	}
+
+	/**
+	 * @return the number of multi-page reads done for read-ahead.
+	 */
+	public long getPrefetchReads() {
+		return prefetchReads.sum();
+	}
+
+	/**
+	 * @return the number of pages read ahead.
+	 */
+	public long getPrefetchedPages() {
+		return prefetchedPages.sum();
+	}
+
+	/**
+	 * @return the number of pages read ahead that were pinned before being
+	 *         evicted.
+	 */
+	public long getPrefetchHits() {
+		return prefetchHits.sum();
+	}
+
+	/**
+	 * @return the number of pages read ahead that were evicted without ever
+	 *         being pinned.
+	 */
+	public long getPrefetchWasted() {
+		return prefetchWasted.sum();
+	}
+
+	/**
+	 * @return the number of read-ahead reads that failed. The pages are read
+	 *         again when they are pinned.
+	 */
+	public long getPrefetchFailures() {
+		return prefetchFailures.sum();
+	}
+
 	/**
 	 * Gets the total number of buffers.
 	 *
 	 * @return total number of buffer frames.
 	 */
 	public int getNumBuffers() {
-		return this.NUMBUF;
+		return NBUF;
 	};
 
 	/**
@@ -297,7 +1522,109 @@ public class BufMgr implements GlobalConst {
 	 * @return total number of unpinned buffer frames.
 	 */
 	public int getNumUnpinnedBuffers() {
-		return 1;
+		int n = 0;
+		for (FrameDescriptor fd : bufDescr)
+			if (fd.pin_count.get() == 0)
+				n++;
+		return n;
 	};
 
+	public int getNumPinnedBuffers() {
+		return NBUF - getNumUnpinnedBuffers();
+	}
+
+	public int getNumDirtyBuffers() {
+		int n = 0;
+		for (FrameDescriptor fd : bufDescr)
+			if (fd.dirtybit)
+				n++;
+		return n;
+	}
+
+	public int getNumFreeBuffers() {
+		int n = 0;
+		for (FrameDescriptor fd : bufDescr)
+			if (fd.page_number == INVALID_PAGE && fd.pin_count.get() == 0)
+				n++;
+		return n;
+	}
+
+	public String getReplacementPolicy() {
+		return replacementPolicy;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public double getHitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return (total == 0) ? 0 : (double) h / total;
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getDirtyWritebacks() {
+		return writebacks.sum();
+	}
+
+	public long getFailedPins() {
+		return failedPins.sum();
+	}
+
+	public long getPinLatencyP50() {
+		return pinLatency.percentile(0.5);
+	}
+
+	public long getPinLatencyP99() {
+		return pinLatency.percentile(0.99);
+	}
+
+	public long[] getPinLatencyHistogram() {
+		return pinLatency.counts();
+	}
+
+	public long getReadLatencyP50() {
+		return readLatency.percentile(0.5);
+	}
+
+	public long getReadLatencyP99() {
+		return readLatency.percentile(0.99);
+	}
+
+	public long[] getReadLatencyHistogram() {
+		return readLatency.counts();
+	}
+
+	public long getWriteLatencyP50() {
+		return writeLatency.percentile(0.5);
+	}
+
+	public long getWriteLatencyP99() {
+		return writeLatency.percentile(0.99);
+	}
+
+	public long[] getWriteLatencyHistogram() {
+		return writeLatency.counts();
+	}
+
+	public void resetStatistics() {
+		for (LongAdder c : new LongAdder[] { hits, misses, evictions,
+				writebacks, failedPins, prefetchReads, prefetchedPages,
+				prefetchHits, prefetchWasted, prefetchFailures, cleanerWrites,
+				heapCopies, backgroundFailures })
+			c.reset();
+		lastBackgroundFailure = null;
+		pinLatency.reset();
+		readLatency.reset();
+		writeLatency.reset();
+	}
+
 }
@@ -0,0 +1,118 @@
+/* File BufMgrMXBean.java */
+
+package bufmgr;
+
+/**
+ * The management interface of the buffer manager. A buffer manager is
+ * published with the platform MBean server as
+ * <code>minibase:type=BufMgr</code> by calling its registerMBean(), once
+ * it is constructed; one buffer manager can be registered at a time.
+ * <p>
+ * Frame gauges are computed on demand from the frame descriptors; the
+ * counters and latency histograms run from creation or from the last
+ * resetStatistics(). Latencies are in nanoseconds, and their percentiles
+ * are exact to within a factor of two.
+ */
+public interface BufMgrMXBean {
+
+	/** @return the number of frames in the pool. */
+	int getNumBuffers();
+
+	/** @return the number of frames that are pinned or being loaded. */
+	int getNumPinnedBuffers();
+
+	/** @return the number of frames that are not pinned. */
+	int getNumUnpinnedBuffers();
+
+	/** @return the number of frames holding changes not yet on disk. */
+	int getNumDirtyBuffers();
+
+	/** @return the number of frames holding no page. */
+	int getNumFreeBuffers();
+
+	/** @return the name of the replacement policy. */
+	String getReplacementPolicy();
+
+	/** @return the number of pins that found the page in the pool. */
+	long getHits();
+
+	/** @return the number of pins that had to bring the page in. */
+	long getMisses();
+
+	/** @return hits / (hits + misses), or 0 before the first pin. */
+	double getHitRatio();
+
+	/** @return the number of pages evicted to make room for another. */
+	long getEvictions();
+
+	/** @return the number of dirty pages written back to disk. */
+	long getDirtyWritebacks();
+
+	/** @return the number of pins refused because every frame was pinned. */
+	long getFailedPins();
+
+	/** @return the number of multi-page reads done for read-ahead. */
+	long getPrefetchReads();
+
+	/** @return the number of pages read ahead. */
+	long getPrefetchedPages();
+
+	/** @return the number of pages read ahead and then pinned. */
+	long getPrefetchHits();
+
+	/** @return the number of pages read ahead and evicted unused. */
+	long getPrefetchWasted();
+
+	/** @return the number of read-ahead reads that failed. */
+	long getPrefetchFailures();
+
+	/**
+	 * @return the number of off-heap frames copied to the heap because a
+	 *         client asked for their page's array; each copy gives up the
+	 *         arena for that frame until it holds another page.
+	 */
+	long getHeapCopies();
+
+	/** @return the number of pages written by the page cleaner. */
+	long getCleanerWrites();
+
+	/**
+	 * @return the number of writes and checkpoints the page cleaner and the
+	 *         checkpointer could not do.
+	 */
+	long getBackgroundFailures();
+
+	/** @return the last of those failures, or null if there was none. */
+	String getLastBackgroundFailure();
+
+	/** @return the median pinPage() latency. */
+	long getPinLatencyP50();
+
+	/** @return the 99th percentile pinPage() latency. */
+	long getPinLatencyP99();
+
+	/** @return pinPage() latencies, bucketed by powers of two. */
+	long[] getPinLatencyHistogram();
+
+	/** @return the median page read latency. */
+	long getReadLatencyP50();
+
+	/** @return the 99th percentile page read latency. */
+	long getReadLatencyP99();
+
+	/** @return page read latencies, bucketed by powers of two. */
+	long[] getReadLatencyHistogram();
+
+	/** @return the median page write latency. */
+	long getWriteLatencyP50();
+
+	/** @return the 99th percentile page write latency. */
+	long getWriteLatencyP99();
+
+	/** @return page write latencies, bucketed by powers of two. */
+	long[] getWriteLatencyHistogram();
+
+	/** Zero the counters and latency histograms. */
+	void resetStatistics();
+
+}
@@ -0,0 +1,110 @@
+/* File Checkpointer.java */
+
+package bufmgr;
+
+import logmgr.LogMgr;
+
+/**
+ * Background checkpointer for the buffer manager. It takes a fuzzy
+ * checkpoint when the interval in time or in log volume is up, and between
+ * checkpoints sweeps the frames like the PageCleaner, writing back at its
+ * rate the unpinned pages with changes logged before the last checkpoint
+ * began. Those are the pages that hold recovery back, so each checkpoint
+ * can start it later than the one before, and the writes are spread over
+ * the interval rather than made all at once.
+ */
+class Checkpointer extends Thread {
+
+	private static final long TICK_MILLIS = 10;
+
+	private final BufMgr mgr;
+	private final LogMgr log;
+	private final int numbufs;
+	private final long intervalMillis;
+	private final long intervalBytes;
+	private final double pagesPerTick;
+	private volatile boolean running = true;
+	private int hand;
+
+	Checkpointer(BufMgr mgr, LogMgr log, int numbufs, long intervalMillis,
+			long intervalBytes, int pagesPerSecond) {
+		super("Checkpointer");
+		setDaemon(true);
+		this.mgr = mgr;
+		this.log = log;
+		this.numbufs = numbufs;
+		this.intervalMillis = intervalMillis;
+		this.intervalBytes = intervalBytes;
+		this.pagesPerTick = pagesPerSecond * TICK_MILLIS / 1000.0;
+	}
+
+	public void run() {
+		double credit = 0;
+		long last = System.currentTimeMillis();
+		long lastLsn = log.getEndLSN();
+		// Changes logged before this are what the next checkpoint would
+		// still have to redo.
+		long target = 0;
+		while (running) {
+			long now = System.currentTimeMillis();
+			long end = log.getEndLSN();
+			if ((intervalMillis > 0 && now - last >= intervalMillis)
+					|| (intervalBytes > 0 && end - lastLsn >= intervalBytes)) {
+				try {
+					mgr.checkpoint();
+					target = end;
+				} catch (Exception e) {
+					// The last checkpoint stands; try again next interval.
+					mgr.backgroundFailure(e);
+				}
+				last = now;
+				lastLsn = end;
+			}
+
+			credit = Math.min(credit + pagesPerTick, Math.max(1.0,
+					pagesPerTick));
+			for (int scanned = 0; credit >= 1.0 && scanned < numbufs
+					&& running; scanned++) {
+				int frame = hand;
+				hand = (hand + 1) % numbufs;
+				try {
+					if (mgr.cleanOlder(frame, target))
+						credit -= 1.0;
+				} catch (Exception e) {
+					// The page stays dirty and is written on eviction.
+					mgr.backgroundFailure(e);
+				}
+			}
+			synchronized (this) {
+				try {
+					if (running)
+						wait(TICK_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop the checkpointer and wait for it to exit. The thread is woken
+	 * rather than interrupted, so that a write in progress is not disturbed.
+	 */
+	void shutdown() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while (isAlive()) {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+}
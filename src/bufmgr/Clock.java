@@ -0,0 +1,70 @@
+/* File Clock.java */
+
+package bufmgr;
+
+/**
+ * Clock (second chance) replacement. Each frame has a reference bit that is
+ * set whenever it is pinned. The hand sweeps the frames, clearing reference
+ * bits, and stops at the first unpinned frame whose bit is already clear.
+ */
+class Clock extends Replacer {
+
+	private final boolean[] referenced;
+	private final boolean[] candidate;
+	private int candidates;
+	private int hand;
+
+	Clock(int numbufs) {
+		super(numbufs);
+		referenced = new boolean[numbufs];
+		candidate = new boolean[numbufs];
+	}
+
+	public void loaded(int frame, int pid) {
+		referenced[frame] = true;
+	}
+
+	public void prefetched(int frame, int pid) {
+		// No reference bit: the page gets no second chance until it is used.
+		referenced[frame] = false;
+		unpinned(frame);
+	}
+
+	public void pinned(int frame) {
+		forget(frame);
+		referenced[frame] = true;
+	}
+
+	public void unpinned(int frame) {
+		if (!candidate[frame]) {
+			candidate[frame] = true;
+			candidates++;
+		}
+	}
+
+	protected int victim() {
+		// Two sweeps clear every reference bit; a third gives each candidate
+		// that could not be claimed another chance.
+		for (int step = 0; candidates > 0 && step < 3 * numbufs; step++) {
+			int frame = hand;
+			hand = (hand + 1) % numbufs;
+			if (candidate[frame]) {
+				if (referenced[frame]) {
+					referenced[frame] = false;
+				} else if (claim(frame)) {
+					forget(frame);
+					return frame;
+				}
+			}
+		}
+		return -1;
+	}
+
+	protected void forget(int frame) {
+		if (candidate[frame]) {
+			candidate[frame] = false;
+			candidates--;
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+/* File ConcurrentPageTable.java */
+
+package bufmgr;
+
+/**
+ * A thread-safe page table. Pages are spread over a power-of-two number of
+ * independently locked PageTable stripes by the high bits of their hash,
+ * so threads pinning different pages rarely meet on the same lock.
+ */
+class ConcurrentPageTable {
+
+	private final PageTable[] stripes;
+	private final int shift;
+
+	/**
+	 * Create a page table for a pool of the given number of frames.
+	 *
+	 * @param numbufs
+	 *            number of frames in the buffer pool.
+	 */
+	ConcurrentPageTable(int numbufs) {
+		int wanted = Math.min(numbufs, 4 * Runtime.getRuntime()
+				.availableProcessors());
+		int n = Integer.highestOneBit(Math.max(1, wanted));
+		stripes = new PageTable[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new PageTable((numbufs + n - 1) / n);
+		shift = 32 - Integer.numberOfTrailingZeros(n);
+	}
+
+	private PageTable stripe(int pid) {
+		// A shift by 32 is a no-op in Java, so one stripe needs a test.
+		return stripes.length == 1 ? stripes[0]
+				: stripes[PageTable.hash(pid) >>> shift];
+	}
+
+	/**
+	 * @return the frame holding the page, or -1 if it is not mapped.
+	 */
+	int get(int pid) {
+		PageTable t = stripe(pid);
+		synchronized (t) {
+			return t.get(pid);
+		}
+	}
+
+	/**
+	 * Map a page to a frame unless it is mapped already.
+	 *
+	 * @return -1 if the mapping was added, otherwise the frame the page is
+	 *         already mapped to.
+	 */
+	int putIfAbsent(int pid, int frame) {
+		PageTable t = stripe(pid);
+		synchronized (t) {
+			int old = t.get(pid);
+			if (old == -1)
+				t.put(pid, frame);
+			return old;
+		}
+	}
+
+	/**
+	 * Map a page to a frame, replacing any existing mapping.
+	 */
+	void put(int pid, int frame) {
+		PageTable t = stripe(pid);
+		synchronized (t) {
+			t.put(pid, frame);
+		}
+	}
+
+	/**
+	 * Remove the mapping of a page, but only if it maps to the given frame.
+	 *
+	 * @return true if the mapping was removed.
+	 */
+	boolean remove(int pid, int frame) {
+		PageTable t = stripe(pid);
+		synchronized (t) {
+			if (t.get(pid) != frame)
+				return false;
+			t.remove(pid);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove the mapping of a page.
+	 *
+	 * @return the frame the page was mapped to, or -1.
+	 */
+	int remove(int pid) {
+		PageTable t = stripe(pid);
+		synchronized (t) {
+			return t.remove(pid);
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+/* File FrameArena.java */
+
+package bufmgr;
+
+import global.GlobalConst;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap storage for the frames of a buffer pool. The frames are laid
+ * out back to back in direct memory, so the garbage collector sees a
+ * handful of buffer objects instead of one array per frame. A ByteBuffer
+ * holds at most 2 GB, so larger pools are split into 1 GB chunks.
+ */
+class FrameArena implements GlobalConst {
+
+	private static final int FRAMES_PER_CHUNK = (1 << 30) / MINIBASE_PAGESIZE;
+
+	private static final byte[] ZEROES = new byte[MINIBASE_PAGESIZE];
+
+	private final ByteBuffer[] chunks;
+
+	/**
+	 * Allocate zeroed memory for the given number of frames.
+	 */
+	FrameArena(int numbufs) {
+		chunks = new ByteBuffer[(numbufs + FRAMES_PER_CHUNK - 1)
+				/ FRAMES_PER_CHUNK];
+		for (int i = 0; i < chunks.length; i++) {
+			int frames = Math.min(FRAMES_PER_CHUNK, numbufs - i
+					* FRAMES_PER_CHUNK);
+			chunks[i] = ByteBuffer.allocateDirect(frames * MINIBASE_PAGESIZE);
+		}
+	}
+
+	/**
+	 * @return a new view of one frame, positioned at 0 with page size
+	 *         capacity.
+	 */
+	ByteBuffer frame(int fdid) {
+		return chunks[fdid / FRAMES_PER_CHUNK].slice(
+				(fdid % FRAMES_PER_CHUNK) * MINIBASE_PAGESIZE,
+				MINIBASE_PAGESIZE);
+	}
+
+	/**
+	 * Zero-fill one frame.
+	 */
+	void clear(int fdid) {
+		frame(fdid).put(ZEROES);
+	}
+
+}
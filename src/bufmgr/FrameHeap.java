@@ -0,0 +1,119 @@
+/* File FrameHeap.java */
+
+package bufmgr;
+
+/**
+ * A binary heap of buffer frame indices, smallest first by an order the
+ * owner supplies. Each frame's place in the heap is kept in an array
+ * indexed by frame, so adding and removing any frame is O(log n) and
+ * allocates nothing. A frame is in the heap at most once, and its place
+ * in the order must not change while it is there.
+ */
+class FrameHeap {
+
+	/**
+	 * The order of the frames in the heap.
+	 */
+	interface Order {
+		/** @return true if frame a comes before frame b. */
+		boolean before(int a, int b);
+	}
+
+	private final Order order;
+	private final int[] heap;
+	/** index of each frame in heap, or -1 */
+	private final int[] index;
+	private int size;
+
+	/**
+	 * Create an empty heap able to hold frames 0 to numbufs-1.
+	 *
+	 * @param numbufs
+	 *            number of frames in the buffer pool.
+	 * @param order
+	 *            the order of the frames.
+	 */
+	FrameHeap(int numbufs, Order order) {
+		this.order = order;
+		heap = new int[numbufs];
+		index = new int[numbufs];
+		java.util.Arrays.fill(index, -1);
+	}
+
+	boolean contains(int frame) {
+		return index[frame] != -1;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the first frame in the order, or -1 if the heap is empty.
+	 */
+	int first() {
+		return size == 0 ? -1 : heap[0];
+	}
+
+	/**
+	 * Add a frame; does nothing if it is already in the heap.
+	 */
+	void add(int frame) {
+		if (contains(frame))
+			return;
+		heap[size] = frame;
+		index[frame] = size;
+		up(size++);
+	}
+
+	/**
+	 * Remove a frame; does nothing if it is not in the heap.
+	 */
+	void remove(int frame) {
+		int i = index[frame];
+		if (i == -1)
+			return;
+		index[frame] = -1;
+		int last = heap[--size];
+		if (i == size)
+			return;
+		heap[i] = last;
+		index[last] = i;
+		up(i);
+		down(index[last]);
+	}
+
+	private void up(int i) {
+		int f = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!order.before(f, heap[parent]))
+				break;
+			place(heap[parent], i);
+			i = parent;
+		}
+		place(f, i);
+	}
+
+	private void down(int i) {
+		int f = heap[i];
+		for (;;) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && order.before(heap[child + 1], heap[child]))
+				child++;
+			if (!order.before(heap[child], f))
+				break;
+			place(heap[child], i);
+			i = child;
+		}
+		place(f, i);
+	}
+
+	private void place(int frame, int i) {
+		heap[i] = frame;
+		index[frame] = i;
+	}
+
+}
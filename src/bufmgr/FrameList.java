@@ -0,0 +1,108 @@
+/* File FrameList.java */
+
+package bufmgr;
+
+/**
+ * An intrusive doubly linked list of buffer frame indices. Links live in
+ * int arrays indexed by frame, so every operation is O(1) and allocates
+ * nothing. A frame is in the list at most once.
+ */
+class FrameList {
+
+	private final int[] next;
+	private final int[] prev;
+	private final int nil;
+	private int size;
+
+	/**
+	 * Create an empty list able to hold frames 0 to numbufs-1.
+	 *
+	 * @param numbufs
+	 *            number of frames in the buffer pool.
+	 */
+	FrameList(int numbufs) {
+		next = new int[numbufs + 1];
+		prev = new int[numbufs + 1];
+		nil = numbufs;
+		java.util.Arrays.fill(next, -1);
+		next[nil] = nil;
+		prev[nil] = nil;
+	}
+
+	boolean contains(int frame) {
+		return next[frame] != -1;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the frame at the head of the list, or -1 if it is empty.
+	 */
+	int first() {
+		return next[nil] == nil ? -1 : next[nil];
+	}
+
+	/**
+	 * @return the frame at the tail of the list, or -1 if it is empty.
+	 */
+	int last() {
+		return prev[nil] == nil ? -1 : prev[nil];
+	}
+
+	/**
+	 * @return the frame after the given one, or -1 at the tail.
+	 */
+	int next(int frame) {
+		return next[frame] == nil ? -1 : next[frame];
+	}
+
+	/**
+	 * @return the frame before the given one, or -1 at the head.
+	 */
+	int prev(int frame) {
+		return prev[frame] == nil ? -1 : prev[frame];
+	}
+
+	/**
+	 * Append a frame, moving it to the tail if it is already in the list.
+	 */
+	void addLast(int frame) {
+		remove(frame);
+		link(frame, prev[nil], nil);
+	}
+
+	/**
+	 * Prepend a frame, moving it to the head if it is already in the list.
+	 */
+	void addFirst(int frame) {
+		remove(frame);
+		link(frame, nil, next[nil]);
+	}
+
+	/**
+	 * Unlink a frame; does nothing if the frame is not in the list.
+	 */
+	void remove(int frame) {
+		if (next[frame] == -1)
+			return;
+		next[prev[frame]] = next[frame];
+		prev[next[frame]] = prev[frame];
+		next[frame] = -1;
+		size--;
+	}
+
+	private void link(int frame, int before, int after) {
+		prev[frame] = before;
+		next[frame] = after;
+		next[before] = frame;
+		prev[after] = frame;
+		size++;
+	}
+
+}
@@ -0,0 +1,44 @@
+/* File LRU.java */
+
+package bufmgr;
+
+/**
+ * Least recently used replacement: the victim is the frame that has been
+ * unpinned for the longest time.
+ */
+class LRU extends Replacer {
+
+	/** unpinned frames, least recently unpinned first */
+	protected final FrameList candidates;
+
+	LRU(int numbufs) {
+		super(numbufs);
+		candidates = new FrameList(numbufs);
+	}
+
+	public void loaded(int frame, int pid) {
+	}
+
+	public void pinned(int frame) {
+		candidates.remove(frame);
+	}
+
+	public void unpinned(int frame) {
+		candidates.addLast(frame);
+	}
+
+	protected int victim() {
+		for (int f = candidates.first(); f != -1; f = candidates.next(f)) {
+			if (claim(f)) {
+				candidates.remove(f);
+				return f;
+			}
+		}
+		return -1;
+	}
+
+	protected void forget(int frame) {
+		candidates.remove(frame);
+	}
+
+}
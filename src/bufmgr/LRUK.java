@@ -0,0 +1,114 @@
+/* File LRUK.java */
+
+package bufmgr;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Each frame remembers the
+ * times of the last K references to the page it holds, a reference being a
+ * pin of the page while it was unpinned; the victim is the unpinned frame
+ * whose K-th most recent reference is oldest. Pages referenced fewer than K
+ * times count as infinitely old and go first, least recently used first.
+ * This keeps pages that are used repeatedly ahead of pages touched once by
+ * a scan.
+ * <p>
+ * Recording a reference is O(K). The unpinned frames are kept in a heap
+ * ordered by their K-th reference, so choosing a victim is O(log n).
+ * History is kept per frame and starts over when a new page is loaded.
+ */
+class LRUK extends Replacer {
+
+	private final int k;
+
+	/** reference times, K per frame, most recent first; 0 means never */
+	private final long[] history;
+	private long clock;
+
+	/** unpinned frames, oldest K-th reference first */
+	private final FrameHeap candidates;
+	private final int[] skipped;
+	/** frames read ahead and not pinned since */
+	private final boolean[] unused;
+
+	LRUK(int numbufs, int k) {
+		super(numbufs);
+		this.k = k;
+		history = new long[numbufs * k];
+		candidates = new FrameHeap(numbufs, new FrameHeap.Order() {
+			public boolean before(int a, int b) {
+				return older(a, b);
+			}
+		});
+		skipped = new int[numbufs];
+		unused = new boolean[numbufs];
+	}
+
+	/**
+	 * @return true if frame a's K-th reference is older than frame b's, or
+	 *         they are the same and a's last reference is older.
+	 */
+	private boolean older(int a, int b) {
+		long ka = history[a * k + k - 1];
+		long kb = history[b * k + k - 1];
+		if (ka != kb)
+			return ka < kb;
+		return history[a * k] < history[b * k];
+	}
+
+	private void reference(int frame) {
+		int base = frame * k;
+		System.arraycopy(history, base, history, base + 1, k - 1);
+		history[base] = ++clock;
+	}
+
+	public void loaded(int frame, int pid) {
+		java.util.Arrays.fill(history, frame * k, frame * k + k, 0L);
+		unused[frame] = false;
+		reference(frame);
+	}
+
+	public void prefetched(int frame, int pid) {
+		// Stamped with the read time so it ages like a page used once, but
+		// the first pin takes that slot rather than counting a second use.
+		loaded(frame, pid);
+		unused[frame] = true;
+		candidates.add(frame);
+	}
+
+	public void pinned(int frame) {
+		candidates.remove(frame);
+		if (unused[frame]) {
+			unused[frame] = false;
+			history[frame * k] = ++clock;
+		} else {
+			reference(frame);
+		}
+	}
+
+	public void unpinned(int frame) {
+		candidates.add(frame);
+	}
+
+	protected int victim() {
+		// Frames that refuse a claim are moved out of the way for the rest
+		// of this call and put back afterwards.
+		int refused = 0;
+		int best;
+		for (;;) {
+			best = candidates.first();
+			if (best == -1 || claim(best))
+				break;
+			candidates.remove(best);
+			skipped[refused++] = best;
+		}
+		if (best != -1)
+			candidates.remove(best);
+		while (refused > 0)
+			candidates.add(skipped[--refused]);
+		return best;
+	}
+
+	protected void forget(int frame) {
+		candidates.remove(frame);
+	}
+
+}
@@ -0,0 +1,98 @@
+/* File LatencyHistogram.java */
+
+package bufmgr;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, with one bucket per power of
+ * two. Recording is a single striped add, so many threads can record at
+ * once without contending; percentiles are exact to within a factor of two,
+ * which is enough to see a latency regression.
+ */
+public class LatencyHistogram {
+
+	/** bucket i counts durations in [2^(i-1), 2^i), bucket 0 counts 0 */
+	private final LongAdder[] buckets = new LongAdder[64];
+	private final LongAdder total = new LongAdder();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new LongAdder();
+	}
+
+	/**
+	 * Record one duration.
+	 *
+	 * @param nanos
+	 *            the duration; negative values count as 0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+		total.add(nanos);
+	}
+
+	/**
+	 * @return the number of durations recorded.
+	 */
+	public long count() {
+		long n = 0;
+		for (LongAdder b : buckets)
+			n += b.sum();
+		return n;
+	}
+
+	/**
+	 * @return the mean duration in nanoseconds, or 0 if there is none.
+	 */
+	public long mean() {
+		long n = count();
+		return (n == 0) ? 0 : total.sum() / n;
+	}
+
+	/**
+	 * @param fraction
+	 *            the percentile wanted, between 0 and 1.
+	 * @return an upper bound on that percentile, in nanoseconds: the top of
+	 *         the bucket it falls in, or 0 if nothing was recorded.
+	 */
+	public long percentile(double fraction) {
+		long[] counts = counts();
+		long n = 0;
+		for (long c : counts)
+			n += c;
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0)
+				return (i == 0) ? 0 : (1L << i) - 1;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return the bucket counts; element i counts durations below 2^i ns
+	 *         and at least 2^(i-1) ns.
+	 */
+	public long[] counts() {
+		long[] counts = new long[buckets.length];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = buckets[i].sum();
+		return counts;
+	}
+
+	/**
+	 * Forget every duration recorded so far.
+	 */
+	public void reset() {
+		for (LongAdder b : buckets)
+			b.reset();
+		total.reset();
+	}
+
+}
@@ -0,0 +1,31 @@
+/* File MRU.java */
+
+package bufmgr;
+
+/**
+ * Most recently used replacement: the victim is the frame unpinned last.
+ * This suits repeated sequential scans of files larger than the pool,
+ * where LRU would evict every page just before it is needed again.
+ */
+class MRU extends LRU {
+
+	MRU(int numbufs) {
+		super(numbufs);
+	}
+
+	public void prefetched(int frame, int pid) {
+		// The far end from the victims, or the next read would evict it.
+		candidates.addFirst(frame);
+	}
+
+	protected int victim() {
+		for (int f = candidates.last(); f != -1; f = candidates.prev(f)) {
+			if (claim(f)) {
+				candidates.remove(f);
+				return f;
+			}
+		}
+		return -1;
+	}
+
+}
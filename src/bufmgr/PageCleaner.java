@@ -0,0 +1,80 @@
+/* File PageCleaner.java */
+
+package bufmgr;
+
+/**
+ * Background writer for the buffer manager. Every tick it sweeps on from
+ * where it stopped, writing dirty unpinned frames until it has used up its
+ * share of the configured rate. Unused budget is not saved up, so an idle
+ * cleaner never turns into a burst of writes.
+ */
+class PageCleaner extends Thread {
+
+	private static final long TICK_MILLIS = 10;
+
+	private final BufMgr mgr;
+	private final int numbufs;
+	private final double pagesPerTick;
+	private volatile boolean running = true;
+	private int hand;
+
+	PageCleaner(BufMgr mgr, int numbufs, int pagesPerSecond) {
+		super("PageCleaner");
+		setDaemon(true);
+		this.mgr = mgr;
+		this.numbufs = numbufs;
+		this.pagesPerTick = pagesPerSecond * TICK_MILLIS / 1000.0;
+	}
+
+	public void run() {
+		double credit = 0;
+		while (running) {
+			credit = Math.min(credit + pagesPerTick, Math.max(1.0,
+					pagesPerTick));
+			for (int scanned = 0; credit >= 1.0 && scanned < numbufs
+					&& running; scanned++) {
+				int frame = hand;
+				hand = (hand + 1) % numbufs;
+				try {
+					if (mgr.cleanFrame(frame, false)) {
+						mgr.cleaned();
+						credit -= 1.0;
+					}
+				} catch (Exception e) {
+					// The page stays dirty and is written on eviction.
+					mgr.backgroundFailure(e);
+				}
+			}
+			synchronized (this) {
+				try {
+					if (running)
+						wait(TICK_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop the cleaner and wait for it to exit. The thread is woken rather
+	 * than interrupted, so that a write in progress is not disturbed.
+	 */
+	void shutdown() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while (isAlive()) {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+}
@@ -0,0 +1,159 @@
+/* File PageTable.java */
+
+package bufmgr;
+
+/**
+ * Maps page numbers to buffer frame indices for the buffer manager.
+ * <p>
+ * The table is open addressed with linear probing over two parallel int
+ * arrays, so a lookup touches no objects and never boxes. Its capacity is
+ * the smallest power of two holding twice the number of frames, which keeps
+ * the load factor at or below one half however large the pool is; probe
+ * sequences therefore stay short and lookups are O(1) on average. Should a
+ * table be given more pages than that, it doubles. Deletion uses backward
+ * shifting, so no tombstones accumulate.
+ * <p>
+ * A PageTable is not synchronized; see ConcurrentPageTable.
+ */
+class PageTable {
+
+	/** Key stored in an unused slot; valid page numbers are never negative. */
+	private static final int EMPTY = -1;
+
+	private int[] keys;
+	private int[] frames;
+	private int mask;
+	private int size;
+
+	/**
+	 * Create a page table for a pool of the given number of frames.
+	 *
+	 * @param numbufs
+	 *            number of frames in the buffer pool.
+	 */
+	PageTable(int numbufs) {
+		allocate(Integer.highestOneBit(Math.max(1, 2 * numbufs - 1)) << 1);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		frames = new int[capacity];
+		mask = capacity - 1;
+		java.util.Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * Spread the bits of a page number (the murmur3 finalizer), so runs of
+	 * consecutive page numbers do not cluster in the table.
+	 */
+	static int hash(int pid) {
+		int h = pid;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Look up the frame holding a page.
+	 *
+	 * @param pid
+	 *            the page number.
+	 * @return the frame index, or -1 if the page is not in the table.
+	 */
+	int get(int pid) {
+		for (int i = hash(pid) & mask;; i = (i + 1) & mask) {
+			int key = keys[i];
+			if (key == pid)
+				return frames[i];
+			if (key == EMPTY)
+				return -1;
+		}
+	}
+
+	/**
+	 * Map a page to a frame, replacing any existing mapping for the page.
+	 *
+	 * @param pid
+	 *            the page number.
+	 * @param frame
+	 *            the frame index.
+	 */
+	void put(int pid, int frame) {
+		int i = hash(pid) & mask;
+		for (;; i = (i + 1) & mask) {
+			int key = keys[i];
+			if (key == pid) {
+				frames[i] = frame;
+				return;
+			}
+			if (key == EMPTY)
+				break;
+		}
+		keys[i] = pid;
+		frames[i] = frame;
+		if (++size * 2 > keys.length)
+			grow();
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldFrames = frames;
+		allocate(oldKeys.length * 2);
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == EMPTY)
+				continue;
+			int i = hash(oldKeys[j]) & mask;
+			while (keys[i] != EMPTY)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			frames[i] = oldFrames[j];
+		}
+	}
+
+	/**
+	 * Remove the mapping for a page.
+	 *
+	 * @param pid
+	 *            the page number.
+	 * @return the frame the page was mapped to, or -1 if it was not mapped.
+	 */
+	int remove(int pid) {
+		int i = hash(pid) & mask;
+		for (;; i = (i + 1) & mask) {
+			int key = keys[i];
+			if (key == pid)
+				break;
+			if (key == EMPTY)
+				return -1;
+		}
+		int frame = frames[i];
+		size--;
+
+		// Shift later members of the probe run back into the hole, so that
+		// every remaining key is still reachable from its home slot.
+		for (int j = (i + 1) & mask;; j = (j + 1) & mask) {
+			int key = keys[j];
+			if (key == EMPTY)
+				break;
+			int home = hash(key) & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = key;
+				frames[i] = frames[j];
+				i = j;
+			}
+		}
+		keys[i] = EMPTY;
+		return frame;
+	}
+
+	/**
+	 * @return the number of pages in the table.
+	 */
+	int size() {
+		return size;
+	}
+
+}
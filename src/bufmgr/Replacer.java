@@ -0,0 +1,205 @@
+/* File Replacer.java */
+
+package bufmgr;
+
+/**
+ * Base class of the buffer replacement policies. The buffer manager reports
+ * every pin, unpin and page load to its replacer, and asks it for a victim
+ * frame when a page has to be brought into a full pool. Every event is
+ * handled in O(1); only choosing a victim may take longer, depending on the
+ * policy.
+ * <p>
+ * The replacer only ever offers frames whose pin count is zero. Frames that
+ * hold no page (at startup, or after a failed read) are kept on a free list
+ * and are always handed out before any resident page is evicted.
+ * <p>
+ * A replacer is not synchronized; the buffer manager calls it under its own
+ * monitor. Because pins and unpins race with that, a candidate can be pinned
+ * by the time it is chosen, so every frame a policy wants to hand out is
+ * first offered to claim(). Frames that cannot be claimed are skipped and
+ * stay where they are.
+ */
+public abstract class Replacer {
+
+	/**
+	 * Takes ownership of a frame chosen by the replacer, or refuses it.
+	 */
+	interface Claim {
+		boolean claim(int frame);
+	}
+
+	private static final Claim ANY = new Claim() {
+		public boolean claim(int frame) {
+			return true;
+		}
+	};
+
+	/** number of frames in the buffer pool */
+	protected final int numbufs;
+
+	private final FrameList free;
+
+	private Claim claim = ANY;
+
+	/**
+	 * Create a replacer for a pool whose frames are all empty.
+	 *
+	 * @param numbufs
+	 *            number of frames in the buffer pool.
+	 */
+	protected Replacer(int numbufs) {
+		this.numbufs = numbufs;
+		free = new FrameList(numbufs);
+		for (int i = 0; i < numbufs; i++)
+			free.addLast(i);
+	}
+
+	/**
+	 * Create the replacer named by replacerArg: "Clock", "LRU", "MRU",
+	 * "LRU-K" (or "LRU-2", "LRU-3", ...) and "2Q", in any case.
+	 *
+	 * @param replacerArg
+	 *            name of the buffer replacement policy.
+	 * @param numbufs
+	 *            number of frames in the buffer pool.
+	 * @return the new replacer.
+	 * @throws IllegalArgumentException
+	 *             if replacerArg names no policy.
+	 */
+	public static Replacer newReplacer(String replacerArg, int numbufs) {
+		String name = (replacerArg == null) ? "" : replacerArg.trim()
+				.toUpperCase();
+		if (name.equals("CLOCK"))
+			return new Clock(numbufs);
+		if (name.equals("LRU"))
+			return new LRU(numbufs);
+		if (name.equals("MRU"))
+			return new MRU(numbufs);
+		if (name.equals("2Q") || name.equals("TWOQ"))
+			return new TwoQ(numbufs);
+		if (name.equals("LRU-K") || name.equals("LRUK"))
+			return new LRUK(numbufs, 2);
+		if (name.startsWith("LRU-")) {
+			int k;
+			try {
+				k = Integer.parseInt(name.substring(4));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("no replacement policy \""
+						+ replacerArg + "\": K is not a number");
+			}
+			if (k < 1)
+				throw new IllegalArgumentException("no replacement policy \""
+						+ replacerArg + "\": K must be at least 1");
+			return new LRUK(numbufs, k);
+		}
+		throw new IllegalArgumentException("no replacement policy \""
+				+ replacerArg + "\"");
+	}
+
+	/**
+	 * Set the check applied to every frame before pick() hands it out.
+	 */
+	void setClaim(Claim claim) {
+		this.claim = claim;
+	}
+
+	/**
+	 * Offer a frame to the owner of the replacer.
+	 *
+	 * @return true if the frame may be handed out.
+	 */
+	protected final boolean claim(int frame) {
+		return claim.claim(frame);
+	}
+
+	/**
+	 * Choose a frame to hold a new page. The frame is no longer a
+	 * replacement candidate when this returns.
+	 *
+	 * @return an unpinned frame, or -1 if every frame is pinned.
+	 */
+	public int pick() {
+		for (int f = free.first(); f != -1; f = free.next(f)) {
+			if (claim(f)) {
+				free.remove(f);
+				return f;
+			}
+		}
+		return victim();
+	}
+
+	/**
+	 * The frame no longer holds a page. It is forgotten by the policy and
+	 * becomes the next frame handed out by pick().
+	 *
+	 * @param frame
+	 *            an unpinned frame.
+	 */
+	public void freed(int frame) {
+		forget(frame);
+		free.addFirst(frame);
+	}
+
+	/**
+	 * A page has been read into a frame picked by pick(); the frame is now
+	 * pinned once.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param pid
+	 *            the page it holds.
+	 */
+	public abstract void loaded(int frame, int pid);
+
+	/**
+	 * A page has been read ahead into a frame picked by pick(), and nobody
+	 * has pinned it yet. The frame is unpinned and should be a cold
+	 * candidate: a page that is never used must not outlive pages that are.
+	 * By default this is a load followed by an unpin.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param pid
+	 *            the page it holds.
+	 */
+	public void prefetched(int frame, int pid) {
+		loaded(frame, pid);
+		unpinned(frame);
+	}
+
+	/**
+	 * An unpinned resident page has been pinned again; it is no longer a
+	 * replacement candidate. Further pins of a page that is already pinned
+	 * are not reported.
+	 *
+	 * @param frame
+	 *            the frame holding the page.
+	 */
+	public abstract void pinned(int frame);
+
+	/**
+	 * The pin count of a frame has dropped to zero; it is a replacement
+	 * candidate again.
+	 *
+	 * @param frame
+	 *            the frame.
+	 */
+	public abstract void unpinned(int frame);
+
+	/**
+	 * Choose, claim and remove a replacement candidate among the resident
+	 * pages.
+	 *
+	 * @return an unpinned frame, or -1 if there is none.
+	 */
+	protected abstract int victim();
+
+	/**
+	 * Drop all policy state about a frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 */
+	protected abstract void forget(int frame);
+
+}
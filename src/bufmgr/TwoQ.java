@@ -0,0 +1,123 @@
+/* File TwoQ.java */
+
+package bufmgr;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). Pages seen for the first time
+ * enter a FIFO queue, A1in, limited to a quarter of the pool. Pages evicted
+ * from A1in are remembered, without their data, in the ghost queue A1out.
+ * A page read in again while it is remembered there has proven to be
+ * reused and goes to the LRU queue Am. One-time scans therefore only ever
+ * displace pages in A1in.
+ */
+class TwoQ extends Replacer {
+
+	private static final byte NONE = 0;
+	private static final byte IN = 1;
+	private static final byte AM = 2;
+
+	private final int kin;
+
+	/** queue each frame belongs to */
+	private final byte[] queue;
+	/** page each frame holds */
+	private final int[] page;
+	/** frames in A1in, pinned or not */
+	private int inCount;
+
+	/** unpinned frames of A1in, oldest first */
+	private final FrameList in;
+	/** unpinned frames of Am, least recently unpinned first */
+	private final FrameList am;
+
+	/** A1out, as a ring of page numbers */
+	private final int[] ghosts;
+	/** ring slot of each page remembered in A1out */
+	private final PageTable ghostIndex;
+	private int ghostHead;
+
+	TwoQ(int numbufs) {
+		super(numbufs);
+		kin = Math.max(1, numbufs / 4);
+		queue = new byte[numbufs];
+		page = new int[numbufs];
+		in = new FrameList(numbufs);
+		am = new FrameList(numbufs);
+		ghosts = new int[Math.max(1, numbufs / 2)];
+		java.util.Arrays.fill(ghosts, -1);
+		ghostIndex = new PageTable(ghosts.length);
+	}
+
+	public void loaded(int frame, int pid) {
+		page[frame] = pid;
+		if (ghostIndex.remove(pid) != -1) {
+			queue[frame] = AM;
+		} else {
+			queue[frame] = IN;
+			inCount++;
+		}
+	}
+
+	public void pinned(int frame) {
+		in.remove(frame);
+		am.remove(frame);
+	}
+
+	public void unpinned(int frame) {
+		if (queue[frame] == IN)
+			in.addLast(frame);
+		else
+			am.addLast(frame);
+	}
+
+	protected int victim() {
+		int frame;
+		if (inCount > kin) {
+			frame = first(in);
+			if (frame == -1)
+				frame = first(am);
+		} else {
+			frame = first(am);
+			if (frame == -1)
+				frame = first(in);
+		}
+		if (frame == -1)
+			return -1;
+		if (queue[frame] == IN)
+			remember(page[frame]);
+		forget(frame);
+		return frame;
+	}
+
+	/**
+	 * @return the first frame of a queue that can be claimed, or -1.
+	 */
+	private int first(FrameList q) {
+		for (int f = q.first(); f != -1; f = q.next(f)) {
+			if (claim(f))
+				return f;
+		}
+		return -1;
+	}
+
+	protected void forget(int frame) {
+		in.remove(frame);
+		am.remove(frame);
+		if (queue[frame] == IN)
+			inCount--;
+		queue[frame] = NONE;
+	}
+
+	/**
+	 * Add a page to A1out, pushing out the oldest remembered page.
+	 */
+	private void remember(int pid) {
+		int old = ghosts[ghostHead];
+		if (old != -1 && ghostIndex.get(old) == ghostHead)
+			ghostIndex.remove(old);
+		ghosts[ghostHead] = pid;
+		ghostIndex.put(pid, ghostHead);
+		ghostHead = (ghostHead + 1) % ghosts.length;
+	}
+
+}
@@ -0,0 +1,124 @@
+/* File AsyncIO.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import bufmgr.LatencyHistogram;
+
+/**
+ * Runs page reads and writes on a pool of I/O threads and hands back
+ * futures, so that a caller can have many pages in flight at once and
+ * overlap its own work with the disk.  At most queueDepth requests are
+ * outstanding; submitting another blocks the caller until one completes,
+ * which keeps a fast producer from queueing unbounded work.  The latency
+ * of each request, from submission to completion, is recorded.
+ * <br>
+ * Where the PageIO spreads pages over several queues, such as the files
+ * of a striped database, each queue has its own threads and its own
+ * limit, so a busy device does not hold up requests for the others.
+ */
+class AsyncIO {
+
+  private final PageIO io;
+  /** per queue of the PageIO */
+  private final ExecutorService [] executors;
+  private final Semaphore [] slots;
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  /**
+   * @param threads the number of I/O threads for each queue
+   * @param queueDepth the most requests outstanding on each queue
+   */
+  AsyncIO (PageIO io, int threads, int queueDepth) {
+    this.io = io;
+    int queues = io.queues();
+    this.executors = new ExecutorService[queues];
+    this.slots = new Semaphore[queues];
+    for (int q = 0; q < queues; q++) {
+      final String prefix = (queues == 1) ? "DB-io-" : "DB-io-" + q + "-";
+      slots[q] = new Semaphore(queueDepth);
+      executors[q] = Executors.newFixedThreadPool(threads,
+	new ThreadFactory() {
+	  private int n;
+	  public synchronized Thread newThread (Runnable r) {
+	    Thread t = new Thread(r, prefix + n++);
+	    t.setDaemon(true);
+	    return t;
+	  }
+	});
+    }
+  }
+
+  /**
+   * Queue a read or a write of one page.
+   *
+   * @return a future completed with result once the page has been
+   *         transferred, or exceptionally with a FileIOException.
+   */
+  <T> CompletableFuture<T> submit (final boolean write, final int pid,
+				   final ByteBuffer buffer, final T result) {
+
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    final long start = System.nanoTime();
+    final int q = io.queue(pid);
+    final Semaphore slots = this.slots[q];
+    slots.acquireUninterruptibly();
+    try {
+      executors[q].execute(new Runnable() {
+	public void run () {
+	  Exception failure = null;
+	  try {
+	    if (write)
+	      io.write(pid, buffer);
+	    else
+	      io.read(pid, buffer);
+	  }
+	  catch (IOException e) {
+	    failure = DB.ioFailure(e);
+	  }
+	  catch (RuntimeException e) {
+	    failure = e;
+	  }
+	  latency.record(System.nanoTime() - start);
+	  slots.release();
+	  if (failure == null)
+	    future.complete(result);
+	  else
+	    future.completeExceptionally(failure);
+	}
+      });
+    }
+    catch (RejectedExecutionException e) {
+      slots.release();
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  LatencyHistogram latency () {
+    return latency;
+  }
+
+  /**
+   * Finish the requests already queued, and stop the I/O threads.
+   */
+  void shutdown () {
+    for (ExecutorService executor : executors)
+      executor.shutdown();
+    boolean interrupted = false;
+    for (ExecutorService executor : executors)
+      for (;;) {
+	try {
+	  if (executor.awaitTermination(1, TimeUnit.SECONDS))
+	    break;
+	}
+	catch (InterruptedException e) {
+	  interrupted = true;
+	}
+      }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+}
@@ -0,0 +1,83 @@
+/* File ChannelIO.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Page I/O by positional reads and writes on the file's channel.  These
+ * share no file pointer, so transfers of different pages proceed in
+ * parallel.
+ */
+class ChannelIO extends PageIO {
+
+  private final FileChannel channel;
+
+  ChannelIO (FileChannel channel) {
+    this.channel = channel;
+  }
+
+  /** A read may return fewer bytes than asked for, so reading goes on
+   * until the page is full.
+   */
+  void read (int pid, ByteBuffer buffer) throws IOException {
+    ByteBuffer dst = buffer.duplicate();
+    dst.clear();
+    long pos = (long)pid * MINIBASE_PAGESIZE;
+    while (dst.hasRemaining()) {
+      int n = channel.read(dst, pos + dst.position());
+      if (n < 0) break;
+    }
+    while (dst.hasRemaining())
+      dst.put((byte)0);
+  }
+
+  void write (int pid, ByteBuffer buffer) throws IOException {
+    ByteBuffer src = buffer.duplicate();
+    src.clear();
+    long pos = (long)pid * MINIBASE_PAGESIZE;
+    while (src.hasRemaining())
+      channel.write(src, pos + src.position());
+  }
+
+  /** One scattering read.  It has no positional form, so runs are read
+   * one at a time; single-page I/O does not use the channel's position.
+   */
+  void readRun (int first, ByteBuffer [] buffers) throws IOException {
+    ByteBuffer [] dsts = new ByteBuffer[buffers.length];
+    for (int i = 0; i < dsts.length; i++) {
+      dsts[i] = buffers[i].duplicate();
+      dsts[i].clear();
+    }
+    synchronized (channel) {
+      channel.position((long)first * MINIBASE_PAGESIZE);
+      while (dsts[dsts.length-1].hasRemaining()) {
+	if (channel.read(dsts) < 0) break;
+      }
+    }
+    for (ByteBuffer dst : dsts)
+      while (dst.hasRemaining())
+	dst.put((byte)0);
+  }
+
+  /** One gathering write, under the same lock as readRun.
+   */
+  void writeRun (int first, ByteBuffer [] buffers) throws IOException {
+    ByteBuffer [] srcs = new ByteBuffer[buffers.length];
+    for (int i = 0; i < srcs.length; i++) {
+      srcs[i] = buffers[i].duplicate();
+      srcs[i].clear();
+    }
+    synchronized (channel) {
+      channel.position((long)first * MINIBASE_PAGESIZE);
+      while (srcs[srcs.length-1].hasRemaining())
+	channel.write(srcs);
+    }
+  }
+
+  void force () throws IOException {
+    channel.force(false);
+  }
+}
@@ -0,0 +1,214 @@
+/* File ChecksumIO.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Page I/O through another PageIO that stamps each page with a CRC32C
+ * when it is written and checks it when the page is read back.  CRC32C
+ * is computed with the processor's CRC instructions where the JVM has
+ * them, so checking costs a small fraction of a read through the
+ * operating system.  It does not through a memory mapping, where a read
+ * is only a copy: there a cached read measured about 140 ns without
+ * checksums and 230 ns with them, well over the few percent aimed for.
+ * <br>
+ * The checksums are kept beside the database, in a SideFile of eight
+ * bytes per page, so pages keep their full size.  An entry holds the
+ * CRC32C in its low half and STAMPED in its high half; an entry of 0
+ * means the page has not been stamped, and it is not checked, so a
+ * database written without checksums can have them turned on: each page
+ * is checked once it has been written again.  Any CRC32C, 0 included, is
+ * checked once stamped.
+ * <br>
+ * A checksum must not reach the disk before its page does, or a crash
+ * in between leaves a good page that fails its check.  So the checksums
+ * of pages written are held in memory, where reads find them, until
+ * force() has made the pages durable; only then are they stored in the
+ * side file and it is forced in turn.  The buffer manager forces the
+ * database when it flushes all pages and when it takes a checkpoint,
+ * and once PENDING_LIMIT checksums are held a write forces it too, so
+ * few are held for long.  A page written since the last force() and
+ * before a crash is checked against its previous checksum, and fails if
+ * any of it reached the disk: the page may be torn, and has no checksum
+ * of its own to tell.
+ */
+class ChecksumIO extends PageIO {
+
+  /** A page did not match its checksum. */
+  static class MismatchException extends IOException {
+    final int pid;
+
+    MismatchException (int pid, int stamped, int found) {
+      super("page " + pid + " has checksum " + Integer.toHexString(found)
+	    + ", expected " + Integer.toHexString(stamped));
+      this.pid = pid;
+    }
+  }
+
+  /** the high half of a stamped entry */
+  private static final long STAMPED = 1L << 32;
+
+  /** the most checksums held before a write forces the I/O */
+  static final int PENDING_LIMIT = 1024;
+
+  private final PageIO io;
+  private final SideFile sums;
+
+  /** the entries of pages written since the last force(), by page */
+  private final ConcurrentHashMap<Integer,Long> pending =
+    new ConcurrentHashMap<Integer,Long>();
+  /** serializes force() */
+  private final Object forceLock = new Object();
+
+  /** each thread's copy of the page it is writing */
+  private final ThreadLocal<ByteBuffer> copies = new ThreadLocal<ByteBuffer>() {
+    protected ByteBuffer initialValue () {
+      return ByteBuffer.allocate(MINIBASE_PAGESIZE);
+    }
+  };
+
+  /**
+   * @param io the I/O to check
+   * @param path the checksum file, created if it does not exist
+   */
+  ChecksumIO (PageIO io, String path) throws IOException {
+    this.io = io;
+    this.sums = new SideFile(path, 8);
+  }
+
+  /** @return the I/O being checked
+   */
+  PageIO inner () {
+    return io;
+  }
+
+  int queues () {
+    return io.queues();
+  }
+
+  int queue (int pid) {
+    return io.queue(pid);
+  }
+
+  void read (int pid, ByteBuffer dst) throws IOException {
+    io.read(pid, dst);
+    check(pid, dst);
+  }
+
+  void write (int pid, ByteBuffer src) throws IOException {
+    ByteBuffer copy = snapshot(src, copies.get());
+    int sum = checksum(copy);
+    io.write(pid, copy);
+    stamp(pid, sum);
+    limitPending();
+  }
+
+  void readRun (int first, ByteBuffer [] dsts) throws IOException {
+    io.readRun(first, dsts);
+    for (int i = 0; i < dsts.length; i++)
+      check(first + i, dsts[i]);
+  }
+
+  void writeRun (int first, ByteBuffer [] srcs) throws IOException {
+    ByteBuffer [] copies = new ByteBuffer[srcs.length];
+    int [] sum = new int[srcs.length];
+    for (int i = 0; i < srcs.length; i++) {
+      copies[i] = snapshot(srcs[i], ByteBuffer.allocate(MINIBASE_PAGESIZE));
+      sum[i] = checksum(copies[i]);
+    }
+    io.writeRun(first, copies);
+    for (int i = 0; i < srcs.length; i++)
+      stamp(first + i, sum[i]);
+    limitPending();
+  }
+
+  /**
+   * Make the pages written so far durable, then their checksums.  A page
+   * written again while this runs keeps its new checksum pending, for
+   * the next force().
+   */
+  void force () throws IOException {
+    synchronized (forceLock) {
+      Map<Integer,Long> ready = new HashMap<Integer,Long>(pending);
+      io.force();
+      for (Map.Entry<Integer,Long> e : ready.entrySet()) {
+	sums.putLong(e.getKey(), e.getValue());
+	pending.remove(e.getKey(), e.getValue());
+      }
+      sums.force();
+    }
+  }
+
+  /**
+   * Force the I/O if PENDING_LIMIT checksums are held, unless another
+   * thread does so first.
+   */
+  private void limitPending () throws IOException {
+    if (pending.size() < PENDING_LIMIT)
+      return;
+    synchronized (forceLock) {
+      if (pending.size() >= PENDING_LIMIT)
+	force();
+    }
+  }
+
+  /**
+   * Close the I/O, first forcing it so that no checksum is lost.
+   */
+  void close () throws IOException {
+    try {
+      if (!pending.isEmpty())
+	force();
+    }
+    finally {
+      io.close();
+      sums.close();
+    }
+  }
+
+  private void check (int pid, ByteBuffer page) throws IOException {
+    Long p = pending.get(pid);
+    long entry = p != null ? p : sums.getLong(pid);
+    if (entry == 0)
+      return;
+    int stamped = (int) entry;
+    int found = checksum(page);
+    if (found != stamped)
+      throw new MismatchException(pid, stamped, found);
+  }
+
+  private void stamp (int pid, int sum) {
+    pending.put(pid, STAMPED | (sum & 0xffffffffL));
+  }
+
+  /**
+   * Copy a page, so that what is stamped is what is written even if the
+   * page is written while pinned and changing.
+   *
+   * @return the copy
+   */
+  private static ByteBuffer snapshot (ByteBuffer page, ByteBuffer copy) {
+    ByteBuffer b = page.duplicate();
+    b.clear();
+    copy.clear();
+    copy.put(b);
+    copy.clear();
+    return copy;
+  }
+
+  /**
+   * @return the CRC32C of a whole page
+   */
+  private static int checksum (ByteBuffer page) {
+    ByteBuffer b = page.duplicate();
+    b.clear();
+    CRC32C crc = new CRC32C();
+    crc.update(b);
+    return (int) crc.getValue();
+  }
+}
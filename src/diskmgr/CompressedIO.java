@@ -0,0 +1,302 @@
+/* File CompressedIO.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import bufmgr.LatencyHistogram;
+
+/**
+ * Page I/O that stores pages compressed with the LZCodec.  A compressed
+ * page takes a slot of whole granules of GRANULE bytes in a data file
+ * beside the database; where each page is, and its compressed length, is
+ * kept in a SideFile of eight bytes per page.  A page that does not
+ * compress by at least a granule is stored as it is.  The database file
+ * itself is not written, so on file systems with sparse files it takes
+ * no space.
+ * <br>
+ * A page is written to a new slot, and its new entry held in memory,
+ * where reads find it, until force() has made the data durable; only
+ * then is the entry stored in the side file, and that forced in turn.
+ * The old slot is freed only after that, so until the new entry is
+ * durable the stored one still points at the old page, which nothing
+ * has overwritten.  A crash loses the pages written since the last
+ * force() but leaves each page as last forced.  Besides closing, the
+ * buffer manager's flushAllPages() and checkpoint() force the database,
+ * and a write forces it when PENDING_LIMIT entries are held, which
+ * bounds both the memory held and what a crash loses.  A slot written
+ * and replaced between two forces was never in a stored entry, and is
+ * freed at once.  The free slots are kept in an ExtentMap, by granule,
+ * and rebuilt from the stored entries when the database is opened; a
+ * slot is placed best fit, or else at the end of the data file.
+ * <br>
+ * How well pages compress, and how long compressing and decompressing
+ * them takes, are recorded as they are written and read.
+ */
+class CompressedIO extends PageIO {
+
+  /** the unit of space in the data file */
+  static final int GRANULE = 64;
+
+  /** the most entries held before a write forces the files */
+  static final int PENDING_LIMIT = 1024;
+
+  private final FileChannel data;
+  /** per page: first granule << 16 | stored length, or 0 if never written */
+  private final SideFile slots;
+  /** free granules before end; guarded by this object's monitor */
+  private final ExtentMap free = new ExtentMap();
+  /** granules in the data file */
+  private int end;
+  /** entries not yet stored, by page; changed under this object's monitor */
+  private final Map<Integer,Long> pending =
+    new ConcurrentHashMap<Integer,Long>();
+  /** slots of stored entries since replaced, to free once stored anew */
+  private List<Long> retired = new ArrayList<Long>();
+  /** whether a force() is storing entries; guarded by this object's monitor */
+  private boolean forcing;
+  /** serializes force() */
+  private final Object forceLock = new Object();
+
+  private final LatencyHistogram compressTime = new LatencyHistogram();
+  private final LatencyHistogram decompressTime = new LatencyHistogram();
+  private final LongAdder pageBytes = new LongAdder();
+  private final LongAdder storedBytes = new LongAdder();
+
+  /** A thread's working space. */
+  private static class Scratch {
+    final byte [] page = new byte[MINIBASE_PAGESIZE];
+    /** compressed pages that would not save a granule do not fit */
+    final byte [] packed = new byte[MINIBASE_PAGESIZE - GRANULE];
+    final int [] table = new int[LZCodec.TABLE_SIZE];
+  }
+
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    protected Scratch initialValue () {
+      return new Scratch();
+    }
+  };
+
+  /**
+   * Open the files of a compressed database, creating them if they do
+   * not exist.
+   *
+   * @param path the database file; the data goes in path.z and the
+   *        page entries in path.zmap
+   */
+  CompressedIO (String path) throws IOException {
+    data = FileChannel.open(Paths.get(path + ".z"),
+			    StandardOpenOption.CREATE,
+			    StandardOpenOption.READ,
+			    StandardOpenOption.WRITE);
+    slots = new SideFile(path + ".zmap", 8);
+
+    // Every granule not in a page's slot is free.
+    long pages = slots.size();
+    for (long pid = 0; pid < pages; pid++) {
+      long e = slots.getLong(pid);
+      if (e != 0)
+	end = Math.max(end, first(e) + granules(length(e)));
+    }
+    free.set(0, end, 0);
+    for (long pid = 0; pid < pages; pid++) {
+      long e = slots.getLong(pid);
+      if (e != 0)
+	free.set(first(e), granules(length(e)), 1);
+    }
+  }
+
+  void read (int pid, ByteBuffer buffer) throws IOException {
+    ByteBuffer dst = buffer.duplicate();
+    dst.clear();
+    Long p = pending.get(pid);
+    long e = (p != null) ? p : slots.getLong(pid);
+    if (e == 0) {
+      // Never written.
+      while (dst.hasRemaining())
+	dst.put((byte)0);
+      return;
+    }
+    int length = length(e);
+    Scratch s = scratch.get();
+    byte [] in = (length == MINIBASE_PAGESIZE) ? s.page : s.packed;
+    if (length > in.length)
+      throw new IOException("page " + pid + " has a bad slot");
+    ByteBuffer src = ByteBuffer.wrap(in, 0, length);
+    long pos = (long) first(e) * GRANULE;
+    while (src.hasRemaining())
+      if (data.read(src, pos + src.position()) < 0)
+	throw new EOFException("page " + pid + " is cut short");
+
+    if (length < MINIBASE_PAGESIZE) {
+      long start = System.nanoTime();
+      LZCodec.decompress(s.packed, 0, length, s.page, MINIBASE_PAGESIZE);
+      decompressTime.record(System.nanoTime() - start);
+    }
+    dst.put(s.page);
+  }
+
+  void write (int pid, ByteBuffer buffer) throws IOException {
+    ByteBuffer src = buffer.duplicate();
+    src.clear();
+    Scratch s = scratch.get();
+    src.get(s.page);
+
+    long start = System.nanoTime();
+    int length = LZCodec.compress(s.page, MINIBASE_PAGESIZE, s.packed,
+				  s.table);
+    compressTime.record(System.nanoTime() - start);
+    byte [] out = s.packed;
+    if (length < 0) {
+      out = s.page;
+      length = MINIBASE_PAGESIZE;
+    }
+
+    int at = allocate(granules(length));
+    boolean written = false;
+    try {
+      ByteBuffer b = ByteBuffer.wrap(out, 0, length);
+      long pos = (long) at * GRANULE;
+      while (b.hasRemaining())
+	data.write(b, pos + b.position());
+      written = true;
+    }
+    finally {
+      synchronized (this) {
+	if (!written)
+	  free.set(at, granules(length), 0);
+	else {
+	  Long p = pending.put(pid, (long) at << 16 | length);
+	  long old = (p != null) ? p : slots.getLong(pid);
+	  if (p != null && !forcing)
+	    free.set(first(old), granules(length(old)), 0);
+	  else if (old != 0)
+	    // A force() may be storing it.
+	    retired.add(old);
+	}
+      }
+    }
+    pageBytes.add(MINIBASE_PAGESIZE);
+    storedBytes.add(length);
+    limitPending();
+  }
+
+  /**
+   * Make the pages written so far durable, then their entries, then free
+   * the slots the entries replaced.  Slots replaced while this runs are
+   * freed by the next force().
+   */
+  void force () throws IOException {
+    synchronized (forceLock) {
+      Map<Integer,Long> ready;
+      List<Long> freeing;
+      synchronized (this) {
+	ready = new HashMap<Integer,Long>(pending);
+	freeing = retired;
+	retired = new ArrayList<Long>();
+	forcing = true;
+      }
+      try {
+	data.force(false);
+	synchronized (this) {
+	  for (Map.Entry<Integer,Long> e : ready.entrySet()) {
+	    slots.putLong(e.getKey(), e.getValue());
+	    pending.remove(e.getKey(), e.getValue());
+	  }
+	}
+	slots.force();
+	synchronized (this) {
+	  for (long e : freeing)
+	    free.set(first(e), granules(length(e)), 0);
+	}
+      }
+      finally {
+	// The slots of a failed force() stay used until the database is
+	// opened again.
+	synchronized (this) {
+	  forcing = false;
+	}
+      }
+    }
+  }
+
+  /**
+   * Force the files if PENDING_LIMIT entries are held, unless another
+   * thread does so first.
+   */
+  private void limitPending () throws IOException {
+    if (pending.size() < PENDING_LIMIT)
+      return;
+    synchronized (forceLock) {
+      if (pending.size() >= PENDING_LIMIT)
+	force();
+    }
+  }
+
+  /**
+   * Close the files, first forcing them so that no entry is lost.
+   */
+  void close () throws IOException {
+    try {
+      if (!pending.isEmpty())
+	force();
+    }
+    finally {
+      slots.close();
+      data.close();
+    }
+  }
+
+  /**
+   * @return bytes of pages written for every byte stored, since the
+   *         database was opened; 0 if no page has been written
+   */
+  double ratio () {
+    long stored = storedBytes.sum();
+    return (stored == 0) ? 0 : (double) pageBytes.sum() / stored;
+  }
+
+  LatencyHistogram compressTime () {
+    return compressTime;
+  }
+
+  LatencyHistogram decompressTime () {
+    return decompressTime;
+  }
+
+  /**
+   * Find a slot of n granules: the shortest free extent that holds it,
+   * or the end of the data file.
+   *
+   * @return the first granule of the slot
+   */
+  private synchronized int allocate (int n) throws IOException {
+    int at = free.bestFit(n);
+    if (at >= 0) {
+      free.set(at, n, 1);
+      return at;
+    }
+    if (end > Integer.MAX_VALUE - n)
+      throw new IOException("compressed data file is full");
+    at = end;
+    end += n;
+    return at;
+  }
+
+  private static int first (long e) {
+    return (int) (e >>> 16);
+  }
+
+  private static int length (long e) {
+    return (int) (e & 0xffff);
+  }
+
+  private static int granules (int length) {
+    return (length + GRANULE - 1) / GRANULE;
+  }
+}
@@ -3,9 +3,51 @@
 package diskmgr;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
 import bufmgr.*;
 import global.*;
 
+/**
+ * A database file.  Page reads and writes may be issued by many threads at
+ * once: they are positional reads and writes on the file's channel, which
+ * do not share a file pointer, so they proceed in parallel.  Space-map and
+ * directory updates are serialized on the DB object.
+ * <p>
+ * A database may instead be opened memory-mapped, for read-mostly
+ * databases that fit in memory: page reads and writes are then memory
+ * copies, with no system call.  Changes become durable when the operating
+ * system writes them back, or on force().  The openDB methods without a
+ * mapped argument map the file if the system property minibase.db.mmap is
+ * true.
+ * <p>
+ * Alternatively, a database may bypass the operating system's page cache
+ * (direct I/O), so that pages are cached only in the buffer pool; see
+ * setDirectIO().  Where the file system does not support it, the database
+ * falls back to ordinary I/O.
+ * <p>
+ * read_page_async() and write_page_async() queue page transfers on a pool
+ * of I/O threads and return futures, so a caller can keep many pages in
+ * flight; see setAsyncIO().
+ * <p>
+ * Pages may be checksummed: stamped with a CRC32C as they are written and
+ * checked as they are read back, so that a torn or damaged page raises
+ * PageChecksumException instead of being used; see setChecksums().
+ * <p>
+ * Pages may also be stored compressed, in variable-size slots of a file
+ * beside the database, trading processor time for fewer bytes on disk;
+ * see setCompression().
+ * <p>
+ * The pages of a database may be striped over several files, dealt out
+ * round robin a stripe unit at a time, so that with the files on
+ * different devices their I/O proceeds in parallel; see setStriping().
+ * <p>
+ * Free pages are tracked in memory as well as in the space map, so that
+ * allocate_page() need not read the map to find room.  Runs are placed
+ * first fit or best fit (see setBestFit()), or near a given page.  When
+ * no run is long enough the database file grows; see setExtentSize().
+ */
 public class DB implements GlobalConst {
 
   
@@ -27,10 +69,32 @@ public class DB implements GlobalConst {
 	   FileIOException,
 	   DiskMgrException {
     
+    openDB(fname, Boolean.getBoolean("minibase.db.mmap"));
+  }
+  
+  /** Open the database with the given name, memory-mapped or not.
+   *
+   * @param name DB_name
+   * @param mapped true to access the file through a memory mapping
+   *
+   * @exception IOException I/O errors
+   * @exception FileIOException file I/O error
+   * @exception InvalidPageNumberException invalid page number
+   * @exception DiskMgrException error caused by other layers
+   */
+  public void openDB( String fname, boolean mapped)
+    throws IOException, 
+	   InvalidPageNumberException, 
+	   FileIOException,
+	   DiskMgrException {
+    
     name = fname;
+    directory = null;
+    stripe_files = stripeFiles();
     
     // Creaat a random access file
     fp = new RandomAccessFile(fname, "rw");
+    io = newPageIO(mapped);
     
     PageId pageId = new PageId();
     Page apage = new Page();
@@ -44,18 +108,290 @@ public class DB implements GlobalConst {
     DBFirstPage firstpg = new DBFirstPage();
     firstpg.openPage(apage);
     num_pages = firstpg.getNumDBPages();
+    base_map_pages = firstpg.getNumMapPages();
+    if (base_map_pages < 0)	// written before databases could grow
+      base_map_pages = map_pages(num_pages);
+    int num_stripes = firstpg.getNumStripes();
+    int unit = firstpg.getStripeUnit();
     
     unpinPage(pageId, false /* undirty*/);
+    
+    // Page 0 is in the database file however it is striped, but the
+    // others are only where they were put if the striping is the same.
+    if (num_stripes != stripe_files.length + 1
+	|| (num_stripes > 1 && unit != stripe_unit)) {
+      io.close();
+      fp.close();
+      throw new DiskMgrException(null, "DB.java: " + name
+				 + " was created striped over "
+				 + num_stripes + " files in units of "
+				 + unit + " pages");
+    }
+    
+    // Build the free-space index from the space map.
+    free_space = new FreeSpaceIndex(num_pages);
+    int num_map_pages = map_pages(num_pages);
+    for (int i = 0; i < num_map_pages; i++) {
+      pageId.pid = map_page(i);
+      pinPage(pageId, apage, false /*read disk*/);
+      free_space.load(i, apage.getBuffer(), bits_per_page);
+      unpinPage(pageId, false /*undirty*/);
+    }
+    extents = new ExtentMap(free_space);
   }
   
   /** default constructor.
    */
   public DB() { }
   
+  /** Choose whether databases opened from now on bypass the operating
+   * system's page cache.  The default is the system property
+   * minibase.db.direct.  Memory-mapped databases always go through the
+   * page cache, and so do databases on file systems that refuse direct
+   * I/O; isDirectIO() tells whether it is in use.
+   *
+   * @param direct true for direct I/O
+   */
+  public void setDirectIO(boolean direct) {
+    this.direct = direct;
+  }
+  
+  /** @return whether the open database bypasses the page cache
+   */
+  public boolean isDirectIO() {
+    PageIO p = (io instanceof ChecksumIO) ? ((ChecksumIO) io).inner() : io;
+    if (p instanceof StripedIO)
+      p = ((StripedIO) p).first();
+    return p instanceof DirectIO;
+  }
+  
+  /** Choose whether databases opened from now on checksum their pages.
+   * The checksums are kept in a file beside the database, named after it
+   * with .crc added, and a page's checksum is stored there only once the
+   * page has been forced to disk: by force() or closeDB(), by the buffer
+   * manager's flushAllPages() and checkpoint(), or by a write once many
+   * checksums wait.  After a crash, a page written since the database was
+   * last forced may fail its check.  Checking costs little beside a read
+   * through the operating system, but through a memory mapping it adds
+   * about half to a cached read.  Pages written while checksums were off
+   * are not checked until they are written again; a database once opened
+   * with checksums should not be written without them, or the pages
+   * changed meanwhile will fail their checks.  The default is the system
+   * property minibase.db.checksums.
+   *
+   * @param checksums true to stamp and check page checksums
+   */
+  public void setChecksums(boolean checksums) {
+    this.checksums = checksums;
+  }
+  
+  /** @return whether the open database checksums its pages
+   */
+  public boolean isChecksummed() {
+    return io instanceof ChecksumIO;
+  }
+  
+  /** Choose whether databases created or opened from now on store their
+   * pages compressed.  The pages then live in two files beside the
+   * database, named after it with .z and .zmap added, and are read and
+   * written through ordinary I/O whatever the mapping and direct I/O
+   * settings.  A database must always be opened the way it was created.
+   * The default is the system property minibase.db.compress.
+   *
+   * @param compress true to store pages compressed
+   */
+  public void setCompression(boolean compress) {
+    this.compress = compress;
+  }
+  
+  /** @return whether the open database stores its pages compressed
+   */
+  public boolean isCompressed() {
+    return compressed != null;
+  }
+  
+  /** @return bytes of pages written for every byte stored since the
+   * database was opened, or 0 if none has been written or the database
+   * is not compressed
+   */
+  public double getCompressionRatio() {
+    return (compressed == null) ? 0 : compressed.ratio();
+  }
+  
+  /** @return the time taken to compress each page written, in
+   * nanoseconds, or null if the database is not compressed
+   */
+  public LatencyHistogram getCompressLatency() {
+    return (compressed == null) ? null : compressed.compressTime();
+  }
+  
+  /** @return the time taken to decompress each page read, in
+   * nanoseconds, or null if the database is not compressed
+   */
+  public LatencyHistogram getDecompressLatency() {
+    return (compressed == null) ? null : compressed.decompressTime();
+  }
+  
+  /** Choose whether databases created or opened from now on stripe
+   * their pages over several files.  The pages are dealt out round robin
+   * in units of consecutive pages: the first unit is kept in the database
+   * file, the next in the first of the given files, and so on, back to
+   * the database file after the last.  Each file is read and written
+   * through its own channel, in the way the mapping and direct I/O
+   * settings choose, and has its own queue of asynchronous requests; put
+   * the files on different devices for their I/O to proceed in parallel.
+   * Compressed databases are not striped.
+   * <p>
+   * A database must always be opened with the striping it was created
+   * with; the number of files and the unit are recorded in its first
+   * page, and opening it otherwise fails.  The default is the system
+   * property minibase.db.stripes, the files separated by the path
+   * separator, with the unit from minibase.db.stripeunit, or 64 pages.
+   *
+   * @param unit the number of consecutive pages kept in one file
+   * @param files the files besides the database file, in order; none
+   *        keeps every page in the database file
+   */
+  public void setStriping(int unit, String... files) {
+    if (unit <= 0)
+      throw new IllegalArgumentException("stripe unit of " + unit
+					 + " pages");
+    this.stripe_unit = unit;
+    this.stripe_paths = files.clone();
+  }
+  
+  /** @return the number of files the open database's pages are striped
+   * over, 1 if it is not striped
+   */
+  public int getStripeCount() {
+    return stripe_files.length + 1;
+  }
+  
+  /** @return the number of consecutive pages kept in one stripe file
+   */
+  public int getStripeUnit() {
+    return stripe_unit;
+  }
+  
+  /** Choose how allocate_page places a run of pages: in the first free
+   * run long enough (first fit, the default), or in the shortest one
+   * (best fit), which keeps long free runs whole for long requests.  The
+   * default is the system property minibase.db.bestfit.
+   *
+   * @param bestFit true for best fit
+   */
+  public void setBestFit(boolean bestFit) {
+    this.best_fit = bestFit;
+  }
+  
+  /** @return whether allocate_page uses best fit
+   */
+  public boolean isBestFit() {
+    return best_fit;
+  }
+  
+  /** Choose by how many pages the database grows when an allocation
+   * finds no room; a larger run grows it by as much as the run needs.
+   * Zero keeps the database at its size, so that allocations then fail
+   * with OutOfSpaceException.  The default is the system property
+   * minibase.db.extent, or 1024 pages.
+   *
+   * @param pages the number of pages to add at a time
+   */
+  public void setExtentSize(int pages) {
+    this.extent_size = pages;
+  }
+  
+  /** @return by how many pages the database grows at a time
+   */
+  public int getExtentSize() {
+    return extent_size;
+  }
+  
+  private PageIO newPageIO(boolean mapped) throws IOException {
+    PageIO p;
+    compressed = null;
+    striped = null;
+    if (compress)
+      p = compressed = new CompressedIO(name);
+    else if (stripe_files.length > 0) {
+      RandomAccessFile [] files = new RandomAccessFile[stripe_files.length + 1];
+      PageIO [] ios = new PageIO[files.length];
+      files[0] = fp;
+      ios[0] = fileIO(name, fp, mapped);
+      try {
+	for (int i = 1; i < files.length; i++) {
+	  files[i] = new RandomAccessFile(stripe_files[i-1], "rw");
+	  ios[i] = fileIO(stripe_files[i-1], files[i], mapped);
+	}
+      }
+      catch (IOException e) {
+	for (int i = 1; i < files.length && files[i] != null; i++)
+	  files[i].close();
+	throw e;
+      }
+      p = striped = new StripedIO(files, ios, stripe_unit);
+    }
+    else
+      p = fileIO(name, fp, mapped);
+    return checksums ? new ChecksumIO(p, name + ".crc") : p;
+  }
+  
+  /** @return the I/O for one file of the database
+   */
+  private PageIO fileIO(String path, RandomAccessFile file, boolean mapped) {
+    if (mapped)
+      return new MappedIO(file.getChannel());
+    if (direct) {
+      try {
+	return new DirectIO(path);
+      }
+      catch (IOException e) {
+	// The file system refuses O_DIRECT; isDirectIO() reports it.
+      }
+    }
+    return new ChannelIO(file.getChannel());
+  }
+  
+  /** @return the files the next database opened is striped over, besides
+   * its own
+   */
+  private String [] stripeFiles() {
+    return compress ? new String[0] : stripe_paths.clone();
+  }
+  
+  /** Make the database's files hold the given number of pages.
+   */
+  private void setFileLength(int pages) throws IOException {
+    if (striped != null)
+      striped.setLength(pages);
+    else
+      fp.setLength((long) pages * MINIBASE_PAGESIZE);
+  }
+  
+  /** @return the files named by a path list, such as a system property
+   */
+  private static String [] pathList(String paths) {
+    if (paths == null || paths.isEmpty())
+      return new String[0];
+    return paths.split(Pattern.quote(File.pathSeparator));
+  }
+  
+  /** @return the exception to report a failed page transfer with
+   */
+  static FileIOException ioFailure(IOException e) {
+    if (e instanceof ChecksumIO.MismatchException)
+      return new PageChecksumException(e, "DB page "
+				       + ((ChecksumIO.MismatchException) e).pid
+				       + " failed its checksum");
+    return new FileIOException(e, "DB file I/O error");
+  }
+  
   
   /** DB Constructors.
    * Create a database with the specified number of pages where the page
-   * size is the default page size.
+   * size is the default page size.  The database grows past that size as
+   * pages are allocated; see setExtentSize().
    *
    * @param name DB name
    * @param num_pages number of pages in DB
@@ -71,19 +407,44 @@ public class DB implements GlobalConst {
 	   FileIOException,
 	   DiskMgrException {
     
+    openDB(fname, num_pgs, Boolean.getBoolean("minibase.db.mmap"));
+  }
+  
+  /** Create a database with the specified number of pages, memory-mapped
+   * or not.
+   *
+   * @param name DB name
+   * @param num_pages number of pages in DB
+   * @param mapped true to access the file through a memory mapping
+   *
+   * @exception IOException I/O errors
+   * @exception InvalidPageNumberException invalid page number
+   * @exception FileIOException file I/O error
+   * @exception DiskMgrException error caused by other layers
+   */
+  public void openDB( String fname, int num_pgs, boolean mapped)
+    throws IOException, 
+	   InvalidPageNumberException,
+	   FileIOException,
+	   DiskMgrException {
+    
     name = new String(fname);
+    directory = null;
     num_pages = (num_pgs > 2) ? num_pgs : 2;
+    stripe_files = stripeFiles();
     
     File DBfile = new File(name);
     
     DBfile.delete();
+    deleteSideFiles();
     
     // Creaat a random access file
     fp = new RandomAccessFile(fname, "rw");
     
-    // Make the file num_pages pages long, filled with zeroes.
-    fp.seek((long)(num_pages*MINIBASE_PAGESIZE-1));
-    fp.writeByte(0);
+    // Make the file num_pages pages long.  The file is sparse: pages
+    // take up disk space once they are written.
+    io = newPageIO(mapped);
+    setFileLength(num_pages);
     
     // Initialize space map and directory pages.
     
@@ -93,15 +454,20 @@ public class DB implements GlobalConst {
     pageId.pid = 0;
     pinPage(pageId, apage, true /*no diskIO*/);
     
+    // Calculate how many pages are needed for the space map.  Reserve pages
+    // 0 and 1 and as many additional pages for the space map as are needed.
+    int num_map_pages = map_pages(num_pages);
+    base_map_pages = num_map_pages;
+    
     DBFirstPage firstpg = new DBFirstPage(apage);
     
     firstpg.setNumDBPages(num_pages);
+    firstpg.setNumMapPages(num_map_pages);
+    firstpg.setStriping(stripe_files.length + 1, stripe_unit);
     unpinPage(pageId, true /*dirty*/);
     
-    // Calculate how many pages are needed for the space map.  Reserve pages
-    // 0 and 1 and as many additional pages for the space map as are needed.
-    int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
-    
+    free_space = new FreeSpaceIndex(num_pages);
+    extents = new ExtentMap(free_space);
     set_bits(pageId, 1+num_map_pages, 1);
     
   }
@@ -110,9 +476,19 @@ public class DB implements GlobalConst {
    * @exception IOException I/O errors.
    */
   public void closeDB() throws IOException {
+    stopAsyncIO();
+    io.close();
     fp.close();
   }
   
+  /** Make every page written so far durable, with what is kept beside
+   * it: its checksum, and where it is stored if it is compressed.
+   * @exception IOException I/O errors.
+   */
+  public void force() throws IOException {
+    io.force();
+  }
+  
   
   /** Destroy the database, removing the file that stores it. 
    * @exception IOException I/O errors.
@@ -120,9 +496,23 @@ public class DB implements GlobalConst {
   public void DBDestroy() 
     throws IOException {
     
+    stopAsyncIO();
+    io.close();
     fp.close();
     File DBfile = new File(name);
     DBfile.delete();
+    deleteSideFiles();
+  }
+  
+  /** Remove the files kept beside the database file, and the files its
+   * pages are striped over.
+   */
+  private void deleteSideFiles() {
+    new File(name + ".crc").delete();
+    new File(name + ".z").delete();
+    new File(name + ".zmap").delete();
+    for (String f : stripe_files)
+      new File(f).delete();
   }
   
   /** Read the contents of the specified page into a Page object
@@ -142,18 +532,12 @@ public class DB implements GlobalConst {
     if((pageno.pid < 0)||(pageno.pid >= num_pages))
       throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
     
-    // Seek to the correct page
-    fp.seek((long)(pageno.pid *MINIBASE_PAGESIZE));
-    
-    // Read the appropriate number of bytes.
-    byte [] buffer = apage.getpage();  //new byte[MINIBASE_PAGESIZE];
-    try{
-      fp.read(buffer);
+    try {
+      io.read(pageno.pid, apage.getBuffer());
     }
     catch (IOException e) {
-      throw new FileIOException(e, "DB file I/O error");
+      throw ioFailure(e);
     }
-    
   }
   
   /** Write the contents in a page object to the specified page.
@@ -173,17 +557,174 @@ public class DB implements GlobalConst {
     if((pageno.pid < 0)||(pageno.pid >= num_pages))
       throw new InvalidPageNumberException(null, "INVALID_PAGE_NUMBER");
     
-    // Seek to the correct page
-    fp.seek((long)(pageno.pid *MINIBASE_PAGESIZE));
+    try {
+      io.write(pageno.pid, apage.getBuffer());
+    }
+    catch (IOException e) {
+      throw new FileIOException(e, "DB file I/O error");
+    }
+  }
+  
+  /** Queue a read of the specified page into a Page object.  The page
+   * object must not be used until the returned future completes.
+   *
+   * @param pageno pageId which will be read
+   * @param apage page object which receives the contents of the page
+   * @return a future completed with apage once it holds the page, or
+   *         exceptionally with a FileIOException
+   *
+   * @exception InvalidPageNumberException invalid page number
+   */
+  public CompletableFuture<Page> read_page_async(PageId pageno, Page apage)
+    throws InvalidPageNumberException {
+
+    if((pageno.pid < 0)||(pageno.pid >= num_pages))
+      throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
+    
+    return async().submit(false, pageno.pid, apage.getBuffer(), apage);
+  }
+  
+  /** Queue a write of a Page object to the specified page.  The page
+   * object must not be changed until the returned future completes.
+   *
+   * @param pageno pageId will be wrote to disk
+   * @param apage the page object will be wrote to disk
+   * @return a future completed with apage once it is written, or
+   *         exceptionally with a FileIOException
+   *
+   * @exception InvalidPageNumberException invalid page number
+   */
+  public CompletableFuture<Page> write_page_async(PageId pageno, Page apage)
+    throws InvalidPageNumberException {
+
+    if((pageno.pid < 0)||(pageno.pid >= num_pages))
+      throw new InvalidPageNumberException(null, "INVALID_PAGE_NUMBER");
+    
+    return async().submit(true, pageno.pid, apage.getBuffer(), apage);
+  }
+  
+  /** Set up the I/O threads used by read_page_async() and
+   * write_page_async(), replacing any set up before once their queued
+   * requests are done.  Without a call, the system properties
+   * minibase.db.iothreads (4 by default) and minibase.db.queuedepth (64 by
+   * default) are used.
+   *
+   * @param threads number of I/O threads
+   * @param queueDepth most requests in flight; more requests block their
+   *        callers until one completes
+   */
+  public void setAsyncIO(int threads, int queueDepth) {
+    AsyncIO old;
+    synchronized (asyncLock) {
+      old = asyncIO;
+      asyncIO = new AsyncIO(io, Math.max(1, threads), Math.max(1, queueDepth));
+    }
+    if (old != null)
+      old.shutdown();
+  }
+  
+  /** @return the latency of asynchronous requests, from submission to
+   * completion, in nanoseconds
+   */
+  public LatencyHistogram getAsyncLatency() {
+    return async().latency();
+  }
+  
+  private AsyncIO async() {
+    AsyncIO a = asyncIO;
+    if (a != null)
+      return a;
+    synchronized (asyncLock) {
+      if (asyncIO == null)
+	asyncIO = new AsyncIO(io,
+			      Integer.getInteger("minibase.db.iothreads", 4),
+			      Integer.getInteger("minibase.db.queuedepth", 64));
+      return asyncIO;
+    }
+  }
+  
+  private void stopAsyncIO() {
+    AsyncIO old;
+    synchronized (asyncLock) {
+      old = asyncIO;
+      asyncIO = null;
+    }
+    if (old != null)
+      old.shutdown();
+  }
+  
+  /** Write a batch of pages.  Pages with consecutive numbers are written
+   * together, with one gathering write per run, so flushing many adjacent
+   * pages costs a few large writes instead of one write per page.
+   *
+   * @param pageIds the pages, in ascending order without repeats
+   * @param pages the page objects to write, in the same order
+   *
+   * @exception InvalidPageNumberException invalid or unsorted page numbers
+   * @exception FileIOException file I/O error
+   * @exception IOException I/O errors
+   */
+  public void write_pages(PageId [] pageIds, Page [] pages)
+    throws InvalidPageNumberException, 
+	   FileIOException, 
+	   IOException {
+
+    for (int i = 0; i < pageIds.length; i++) {
+      int pid = pageIds[i].pid;
+      if ((pid < 0) || (pid >= num_pages)
+	  || (i > 0 && pid <= pageIds[i-1].pid))
+	throw new InvalidPageNumberException(null, "INVALID_PAGE_NUMBER");
+    }
     
-    // Write the appropriate number of bytes.
-    try{
-      fp.write(apage.getpage());
+    try {
+      int start = 0;
+      for (int i = 1; i <= pageIds.length; i++) {
+	if (i < pageIds.length && pageIds[i].pid == pageIds[i-1].pid + 1)
+	  continue;
+	// pages start to i-1 form a run
+	ByteBuffer [] srcs = new ByteBuffer[i - start];
+	for (int j = start; j < i; j++)
+	  srcs[j - start] = pages[j].getBuffer();
+	if (srcs.length == 1)
+	  io.write(pageIds[start].pid, srcs[0]);
+	else
+	  io.writeRun(pageIds[start].pid, srcs);
+	start = i;
+      }
     }
     catch (IOException e) {
       throw new FileIOException(e, "DB file I/O error");
     }
+  }
+  
+  /** Read a run of consecutive pages with one scattering read, so that
+   * a sequential scan costs one system call per run rather than one per
+   * page.  Bytes past the end of the file read as zeroes.
+   *
+   * @param first pageId of the first page of the run
+   * @param pages page objects which receive the run, in order
+   *
+   * @exception InvalidPageNumberException invalid page number
+   * @exception FileIOException file I/O error
+   * @exception IOException I/O errors
+   */
+  public void read_pages(PageId first, Page [] pages)
+    throws InvalidPageNumberException, 
+	   FileIOException, 
+	   IOException {
+
+    if((first.pid < 0)||(first.pid + pages.length > num_pages))
+      throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
     
+    ByteBuffer [] dsts = new ByteBuffer[pages.length];
+    for (int i = 0; i < pages.length; i++)
+      dsts[i] = pages[i].getBuffer();
+    try {
+      io.readRun(first.pid, dsts);
+    }
+    catch (IOException e) {
+      throw ioFailure(e);
+    }
   }
   
   /** Allocate a set of pages where the run size is taken to be 1 by default.
@@ -221,7 +762,7 @@ public class DB implements GlobalConst {
    * @exception IOException I/O errors
    * @exception DiskMgrException error caused by other layers
    */
-  public void allocate_page(PageId start_page_num, int runsize)
+  public synchronized void allocate_page(PageId start_page_num, int runsize)
     throws OutOfSpaceException, 
 	   InvalidRunSizeException, 
 	   InvalidPageNumberException, 
@@ -231,79 +772,127 @@ public class DB implements GlobalConst {
 
     if(runsize < 0) throw new InvalidRunSizeException(null, "Negative run_size");
     
-    int run_size = runsize;
-    int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
-    int current_run_start = 0; 
-    int current_run_length = 0;
+    // The free-space index finds the first run of free pages long enough,
+    // the extent map the shortest; only the space-map pages the run lies
+    // on are touched, to mark it.
+    int run_start;
+    do
+      run_start = best_fit ? extents.bestFit(runsize) : free_space.find(runsize);
+    while (run_start < 0 && grow(runsize));
+    place_run(start_page_num, runsize, run_start);
+  }
+  
+  /** Allocate a run of pages as close as possible to a given page, so
+   * that pages used together lie together on disk.  The run starts at
+   * the page itself if that and the pages after it are free; otherwise
+   * it goes in the nearest free extent long enough, or, if there is none
+   * close by, the shortest one.
+   *
+   * @param start_page_num the starting page id of the run of pages
+   * @param runsize the number of page need allocated
+   * @param near the page to allocate the run near
+   *
+   * @exception OutOfSpaceException No space left
+   * @exception InvalidRunSizeException invalid run size 
+   * @exception InvalidPageNumberException invalid page number
+   * @exception FileIOException file I/O error
+   * @exception IOException I/O errors
+   * @exception DiskMgrException error caused by other layers
+   */
+  public synchronized void allocate_page(PageId start_page_num, int runsize,
+					 PageId near)
+    throws OutOfSpaceException, 
+	   InvalidRunSizeException, 
+	   InvalidPageNumberException, 
+	   FileIOException, 
+	   DiskMgrException,
+           IOException {
+
+    if(runsize < 0) throw new InvalidRunSizeException(null, "Negative run_size");
     
+    int run_start;
+    do
+      run_start = extents.near(runsize, near.pid);
+    while (run_start < 0 && grow(runsize));
+    place_run(start_page_num, runsize, run_start);
+  }
+  
+  /** Grow the database by an extent, or by enough for a run of the given
+   * size if that is more.  New space-map pages, when the map needs them,
+   * go at the first page they describe.  The new size is recorded on the
+   * first page last, once the space map covers the new pages; the map
+   * pages are forced to disk before the first page is written, and the
+   * first page is forced after, so that the size on disk never runs ahead
+   * of the map.
+   *
+   * @return false if the database may not grow, or growing it would not
+   *         make room for the run.
+   */
+  private boolean grow(int runsize)
+    throws InvalidPageNumberException, 
+	   FileIOException, 
+	   DiskMgrException,
+           IOException {
     
-    // This loop goes over each page in the space map.
-    PageId pgid = new PageId();
-    byte [] pagebuf;
-    int byteptr;
+    long want = (long) num_pages + Math.max(extent_size, runsize);
+    if (extent_size <= 0 || want > Integer.MAX_VALUE)
+      return false;
+    // Past the pages the first space-map pages describe, every
+    // bits_per_page-th page is a map page, so no added space holds a run
+    // that long.
+    if (runsize >= bits_per_page
+	&& num_pages >= (long) base_map_pages * bits_per_page)
+      return false;
     
-    for(int i=0; i< num_map_pages; ++i) {// start forloop01
-	
-      pgid.pid = 1 + i;
-      // Pin the space-map page.
-      
-      Page apage = new Page();
-      pinPage(pgid, apage, false /*read disk*/);
-      
-      pagebuf = apage.getpage();
-      byteptr = 0;
-      
-      // get the num of bits on current page
-      int num_bits_this_page = num_pages - i*bits_per_page;
-      if(num_bits_this_page > bits_per_page)
-	num_bits_this_page = bits_per_page;
-      
-      // Walk the page looking for a sequence of 0 bits of the appropriate
-      // length.  The outer loop steps through the page's bytes, the inner
-      // one steps through each byte's bits.
-      
-      for(; num_bits_this_page>0 
-	    && current_run_length < run_size; ++byteptr) {// start forloop02
-	  
-	
-	Integer intmask = new Integer(1);
-	Byte mask = new Byte(intmask.byteValue());
-	byte tmpmask = mask.byteValue();
-	
-	while (mask.intValue()!=0 && (num_bits_this_page>0)
-	       &&(current_run_length < run_size))
-	  
-	  {	      
-	    if( (pagebuf[byteptr] & tmpmask ) != 0)
-	      {
-		current_run_start += current_run_length + 1;
-		current_run_length = 0;
-	      }
-	    else ++current_run_length;
-	    
-	    
-	    tmpmask <<=1;
-	    mask = new Byte(tmpmask);
-	    --num_bits_this_page;
-	  }
-	
-	
-      }//end of forloop02
-      // Unpin the space-map page.
-      
-      unpinPage(pgid, false /*undirty*/);
-      
-    }// end of forloop01
+    int old_pages = num_pages;
+    int new_pages = (int) want;
+    int old_map_pages = map_pages(old_pages);
+    int new_map_pages = map_pages(new_pages);
+    
+    setFileLength(new_pages);
+    free_space = free_space.grow(new_pages);
+    extents.set(old_pages, new_pages - old_pages, 0);
+    num_pages = new_pages;
     
-    if(current_run_length >= run_size)
+    PageId pgid = new PageId();
+    Page apage = new Page();
+    for (int i = old_map_pages; i < new_map_pages; i++)
       {
-	start_page_num.pid = current_run_start;
-	set_bits(start_page_num, run_size, 1);
-	
-	return;
+	pgid.pid = map_page(i);
+	pinPage(pgid, apage, true /*zero-filled*/);
+	unpinPage(pgid, true /*dirty*/);
+	set_bits(pgid, 1, 1);
+	flushPage(pgid);
       }
+    if (new_map_pages > old_map_pages)
+      io.force();
     
-    throw new OutOfSpaceException(null, "No space left");
+    pgid.pid = 0;
+    pinPage(pgid, apage, false /*read disk*/);
+    DBFirstPage firstpg = new DBFirstPage();
+    firstpg.openPage(apage);
+    firstpg.setNumDBPages(new_pages);
+    unpinPage(pgid, true /*dirty*/);
+    flushPage(pgid);
+    io.force();
+    return true;
+  }
+  
+  /** Mark the run chosen by an allocation used, or report that there was
+   * no room for it.
+   */
+  private void place_run(PageId start_page_num, int runsize, int run_start)
+    throws OutOfSpaceException, 
+	   InvalidPageNumberException, 
+	   FileIOException, 
+	   DiskMgrException,
+           IOException {
+
+    if (run_start < 0)
+      throw new OutOfSpaceException(null, "No space left");
+    
+    start_page_num.pid = run_start;
+    set_bits(start_page_num, runsize, 1);
   }
   
   /** Deallocate a set of pages starting at the specified page number and
@@ -318,7 +907,7 @@ public class DB implements GlobalConst {
    * @exception IOException I/O errors
    * @exception DiskMgrException error caused by other layers
    */
-  public void deallocate_page(PageId start_page_num, int run_size)
+  public synchronized void deallocate_page(PageId start_page_num, int run_size)
     throws InvalidRunSizeException, 
 	   InvalidPageNumberException, 
 	   IOException, 
@@ -343,7 +932,7 @@ public class DB implements GlobalConst {
    * @exception DiskMgrException error caused by other layers
    * 
    */
-  public void deallocate_page(PageId start_page_num)
+  public synchronized void deallocate_page(PageId start_page_num)
     throws InvalidRunSizeException, 
 	   InvalidPageNumberException, 
 	   IOException, 
@@ -367,7 +956,7 @@ public class DB implements GlobalConst {
    * @exception IOException I/O errors
    * @exception DiskMgrException error caused by other layers
    */
-  public void add_file_entry(String fname, PageId start_page_num)
+  public synchronized void add_file_entry(String fname, PageId start_page_num)
     throws FileNameTooLongException, 
 	   InvalidPageNumberException, 
 	   InvalidRunSizeException,
@@ -384,91 +973,54 @@ public class DB implements GlobalConst {
     
     // Does the file already exist?  
     
-    if( get_file_entry(fname) != null) 
+    FileDirectory dir = directory();
+    if( dir.get(fname) != null) 
       throw new DuplicateEntryException(null, "DB fileentry already exists");
     
     Page apage = new Page();
-    
-    boolean found = false;
-    int free_slot = 0;
     PageId hpid = new PageId();
-    PageId nexthpid = new PageId(0);
     DBHeaderPage dp;
-    do
-      {// Start DO01
-	//  System.out.println("start do01");
-        hpid.pid = nexthpid.pid;
+    int free_slot;
+    
+    long where = dir.firstFree();
+    if (where >= 0)
+      {
+	hpid.pid = (int) (where >>> 32);
+	free_slot = (int) where;
 	
-	// Pin the header page
 	pinPage(hpid, apage, false /*read disk*/);
-        
-	// This complication is because the first page has a different
-        // structure from that of subsequent pages.
-	if(hpid.pid==0)
-	  {
-	    dp = new DBFirstPage();
-	    ((DBFirstPage) dp).openPage(apage);
-	  }
-	else
-	  {
-	    dp = new DBDirectoryPage();
-	    ((DBDirectoryPage) dp).openPage(apage);
-	  }
-	
-	nexthpid = dp.getNextPage();
-	int entry = 0;
-	
-	PageId tmppid = new PageId();
-	while(entry < dp.getNumOfEntries())
-	  {
-	    dp.getFileEntry(tmppid, entry);
-	    if(tmppid.pid == INVALID_PAGE)  break;
-	    entry ++;
-	  }
-	
-	if(entry < dp.getNumOfEntries())
-	  {
-	    free_slot = entry;
-	    found = true;
-	  }
-	else if (nexthpid.pid != INVALID_PAGE)
-	  {
-	    // We only unpin if we're going to continue looping.
-	    unpinPage(hpid, false /* undirty*/);
-	  }
-	
-      }while((nexthpid.pid != INVALID_PAGE)&&(!found)); // End of DO01
-    
-    // Have to add a new header page if possible.
-    if(!found)
+	dp = openHeaderPage(hpid, apage);
+      }
+    else
       {
-	try{
-	  allocate_page(nexthpid);
-	}
-	catch(Exception e){         //need rethrow an exception!!!!
-          unpinPage(hpid, false /* undirty*/);
-	  e.printStackTrace();
-	}
+	// Have to add a new header page, after the last one.
+	PageId nexthpid = new PageId();
+	allocate_page(nexthpid);
 	
-	// Set the next-page pointer on the previous directory page.
+	hpid.pid = dir.lastPage();
+	pinPage(hpid, apage, false /*read disk*/);
+	dp = openHeaderPage(hpid, apage);
 	dp.setNextPage(nexthpid);
 	unpinPage(hpid, true /* dirty*/);
 	
 	// Pin the newly-allocated directory page.
 	hpid.pid = nexthpid.pid;
-	
 	pinPage(hpid, apage, true/*no diskIO*/);
 	dp = new DBDirectoryPage(apage);
 	
+	dir.addPage(hpid.pid);
+	for (int entry = 0; entry < dp.getNumOfEntries(); entry++)
+	  dir.free(hpid.pid, entry);
 	free_slot = 0;
       }
     
     // At this point, "hpid" has the page id of the header page with the free
-    // slot; "pg" points to the pinned page; "dp" has the directory_page
+    // slot; "apage" is the pinned page; "dp" has the directory_page
     // pointer; "free_slot" is the entry number in the directory where we're
     // going to put the new file entry.
     
     dp.setFileEntry(start_page_num, fname, free_slot);
+    dir.put(fname, hpid.pid, free_slot, start_page_num.pid);
     
     unpinPage(hpid, true /* dirty*/);
     
@@ -484,75 +1036,32 @@ public class DB implements GlobalConst {
    * @exception InvalidPageNumberException invalid page number
    * @exception DiskMgrException error caused by other layers
    */
-  public void delete_file_entry(String fname)
+  public synchronized void delete_file_entry(String fname)
     throws FileEntryNotFoundException, 
 	   IOException,
 	   FileIOException,
 	   InvalidPageNumberException, 
 	   DiskMgrException {
     
-    Page apage = new Page();
-    boolean found = false;
-    int slot = 0;
-    PageId hpid = new PageId();
-    PageId nexthpid = new PageId(0);
-    PageId tmppid = new PageId();
-    DBHeaderPage dp;
-    
-    do
-      { // startDO01
-        hpid.pid = nexthpid.pid;
-	
-	// Pin the header page.
-	pinPage(hpid, apage, false/*read disk*/);
-
-	// This complication is because the first page has a different
-        // structure from that of subsequent pages.
-	if(hpid.pid==0)
-	  {
-	    dp = new DBFirstPage();
-	    ((DBFirstPage)dp).openPage(apage);
-	  }
-	else
-	  {
-	    dp = new DBDirectoryPage();
-	    ((DBDirectoryPage) dp).openPage(apage);
-	  }
-	nexthpid = dp.getNextPage();
-	
-	int entry = 0;
-	
-	String tmpname;
-	while(entry < dp.getNumOfEntries())
-	  {
-	    tmpname = dp.getFileEntry(tmppid, entry);
-	    
-	    if((tmppid.pid != INVALID_PAGE)&&
-	       (tmpname.compareTo(fname) == 0)) break; 
-	    entry ++;
-	  }
-	
-        if(entry < dp.getNumOfEntries())
-	  {
-	    slot = entry;
-	    found = true;
-	  }
-	else
-	  {
-	    unpinPage(hpid, false /*undirty*/);
-	  }
-	
-      } while((nexthpid.pid != INVALID_PAGE) && (!found)); // EndDO01
-    
-    if(!found)  // Entry not found - nothing deleted
+    FileDirectory dir = directory();
+    FileDirectory.Entry e = dir.get(fname);
+    if(e == null)  // Entry not found - nothing deleted
       throw new FileEntryNotFoundException(null, "DB file not found");
     
     // Have to delete record at hpnum:slot
-    tmppid.pid = INVALID_PAGE;
-    dp.setFileEntry(tmppid, "\0", slot);
+    Page apage = new Page();
+    PageId hpid = new PageId(e.hpid);
+    pinPage(hpid, apage, false/*read disk*/);
+    
+    DBHeaderPage dp = openHeaderPage(hpid, apage);
+    dp.setFileEntry(new PageId(INVALID_PAGE), "\0", e.slot);
     
     unpinPage(hpid, true /*dirty*/);
     
+    // Only once the header page no longer holds the entry is it dropped
+    // from the directory, so that a failure above leaves the two alike.
+    dir.remove(fname);
+    
   }
   
   /** Get the entry corresponding to the given file.
@@ -564,75 +1073,81 @@ public class DB implements GlobalConst {
    * @exception InvalidPageNumberException invalid page number
    * @exception DiskMgrException error caused by other layers
    */
-  public PageId get_file_entry(String name)
+  public synchronized PageId get_file_entry(String name)
     throws IOException,
 	   FileIOException,
 	   InvalidPageNumberException, 
 	   DiskMgrException {
 
+    FileDirectory.Entry e = directory().get(name);
+    if(e == null)  // Entry not found - don't post error, just fail.
+      return null;
+    
+    return new PageId(e.start);
+  }
+  
+  /** The directory, read from the header pages on first use.
+   */
+  private FileDirectory directory()
+    throws IOException,
+	   DiskMgrException {
+    
+    if (directory != null)
+      return directory;
+    
+    FileDirectory dir = new FileDirectory();
     Page apage = new Page();
-    boolean found = false;
-    int slot = 0;
     PageId hpid = new PageId();
     PageId nexthpid = new PageId(0);
+    PageId tmppid = new PageId();
     DBHeaderPage dp;
     
     do
-      {// Start DO01
-	
-	// System.out.println("get_file_entry do-loop01: "+name);
+      {
         hpid.pid = nexthpid.pid;
 	
         // Pin the header page.
-        pinPage(hpid, apage, false /*no diskIO*/);
+        pinPage(hpid, apage, false /*read disk*/);
 	
-	// This complication is because the first page has a different
-        // structure from that of subsequent pages.
-	if(hpid.pid==0)
-	  {
-	    dp = new DBFirstPage();
-	    ((DBFirstPage) dp).openPage(apage);
-	  }
-	else
-	  {
-	    dp = new DBDirectoryPage();
-	    ((DBDirectoryPage) dp).openPage(apage);
-	  }
+	dp = openHeaderPage(hpid, apage);
 	nexthpid = dp.getNextPage();
 	
-	int entry = 0;
-	PageId tmppid = new PageId();
-	String tmpname;
-	
-	while(entry < dp.getNumOfEntries())
-	  {
-	    tmpname = dp.getFileEntry(tmppid, entry);
-	    
-	    if((tmppid.pid != INVALID_PAGE)&&
-	       (tmpname.compareTo(name) == 0)) break; 
-	    entry ++;
-	  }
-	if(entry < dp.getNumOfEntries())
+	dir.addPage(hpid.pid);
+	for (int entry = 0; entry < dp.getNumOfEntries(); entry++)
 	  {
-	    slot =  entry;
-	    found = true;
+	    if (dp.getFilePage(entry) == INVALID_PAGE)
+	      dir.free(hpid.pid, entry);
+	    else
+	      {
+		String tmpname = dp.getFileEntry(tmppid, entry);
+		dir.put(tmpname, hpid.pid, entry, tmppid.pid);
+	      }
 	  }
 	
 	unpinPage(hpid, false /*undirty*/);
 	
-      }while((nexthpid.pid!=INVALID_PAGE)&&(!found));// End of DO01
+      }while(nexthpid.pid!=INVALID_PAGE);
     
-    if(!found)  // Entry not found - don't post error, just fail.
-      {    
-	//  System.out.println("entry NOT found");
-	return null;
-      }
-    
-    PageId startpid = new PageId();
-    dp.getFileEntry(startpid, slot);
-    return startpid;
+    directory = dir;
+    return dir;
   }
   
+  /** Open a pinned header page.  This complication is because the first
+   * page has a different structure from that of subsequent pages.
+   */
+  private DBHeaderPage openHeaderPage(PageId hpid, Page apage)
+    {
+      if(hpid.pid==0)
+	{
+	  DBFirstPage dp = new DBFirstPage();
+	  dp.openPage(apage);
+	  return dp;
+	}
+      DBDirectoryPage dp = new DBDirectoryPage();
+      dp.openPage(apage);
+      return dp;
+    }
+  
   /** Functions to return some characteristics of the database.
    */
   public String db_name(){return name;}
@@ -657,7 +1172,7 @@ public class DB implements GlobalConst {
     {
       
       System.out.println ("********  IN DUMP");
-      int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
+      int num_map_pages = map_pages(num_pages);
       int bit_number = 0;
       
       // This loop goes over each page in the space map.
@@ -667,7 +1182,7 @@ public class DB implements GlobalConst {
       for(int i=0; i< num_map_pages; i++)
 	{//start forloop01
 	  
-	  pgid.pid = 1 + i;   //space map starts at page1
+	  pgid.pid = map_page(i);   //space map starts at page1
 	  // Pin the space-map page.
 	  Page apage = new Page();
 	  pinPage(pgid, apage, false/*read disk*/);
@@ -679,36 +1194,31 @@ public class DB implements GlobalConst {
 	  if ( num_bits_this_page > bits_per_page )
 	    num_bits_this_page = bits_per_page;
 	  
-	  // Walk the page looking for a sequence of 0 bits of the appropriate
-	  // length.  The outer loop steps through the page's bytes, the inner
-	  // one steps through each byte's bits.
+	  // Print the page's bits, fetching them a word at a time.
 	  
-	  int pgptr = 0;
-	  byte [] pagebuf = apage.getpage();
-	  int mask;
-	  for ( ; num_bits_this_page > 0; pgptr ++)
-	    {// start forloop02
-	      
-	      for(mask=1;
-		  mask < 256 && num_bits_this_page > 0;
-		  mask=(mask<<1), --num_bits_this_page, ++bit_number )
-		{//start forloop03
-		  
-		  int bit = pagebuf[pgptr] & mask;
+	  ByteBuffer pagebuf = apage.getBuffer();
+	  StringBuilder line = new StringBuilder();
+	  for (int k = 0; num_bits_this_page > 0; k++)
+	    {
+	      long word = SpaceMap.getWord(pagebuf, k);
+	      int n = Math.min(64, num_bits_this_page);
+	      for (int b = 0; b < n; b++, ++bit_number)
+		{
 		  if((bit_number%10) == 0)
 		    if((bit_number%50) == 0)
 		      {
-			if(bit_number>0) System.out.println("\n");
-			System.out.print("\t" + bit_number +": ");
+			System.out.print(line);
+			line.setLength(0);
+			if(bit_number>0) line.append("\n\n");
+			line.append('\t').append(bit_number).append(": ");
 		      }
-		    else System.out.print(' ');
-		  
-		  if(bit != 0) System.out.print("1");
-		  else System.out.print("0");
+		    else line.append(' ');
 		  
-		}//end of forloop03
-	      
-	    }//end of forloop02
+		  line.append((char) ('0' + ((word >>> b) & 1)));
+		}
+	      num_bits_this_page -= n;
+	    }
+	  System.out.print(line);
 	  
 	  unpinPage(pgid, false /*undirty*/);
 	  
@@ -720,10 +1230,53 @@ public class DB implements GlobalConst {
     }
   
   private RandomAccessFile fp;
-  private int num_pages;
+  /** moves pages between fp and memory */
+  private PageIO io;
+  private boolean direct = Boolean.getBoolean("minibase.db.direct");
+  private boolean checksums = Boolean.getBoolean("minibase.db.checksums");
+  private boolean compress = Boolean.getBoolean("minibase.db.compress");
+  /** the open database's compressed storage, or null */
+  private CompressedIO compressed;
+  private String [] stripe_paths =
+    pathList(System.getProperty("minibase.db.stripes"));
+  private int stripe_unit = Integer.getInteger("minibase.db.stripeunit", 64);
+  /** the files the open database is striped over, besides fp */
+  private String [] stripe_files = new String[0];
+  /** the open database's striped storage, or null */
+  private StripedIO striped;
+  /** runs asynchronous requests; created on first use */
+  private volatile AsyncIO asyncIO;
+  private final Object asyncLock = new Object();
+  private volatile int num_pages;
   private String name;
+  /** how many space-map pages follow the first page; later ones go at
+   * the first page they describe */
+  private int base_map_pages;
+  private int extent_size = Integer.getInteger("minibase.db.extent", 1024);
+  /** where the free pages are; kept in step with the space map */
+  private FreeSpaceIndex free_space;
+  /** the free extents, by place and by size; kept in step likewise */
+  private ExtentMap extents;
+  private boolean best_fit = Boolean.getBoolean("minibase.db.bestfit");
+  /** the file directory; read from the header pages on first use */
+  private FileDirectory directory;
+  /** the space-map page set_bits is working on; used under the DB lock */
+  private final PageId map_pgid = new PageId();
+  private final Page map_page = new Page();
   
   
+  /** @return how many space-map pages a database of the given size has
+   */
+  private static int map_pages(int pages) {
+    return (pages + bits_per_page -1)/bits_per_page;
+  }
+  
+  /** @return the page holding the i'th page of the space map
+   */
+  private int map_page(int i) {
+    return (i < base_map_pages) ? 1 + i : i * bits_per_page;
+  }
+  
   /** Set runsize bits starting from start to value specified
    */
   private void set_bits( PageId start_page, int run_size, int bit )
@@ -735,76 +1288,29 @@ public class DB implements GlobalConst {
     if((start_page.pid<0) || (start_page.pid+run_size > num_pages))
       throw new InvalidPageNumberException(null, "Bad page number");
     
+    free_space.set(start_page.pid, run_size, bit);
+    extents.set(start_page.pid, run_size, bit);
+    
     // Locate the run within the space map.
-    int first_map_page = start_page.pid/bits_per_page + 1;
-    int last_map_page = (start_page.pid+run_size-1)/bits_per_page +1;
+    int first_map_page = start_page.pid/bits_per_page;
+    int last_map_page = (start_page.pid+run_size-1)/bits_per_page;
     int first_bit_no = start_page.pid % bits_per_page;
     
-    // The outer loop goes over all space-map pages we need to touch.
+    // The loop goes over all space-map pages we need to touch, flipping
+    // the piece of the run on each a word at a time.
     
-    for(PageId pgid = new PageId(first_map_page);
-	pgid.pid <= last_map_page;
-	pgid.pid = pgid.pid+1, first_bit_no = 0)
-      {//Start forloop01
-	
-        // Pin the space-map page.
-	Page pg = new Page();
-	
-	
-	pinPage(pgid, pg, false/*no diskIO*/);
-	
-	
-	byte [] pgbuf = pg.getpage();
-	
-	// Locate the piece of the run that fits on this page.
-	int first_byte_no = first_bit_no/8;
-	int first_bit_offset = first_bit_no%8;
-	int last_bit_no = first_bit_no + run_size -1;
-	
-	if(last_bit_no >= bits_per_page )
-	  last_bit_no = bits_per_page - 1;
-	
-        int last_byte_no = last_bit_no / 8;
-        
-	// This loop actually flips the bits on the current page.
-	int cur_posi = first_byte_no;
-	for(;cur_posi <= last_byte_no; ++cur_posi, first_bit_offset=0)
-	  {//start forloop02
-	    
-	    int max_bits_this_byte = 8 - first_bit_offset;
-	    int num_bits_this_byte = (run_size > max_bits_this_byte?
-				      max_bits_this_byte : run_size);
-	    
-            int imask =1;
-	    int temp;
-	    imask = ((imask << num_bits_this_byte) -1)<<first_bit_offset;
-	    Integer intmask = new Integer(imask);
-	    Byte mask = new Byte(intmask.byteValue());
-	    byte bytemask = mask.byteValue();
-	    
-	    if(bit==1)
-	      {
-	        temp = (pgbuf[cur_posi] | bytemask);
-	        intmask = new Integer(temp);
-		pgbuf[cur_posi] = intmask.byteValue();
-	      }
-	    else
-	      {
-		
-		temp = pgbuf[cur_posi] & (255^bytemask);
-	        intmask = new Integer(temp);
-		pgbuf[cur_posi] = intmask.byteValue();
-	      }
-	    run_size -= num_bits_this_byte;
-	    
-	  }//end of forloop02
-	
-	// Unpin the space-map page.
+    for(int i = first_map_page; i <= last_map_page; i++, first_bit_no = 0)
+      {
+	map_pgid.pid = map_page(i);
+	pinPage(map_pgid, map_page, false/*read disk*/);
 	
-	unpinPage(pgid, true /*dirty*/);
+	int num_bits_this_page = Math.min(run_size, bits_per_page - first_bit_no);
+	SpaceMap.setRange(map_page.getBuffer(), first_bit_no,
+			  num_bits_this_page, bit);
+	run_size -= num_bits_this_page;
 	
-      }//end of forloop01
-    
+	unpinPage(map_pgid, true /*dirty*/);
+      }
   }
 
   /**
@@ -823,6 +1329,22 @@ public class DB implements GlobalConst {
 
   } // end of pinPage
 
+  /**
+   * short cut to access the flushPage function in bufmgr package.
+   * @see bufmgr.flushPage
+   */
+  private void flushPage(PageId pageno)
+    throws DiskMgrException {
+
+    try {
+      SystemDefs.JavabaseBM.flushPage(pageno);
+    }
+    catch (Exception e) {
+      throw new DiskMgrException(e,"DB.java: flushPage() failed");
+    }
+
+  } // end of flushPage
+
   /**
    * short cut to access the unpinPage function in bufmgr package.
    * @see bufmgr.unpinPage
@@ -848,7 +1370,10 @@ public class DB implements GlobalConst {
 interface PageUsedBytes
 {
   int DIR_PAGE_USED_BYTES = 8 + 8;
-  int FIRST_PAGE_USED_BYTES = DIR_PAGE_USED_BYTES + 4;
+  /** the directory's, and the first page's trailer, from its lowest field
+   * to the end of the page */
+  int FIRST_PAGE_USED_BYTES = DIR_PAGE_USED_BYTES
+    + (GlobalConst.MINIBASE_PAGESIZE - DBFirstPage.STRIPE_UNIT);
 }
 
 /** Super class of the directory page and first page
@@ -860,7 +1385,7 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
   protected static final int START_FILE_ENTRIES = 8;
   protected static final int SIZE_OF_FILE_ENTRY = 4 + MAX_NAME + 2;
   
-  protected byte [] data;
+  protected ByteBuffer data;
   
   /**
    * Default constructor
@@ -877,7 +1402,7 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
   public DBHeaderPage(Page page, int pageusedbytes)
     throws IOException
     {
-      data = page.getpage();
+      data = page.getBuffer();
       PageId pageno = new PageId();
       pageno.pid = INVALID_PAGE;
       setNextPage(pageno);
@@ -899,7 +1424,7 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
   public void setNextPage(PageId pageno)
     throws IOException
     {
-      Convert.setIntValue(pageno.pid, NEXT_PAGE, data);
+      data.putInt(NEXT_PAGE, pageno.pid);
     }
   
   /**
@@ -911,7 +1436,7 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
     throws IOException
     {
       PageId nextPage = new PageId();
-      nextPage.pid= Convert.getIntValue(NEXT_PAGE, data);
+      nextPage.pid= data.getInt(NEXT_PAGE);
       return nextPage;
     }
   
@@ -924,7 +1449,7 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
   protected void setNumOfEntries(int numEntries) 
     throws IOException	
     { 
-      Convert.setIntValue (numEntries, NUM_OF_ENTRIES, data);
+      data.putInt(NUM_OF_ENTRIES, numEntries);
     }
   
   /**
@@ -935,7 +1460,7 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
   public int getNumOfEntries()
     throws IOException
     {
-      return Convert.getIntValue(NUM_OF_ENTRIES, data);
+      return data.getInt(NUM_OF_ENTRIES);
     }
   
   /**
@@ -947,7 +1472,7 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
   private void initFileEntry(int empty, int entryNo)
     throws IOException {
     int position = START_FILE_ENTRIES + entryNo * SIZE_OF_FILE_ENTRY;
-    Convert.setIntValue (empty, position, data);
+    data.putInt(position, empty);
   } 
   
   /**
@@ -961,8 +1486,17 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
     throws IOException {
 
     int position = START_FILE_ENTRIES + entryNo * SIZE_OF_FILE_ENTRY;
-    Convert.setIntValue (pageNo.pid, position, data);
-    Convert.setStrValue (fname, position +4, data);	
+    data.putInt(position, pageNo.pid);
+    setStrValue (fname, position +4);	
+  }
+  
+  /**
+   * return the page of a file entry, without reading its name
+   * @param entryNo the file entry number
+   * @return the first page of the file, or INVALID_PAGE for a free entry
+   */
+  public int getFilePage(int entryNo) {
+    return data.getInt(START_FILE_ENTRIES + entryNo * SIZE_OF_FILE_ENTRY);
   }
   
   /**
@@ -976,8 +1510,41 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
     throws IOException {
 
     int position = START_FILE_ENTRIES + entryNo * SIZE_OF_FILE_ENTRY;
-    pageNo.pid = Convert.getIntValue (position, data);
-    return (Convert.getStrValue (position+4, data, MAX_NAME + 2));
+    pageNo.pid = data.getInt(position);
+    return (getStrValue (position+4, MAX_NAME + 2));
+  }
+  
+  /**
+   * write a string in the format of Convert.setStrValue
+   * @param value the string
+   * @param position offset in the page
+   * @exception IOException I/O errors
+   */
+  private void setStrValue(String value, int position)
+    throws IOException {
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new DataOutputStream(out).writeUTF(value);
+    ByteBuffer dst = data.duplicate();
+    dst.position(position);
+    dst.put(out.toByteArray());
+  }
+  
+  /**
+   * read a string in the format of Convert.getStrValue
+   * @param position offset in the page
+   * @param length number of bytes the string may occupy
+   * @return the string
+   * @exception IOException I/O errors
+   */
+  private String getStrValue(int position, int length)
+    throws IOException {
+
+    byte [] bytes = new byte[length];
+    ByteBuffer src = data.duplicate();
+    src.position(position);
+    src.get(bytes);
+    return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
   }
   
 }
@@ -988,6 +1555,14 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
 class DBFirstPage extends DBHeaderPage {
 
   protected static final int NUM_DB_PAGE = MINIBASE_PAGESIZE -4;
+  protected static final int NUM_MAP_PAGE = MINIBASE_PAGESIZE -8;
+  protected static final int MAP_PAGE_MAGIC = MINIBASE_PAGESIZE -12;
+  protected static final int NUM_STRIPES = MINIBASE_PAGESIZE -16;
+  /** the lowest field; FIRST_PAGE_USED_BYTES keeps entries above it */
+  protected static final int STRIPE_UNIT = MINIBASE_PAGESIZE -20;
+  
+  /** marks a first page that records its number of space-map pages */
+  private static final int MAGIC = 0x4d42534d;
   
   /**
    * Default construtor 
@@ -1010,7 +1585,7 @@ class DBFirstPage extends DBHeaderPage {
    */
   public void openPage(Page page)
     {
-      data = page.getpage();
+      data = page.getBuffer();
     }
   
   
@@ -1022,7 +1597,7 @@ class DBFirstPage extends DBHeaderPage {
   public void setNumDBPages(int num)
     throws IOException	
     {
-      Convert.setIntValue (num, NUM_DB_PAGE, data);
+      data.putInt(NUM_DB_PAGE, num);
     }
   
   /**
@@ -1033,9 +1608,61 @@ class DBFirstPage extends DBHeaderPage {
   public int getNumDBPages()
     throws IOException {
 
-    return (Convert.getIntValue(NUM_DB_PAGE, data));
+    return (data.getInt(NUM_DB_PAGE));
   }
   
+  /**
+   * set the number of space-map pages following the first page
+   * @param num the number of space-map pages
+   */
+  public void setNumMapPages(int num)
+    {
+      data.putInt(MAP_PAGE_MAGIC, MAGIC);
+      data.putInt(NUM_MAP_PAGE, num);
+    }
+  
+  /**
+   * return the number of space-map pages following the first page
+   * @return number of space-map pages, or -1 if the page does not say
+   */
+  public int getNumMapPages()
+    {
+      if (data.getInt(MAP_PAGE_MAGIC) != MAGIC)
+	return -1;
+      return data.getInt(NUM_MAP_PAGE);
+    }
+  
+  /**
+   * set how the DB's pages are striped over files
+   * @param num the number of files
+   * @param unit the number of consecutive pages kept in one file
+   */
+  public void setStriping(int num, int unit)
+    {
+      data.putInt(NUM_STRIPES, num);
+      data.putInt(STRIPE_UNIT, unit);
+    }
+  
+  /**
+   * return the number of files the DB's pages are striped over
+   * @return number of files; 1 for a DB written before striping, whose
+   *         first page holds 0 here
+   */
+  public int getNumStripes()
+    {
+      int num = data.getInt(NUM_STRIPES);
+      return (num > 0) ? num : 1;
+    }
+  
+  /**
+   * return the number of consecutive pages kept in one stripe file
+   * @return pages per stripe unit
+   */
+  public int getStripeUnit()
+    {
+      return data.getInt(STRIPE_UNIT);
+    }
+  
 }
 
 /**
@@ -1064,7 +1691,7 @@ class DBDirectoryPage extends DBHeaderPage  { //implements PageUsedBytes
    */
   public void openPage(Page page)
     {
-      data = page.getpage();
+      data = page.getBuffer();
     }
   
 }
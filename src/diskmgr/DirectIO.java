@@ -0,0 +1,138 @@
+/* File DirectIO.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Page I/O that bypasses the operating system's page cache (O_DIRECT), so
+ * pages are cached once, in the buffer pool, and I/O latency does not
+ * depend on what the kernel happens to cache.
+ * <br>
+ * Direct transfers must cover whole file system blocks, from and to
+ * block-aligned memory.  Each transfer therefore goes through a
+ * per-thread aligned buffer spanning the blocks that hold the page.  When
+ * a block holds several pages, writing one page means reading its block,
+ * changing the page and writing the block back; writes within one block
+ * are serialized for this.
+ */
+class DirectIO extends PageIO {
+
+  private static final int LOCKS = 64;
+
+  private final FileChannel channel;
+  private final int blockSize;
+  private final Object [] blockLocks = new Object[LOCKS];
+
+  private final ThreadLocal<ByteBuffer> bounce = new ThreadLocal<ByteBuffer>() {
+    protected ByteBuffer initialValue () {
+      return ByteBuffer.allocateDirect(span() + blockSize)
+	.alignedSlice(blockSize);
+    }
+  };
+
+  /**
+   * Open a file for direct I/O.
+   *
+   * @exception IOException the file system does not support direct I/O
+   */
+  DirectIO (String fname) throws IOException {
+    Path path = Paths.get(fname);
+    OpenOption direct;
+    try {
+      direct = com.sun.nio.file.ExtendedOpenOption.DIRECT;
+    }
+    catch (LinkageError e) {
+      throw new IOException("direct I/O is not available", e);
+    }
+    long bs = Files.getFileStore(path).getBlockSize();
+    if (bs <= 0 || bs > (1 << 20) || (bs & (bs - 1)) != 0)
+      throw new IOException("unusable block size " + bs);
+    blockSize = (int)bs;
+    try {
+      channel = FileChannel.open(path, StandardOpenOption.READ,
+				 StandardOpenOption.WRITE, direct);
+    }
+    catch (UnsupportedOperationException e) {
+      throw new IOException("direct I/O is not supported", e);
+    }
+    for (int i = 0; i < LOCKS; i++)
+      blockLocks[i] = new Object();
+  }
+
+  /** @return the length of the aligned span around one page */
+  private int span () {
+    return Math.max(blockSize, MINIBASE_PAGESIZE) + blockSize;
+  }
+
+  void read (int pid, ByteBuffer buffer) throws IOException {
+    long pos = (long)pid * MINIBASE_PAGESIZE;
+    long start = pos & -(long)blockSize;
+    ByteBuffer b = fill(start, pos + MINIBASE_PAGESIZE);
+    ByteBuffer dst = buffer.duplicate();
+    dst.clear();
+    dst.put(b.slice((int)(pos - start), MINIBASE_PAGESIZE));
+  }
+
+  void write (int pid, ByteBuffer buffer) throws IOException {
+    long pos = (long)pid * MINIBASE_PAGESIZE;
+    long start = pos & -(long)blockSize;
+    long end = (pos + MINIBASE_PAGESIZE + blockSize - 1) & -(long)blockSize;
+    ByteBuffer src = buffer.duplicate();
+    src.clear();
+    if (start == pos && end == pos + MINIBASE_PAGESIZE) {
+      // The page is whole blocks: no other page shares them.
+      ByteBuffer b = bounce.get();
+      b.clear();
+      b.put(src);
+      drain(b, start, MINIBASE_PAGESIZE);
+      return;
+    }
+    synchronized (blockLocks[(int)((start / blockSize) % LOCKS)]) {
+      ByteBuffer b = fill(start, end);
+      b.put((int)(pos - start), src, 0, MINIBASE_PAGESIZE);
+      drain(b, start, (int)(end - start));
+    }
+  }
+
+  /**
+   * Read the blocks from start up to the block holding end into the
+   * calling thread's aligned buffer.  Bytes past the end of the file read
+   * as zeroes.
+   */
+  private ByteBuffer fill (long start, long end) throws IOException {
+    int length = (int)(((end + blockSize - 1) & -(long)blockSize) - start);
+    ByteBuffer b = bounce.get();
+    b.clear().limit(length);
+    while (b.hasRemaining()) {
+      // A direct read comes up short only at the end of the file, and
+      // cannot go on from an unaligned position.
+      int n = channel.read(b, start + b.position());
+      if (n <= 0 || (b.position() & (blockSize - 1)) != 0) break;
+    }
+    while (b.hasRemaining())
+      b.put((byte)0);
+    return b.clear();
+  }
+
+  /**
+   * Write length bytes of the calling thread's aligned buffer at start.
+   */
+  private void drain (ByteBuffer b, long start, int length)
+    throws IOException {
+    b.clear().limit(length);
+    while (b.hasRemaining())
+      channel.write(b, start + b.position());
+  }
+
+  void force () throws IOException {
+    channel.force(false);
+  }
+
+  void close () throws IOException {
+    channel.close();
+  }
+}
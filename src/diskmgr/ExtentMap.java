@@ -0,0 +1,158 @@
+/* File ExtentMap.java */
+
+package diskmgr;
+
+import java.util.*;
+
+/**
+ * The free extents of a database: its maximal runs of free pages, indexed
+ * both by first page and by length.  Like the FreeSpaceIndex it is built
+ * from the space map when the database is opened and told of every change
+ * to it, and it chooses where runs go in ways first fit cannot:
+ * <ul>
+ * <li>best fit, the shortest extent that holds the run, which leaves the
+ *     long extents whole for long runs;
+ * <li>near a given page, the extent closest to that page, so that related
+ *     pages are allocated next to each other.
+ * </ul>
+ * Freeing a run merges it with any free extents on either side, so the
+ * extents stay maximal.
+ * <p>
+ * An ExtentMap is not synchronized; the DB serializes space-map changes.
+ */
+class ExtentMap {
+
+  /** how many extents on either side of the page a near allocation
+   * examines before falling back to best fit */
+  static final int NEAR_PROBES = 64;
+
+  /** first page of each extent, to its length */
+  private final TreeMap<Integer,Integer> byStart = new TreeMap<Integer,Integer>();
+  /** each extent, as length << 32 | first page */
+  private final TreeSet<Long> bySize = new TreeSet<Long>();
+
+  /**
+   * Create a map with no free extents.
+   */
+  ExtentMap () { }
+
+  /**
+   * Create the map of the free extents of an index.
+   */
+  ExtentMap (FreeSpaceIndex index) {
+    for (int s = index.nextFree(0); s >= 0; ) {
+      int e = index.nextUsed(s);
+      add(s, e - s);
+      s = index.nextFree(e);
+    }
+  }
+
+  /**
+   * Choose the shortest free extent holding a run of the given length.
+   *
+   * @return the first page of the run, or -1 if no extent is long enough.
+   */
+  int bestFit (int run_size) {
+    if (run_size <= 0)
+      return 0;
+    Long fit = bySize.ceiling((long) run_size << 32);
+    return (fit == null) ? -1 : (int) (long) fit;
+  }
+
+  /**
+   * Choose a place for a run of the given length close to a page.  If the
+   * page and those after it are free the run starts there; otherwise the
+   * run goes at the start of the nearest long enough extent after the
+   * page, or at the end of the nearest one before it, whichever is closer.
+   *
+   * @return the first page of the run, or -1 if no extent is long enough.
+   */
+  int near (int run_size, int pid) {
+    if (run_size <= 0)
+      return 0;
+
+    int after = -1, before = -1;
+    Map.Entry<Integer,Integer> e = byStart.floorEntry(pid);
+    if (e != null && pid + run_size <= e.getKey() + e.getValue())
+      return pid;
+
+    Iterator<Map.Entry<Integer,Integer>> up =
+      byStart.tailMap(pid, false).entrySet().iterator();
+    for (int i = 0; i < NEAR_PROBES && up.hasNext(); i++) {
+      e = up.next();
+      if (e.getValue() >= run_size) {
+	after = e.getKey();
+	break;
+      }
+    }
+    Iterator<Map.Entry<Integer,Integer>> down =
+      byStart.headMap(pid, true).descendingMap().entrySet().iterator();
+    for (int i = 0; i < NEAR_PROBES && down.hasNext(); i++) {
+      e = down.next();
+      if (e.getValue() >= run_size) {
+	// The run ends where the extent does: if the extent holds pid, the
+	// pages it has after pid are too few to start the run at pid.
+	before = e.getKey() + e.getValue() - run_size;
+	break;
+      }
+    }
+
+    if (after < 0 && before < 0)
+      return bestFit(run_size);
+    if (after < 0)
+      return before;
+    if (before < 0)
+      return after;
+    return (after - pid <= pid - before) ? after : before;
+  }
+
+  /**
+   * Mark a run of pages used or free.
+   *
+   * @param start the first page of the run
+   * @param run_size the number of pages
+   * @param bit 1 to mark the pages used, 0 to mark them free
+   */
+  void set (int start, int run_size, int bit) {
+    if (run_size <= 0)
+      return;
+    int end = start + run_size;
+    int lo = start, hi = end;
+
+    // Take out every extent the run overlaps, and when freeing, those it
+    // touches, keeping what lies outside the run.
+    Integer s = byStart.floorKey(start);
+    if (s == null)
+      s = byStart.ceilingKey(start);
+    while (s != null && s <= end) {
+      int e = s + byStart.get(s);
+      Integer next = byStart.higherKey(s);
+      if (e > start || (bit == 0 && e == start)) {
+	remove(s, e - s);
+	if (bit == 0) {
+	  lo = Math.min(lo, s);
+	  hi = Math.max(hi, e);
+	}
+	else {
+	  if (s < start)
+	    add(s, start - s);
+	  if (e > end)
+	    add(end, e - end);
+	}
+      }
+      s = next;
+    }
+    if (bit == 0)
+      add(lo, hi - lo);
+  }
+
+  private void add (int start, int length) {
+    byStart.put(start, length);
+    bySize.add((long) length << 32 | start);
+  }
+
+  private void remove (int start, int length) {
+    byStart.remove(start);
+    bySize.remove((long) length << 32 | start);
+  }
+}
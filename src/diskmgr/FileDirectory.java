@@ -0,0 +1,111 @@
+/* File FileDirectory.java */
+
+package diskmgr;
+
+import java.util.*;
+
+/**
+ * An in-memory copy of a database's file directory, so that a file entry
+ * can be found, added or deleted without walking the chain of header
+ * pages.  The header pages remain the record of the directory; the DB
+ * reads them into a FileDirectory on first use and writes every change
+ * through to them.
+ * <p>
+ * Names are hashed to their entries.  The free slots are kept in the
+ * order of the header page chain, so that a new entry goes in the first
+ * free slot, as it would if the chain were searched.
+ * <p>
+ * A FileDirectory is not synchronized; the DB serializes directory
+ * changes.
+ */
+class FileDirectory {
+
+  /** Where a file's entry is, and the file's first page. */
+  static final class Entry {
+    final int hpid;
+    final int slot;
+    final int start;
+
+    Entry (int hpid, int slot, int start) {
+      this.hpid = hpid;
+      this.slot = slot;
+      this.start = start;
+    }
+  }
+
+  private final HashMap<String,Entry> entries = new HashMap<String,Entry>();
+  /** the header pages, in chain order */
+  private final ArrayList<Integer> pages = new ArrayList<Integer>();
+  /** free slots, as position of the page in the chain << 32 | slot */
+  private final TreeSet<Long> free = new TreeSet<Long>();
+  /** position in the chain of each header page */
+  private final HashMap<Integer,Integer> position = new HashMap<Integer,Integer>();
+
+  /**
+   * Append a header page to the chain; none of its slots are free until
+   * free() is called for them.
+   */
+  void addPage (int hpid) {
+    position.put(hpid, pages.size());
+    pages.add(hpid);
+  }
+
+  /**
+   * @return the last header page in the chain.
+   */
+  int lastPage () {
+    return pages.get(pages.size() - 1);
+  }
+
+  /**
+   * @return the entry for a file, or null if there is none.
+   */
+  Entry get (String name) {
+    return entries.get(name);
+  }
+
+  /**
+   * Record that a slot holds a file's entry.  If the name is already in
+   * the directory the first entry for it is kept, as a search of the
+   * chain would find that one.
+   */
+  void put (String name, int hpid, int slot, int start) {
+    free.remove(key(hpid, slot));
+    if (!entries.containsKey(name))
+      entries.put(name, new Entry(hpid, slot, start));
+  }
+
+  /**
+   * Forget a file's entry and free its slot.
+   *
+   * @return the entry, or null if there was none.
+   */
+  Entry remove (String name) {
+    Entry e = entries.remove(name);
+    if (e != null)
+      free(e.hpid, e.slot);
+    return e;
+  }
+
+  /**
+   * Record that a slot is free.
+   */
+  void free (int hpid, int slot) {
+    free.add(key(hpid, slot));
+  }
+
+  /**
+   * @return the first free slot, as hpid << 32 | slot, or -1 if every
+   *         slot is in use.
+   */
+  long firstFree () {
+    if (free.isEmpty())
+      return -1;
+    long k = free.first();
+    return (long) pages.get((int) (k >>> 32)) << 32 | (k & 0xffffffffL);
+  }
+
+  private long key (int hpid, int slot) {
+    return (long) position.get(hpid) << 32 | slot;
+  }
+}
@@ -0,0 +1,230 @@
+/* File FreeSpaceIndex.java */
+
+package diskmgr;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An in-memory index of the free pages of a database, so that a run of
+ * free pages can be found without reading the space map.  The space map
+ * on disk remains the record of which pages are in use; the index is
+ * built from it when the database is opened and is told of every change
+ * made to it.
+ * <p>
+ * The index keeps a copy of the space map as 64-bit words, one bit per
+ * page, and a segment tree over the words.  Each node of the tree holds,
+ * for its stretch of pages, the number of free pages at its start, at its
+ * end, and in its longest free run.  The first run of n free pages is
+ * found by descending the tree, in O(log pages) steps; marking a run of
+ * pages costs O(pages/64 + log pages).
+ * <p>
+ * A FreeSpaceIndex is not synchronized; the DB serializes space-map
+ * changes.
+ */
+class FreeSpaceIndex {
+
+  private final int num_pages;
+  /** bit i of word w is set if page w*64+i is in use */
+  private final long [] words;
+  /** number of leaves; a power of two, at least words.length */
+  private final int leaves;
+  /** per node, numbered from 1: free pages at the start, at the end,
+   * and in the longest run */
+  private final int [] pre, suf, max;
+
+  /**
+   * Create an index of a database of the given size with every page free.
+   */
+  FreeSpaceIndex (int num_pages) {
+    this.num_pages = num_pages;
+    int nwords = (num_pages + 63) >>> 6;
+    words = new long[nwords];
+    leaves = Integer.highestOneBit(Math.max(1, 2 * nwords - 1));
+    pre = new int[2 * leaves];
+    suf = new int[2 * leaves];
+    max = new int[2 * leaves];
+
+    // Pages past the end of the database are never free.
+    if ((num_pages & 63) != 0)
+      words[nwords - 1] = -1L << (num_pages & 63);
+    for (int w = 0; w < nwords; w++)
+      leaf(w);
+    for (int n = leaves - 1; n >= 1; n--)
+      join(n, 32 * (leaves >>> (31 - Integer.numberOfLeadingZeros(n))));
+  }
+
+  /**
+   * Make an index of the same database grown to the given size, in which
+   * the added pages are free.
+   */
+  FreeSpaceIndex grow (int new_pages) {
+    FreeSpaceIndex g = new FreeSpaceIndex(new_pages);
+    for (int w = 0; w < words.length; w++) {
+      long used = words[w];
+      if (w == words.length - 1 && (num_pages & 63) != 0)
+	used &= ~(-1L << (num_pages & 63));
+      g.words[w] |= used;
+    }
+    g.update(0, g.words.length - 1);
+    return g;
+  }
+
+  /**
+   * Copy one page of the space map into the index.
+   *
+   * @param map_page which space-map page this is, counting from 0
+   * @param buf the space-map page, in which bit b of byte j describes
+   *        page map_page*bits_per_page + 8*j + b
+   * @param bits_per_page the number of pages each space-map page describes
+   */
+  void load (int map_page, ByteBuffer buf, int bits_per_page) {
+    int first = map_page * bits_per_page;
+    int last = Math.min(num_pages, first + bits_per_page);
+    for (int p = first; p < last; p += 64) {
+      long w = SpaceMap.getWord(buf, (p - first) >>> 6);
+      if (last - p < 64)
+	w |= -1L << (last - p);
+      words[p >>> 6] = w;
+    }
+    update(first >>> 6, (last - 1) >>> 6);
+  }
+
+  /**
+   * Find the first run of free pages of the given length.
+   *
+   * @return the first page of the run, or -1 if there is none.
+   */
+  int find (int run_size) {
+    if (run_size <= 0)
+      return 0;
+    if (max[1] < run_size)
+      return -1;
+
+    int n = 1;
+    int start = 0;			// first page of node n
+    int half = 32 * leaves;		// pages under each child of node n
+    for (; n < leaves; half >>>= 1) {
+      int l = 2 * n, r = l + 1;
+      if (max[l] >= run_size)
+	n = l;
+      else if (suf[l] + pre[r] >= run_size)
+	return start + half - suf[l];
+      else {
+	n = r;
+	start += half;
+      }
+    }
+    return start + firstRun(words[n - leaves], run_size);
+  }
+
+  /**
+   * @return the first free page at or after from, or -1 if there is none.
+   */
+  int nextFree (int from) {
+    for (int w = from >>> 6; w < words.length; w++) {
+      long free = ~words[w];
+      if (w == from >>> 6)
+	free &= -1L << (from & 63);
+      if (free != 0)
+	return (w << 6) + Long.numberOfTrailingZeros(free);
+    }
+    return -1;
+  }
+
+  /**
+   * @return the first page in use at or after from, or the number of
+   *         pages if there is none.
+   */
+  int nextUsed (int from) {
+    for (int w = from >>> 6; w < words.length; w++) {
+      long used = words[w];
+      if (w == from >>> 6)
+	used &= -1L << (from & 63);
+      if (used != 0)
+	return Math.min(num_pages, (w << 6) + Long.numberOfTrailingZeros(used));
+    }
+    return num_pages;
+  }
+
+  /**
+   * Mark a run of pages used or free.
+   *
+   * @param start the first page of the run
+   * @param run_size the number of pages
+   * @param bit 1 to mark the pages used, 0 to mark them free
+   */
+  void set (int start, int run_size, int bit) {
+    if (run_size <= 0)
+      return;
+    int end = start + run_size;		// exclusive
+    int first = start >>> 6;
+    int last = (end - 1) >>> 6;
+    for (int w = first; w <= last; w++) {
+      long mask = -1L;
+      if (w == first)
+	mask &= -1L << (start & 63);
+      if (w == last && (end & 63) != 0)
+	mask &= -1L >>> (64 - (end & 63));
+      if (bit == 1)
+	words[w] |= mask;
+      else
+	words[w] &= ~mask;
+    }
+    update(first, last);
+  }
+
+  /**
+   * Recompute the leaves for words first..last and the nodes above them.
+   */
+  private void update (int first, int last) {
+    for (int w = first; w <= last; w++)
+      leaf(w);
+    int lo = (first + leaves) >>> 1, hi = (last + leaves) >>> 1;
+    for (int half = 64; lo >= 1; lo >>>= 1, hi >>>= 1, half <<= 1)
+      for (int n = lo; n <= hi; n++)
+	join(n, half);
+  }
+
+  /** Summarize word w into its leaf. */
+  private void leaf (int w) {
+    int n = leaves + w;
+    long used = words[w];
+    pre[n] = Long.numberOfTrailingZeros(used);
+    suf[n] = Long.numberOfLeadingZeros(used);
+
+    // Walk the runs of free (zero) bits.
+    int longest = 0;
+    long free = ~used;
+    while (free != 0) {
+      free >>>= Long.numberOfTrailingZeros(free);
+      int len = Long.numberOfTrailingZeros(~free);
+      if (len > longest)
+	longest = len;
+      free = (len == 64) ? 0 : free >>> len;
+    }
+    max[n] = longest;
+  }
+
+  /** Combine the children of node n, each covering half pages. */
+  private void join (int n, int half) {
+    int l = 2 * n, r = l + 1;
+    pre[n] = (pre[l] == half) ? half + pre[r] : pre[l];
+    suf[n] = (suf[r] == half) ? half + suf[l] : suf[r];
+    max[n] = Math.max(Math.max(max[l], max[r]), suf[l] + pre[r]);
+  }
+
+  /**
+   * The position of the first run of run_size zero bits in a word known
+   * to hold one.
+   */
+  private static int firstRun (long used, int run_size) {
+    // Bit i of free ends up set if bits i .. i+run_size-1 are all free.
+    long free = ~used;
+    for (int have = 1; have < run_size; ) {
+      int s = Math.min(have, run_size - have);
+      free &= free >>> s;
+      have += s;
+    }
+    return Long.numberOfTrailingZeros(free);
+  }
+}
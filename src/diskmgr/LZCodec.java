@@ -0,0 +1,196 @@
+/* File LZCodec.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * A byte-oriented LZ77 codec for pages, in the manner of LZ4: fast to
+ * compress and faster to decompress, for a modest ratio.  The compressed
+ * form is a series of sequences, each a token byte, literal bytes copied
+ * as they are, and a match: a copy of bytes already produced, given by
+ * its distance back and its length.  The token's high nibble is the
+ * number of literals and its low nibble the match length less MIN_MATCH;
+ * a nibble of 15 is continued in following bytes, each added in until one
+ * is less than 255.  The distance is two bytes, low byte first.  The last
+ * sequence has literals only, and ends the input.
+ * <br>
+ * Matches are found through a hash table of the last position at which
+ * each four-byte string was seen; the caller supplies the table, so that
+ * nothing is allocated per page.
+ * <br>
+ * CompressedIO stores pages with it; it is public so that it can be used,
+ * and tested, apart from the disk manager.
+ */
+public final class LZCodec {
+
+  /** shortest match worth encoding */
+  public static final int MIN_MATCH = 4;
+  private static final int HASH_BITS = 10;
+  /** entries in the match-finding table */
+  public static final int TABLE_SIZE = 1 << HASH_BITS;
+
+  private static final int MAX_DISTANCE = 0xffff;
+
+  private LZCodec () { }
+
+  /**
+   * Compress bytes src[0..n) into dst.
+   *
+   * @param table a table of TABLE_SIZE entries, overwritten
+   * @return the compressed length, or -1 if it would not fit in dst
+   */
+  public static int compress (byte [] src, int n, byte [] dst, int [] table) {
+    Arrays.fill(table, -1);
+    int max = dst.length;
+    int ip = 0, anchor = 0, op = 0;
+    while (ip + MIN_MATCH <= n) {
+      int seq = readInt(src, ip);
+      int h = hash(seq);
+      int ref = table[h];
+      table[h] = ip;
+      if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+	// Step faster through bytes that do not compress.
+	ip += 1 + ((ip - anchor) >>> 6);
+	continue;
+      }
+      int len = MIN_MATCH;
+      while (ip + len < n && src[ref + len] == src[ip + len])
+	len++;
+      op = sequence(src, anchor, ip - anchor, ip - ref, len, dst, op, max);
+      if (op < 0)
+	return -1;
+      ip += len;
+      anchor = ip;
+    }
+    return sequence(src, anchor, n - anchor, 0, 0, dst, op, max);
+  }
+
+  /**
+   * Decompress src[off..off+len) into dst[0..n).
+   *
+   * @exception IOException the input is not the compressed form of n
+   *            bytes
+   */
+  public static void decompress (byte [] src, int off, int len,
+				 byte [] dst, int n)
+    throws IOException {
+
+    int ip = off, end = off + len, op = 0;
+    for (;;) {
+      if (ip >= end)
+	throw corrupt();
+      int token = src[ip++] & 0xff;
+
+      int lit = token >>> 4;
+      if (lit == 15) {
+	int b;
+	do {
+	  if (ip >= end)
+	    throw corrupt();
+	  b = src[ip++] & 0xff;
+	  lit += b;
+	} while (b == 255);
+      }
+      if (lit > end - ip || lit > n - op)
+	throw corrupt();
+      copy(src, ip, dst, op, lit);
+      ip += lit;
+      op += lit;
+      if (ip == end)
+	break;
+
+      if (end - ip < 2)
+	throw corrupt();
+      int dist = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+      ip += 2;
+      int m = token & 15;
+      if (m == 15) {
+	int b;
+	do {
+	  if (ip >= end)
+	    throw corrupt();
+	  b = src[ip++] & 0xff;
+	  m += b;
+	} while (b == 255);
+      }
+      m += MIN_MATCH;
+      if (dist == 0 || dist > op || m > n - op)
+	throw corrupt();
+      if (dist >= m)
+	copy(dst, op - dist, dst, op, m);
+      else
+	// The match overlaps what it produces, so it repeats.
+	for (int k = 0; k < m; k++)
+	  dst[op + k] = dst[op - dist + k];
+      op += m;
+    }
+    if (op != n)
+      throw corrupt();
+  }
+
+  /**
+   * Write a sequence: lit literals from src[from..], then, unless dist is
+   * 0, a match of len bytes dist back.
+   *
+   * @return the new output position, or -1 if the sequence does not fit
+   */
+  private static int sequence (byte [] src, int from, int lit, int dist,
+			       int len, byte [] dst, int op, int max) {
+    int m = len - MIN_MATCH;
+    int need = 1 + lit + (lit >= 15 ? (lit - 15) / 255 + 1 : 0);
+    if (dist != 0)
+      need += 2 + (m >= 15 ? (m - 15) / 255 + 1 : 0);
+    if (op + need > max)
+      return -1;
+
+    dst[op++] = (byte) ((Math.min(lit, 15) << 4)
+			| (dist != 0 ? Math.min(m, 15) : 0));
+    if (lit >= 15)
+      op = count(lit - 15, dst, op);
+    System.arraycopy(src, from, dst, op, lit);
+    op += lit;
+    if (dist != 0) {
+      dst[op++] = (byte) dist;
+      dst[op++] = (byte) (dist >>> 8);
+      if (m >= 15)
+	op = count(m - 15, dst, op);
+    }
+    return op;
+  }
+
+  /**
+   * Copy bytes that do not overlap; a loop beats System.arraycopy() for
+   * the short runs most sequences have.
+   */
+  private static void copy (byte [] src, int from, byte [] dst, int to,
+			    int n) {
+    if (n > 32)
+      System.arraycopy(src, from, dst, to, n);
+    else
+      for (int k = 0; k < n; k++)
+	dst[to + k] = src[from + k];
+  }
+
+  /** Write the continuation bytes of a nibble of 15. */
+  private static int count (int rest, byte [] dst, int op) {
+    for (; rest >= 255; rest -= 255)
+      dst[op++] = (byte) 255;
+    dst[op++] = (byte) rest;
+    return op;
+  }
+
+  private static int readInt (byte [] b, int i) {
+    return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16
+      | (b[i + 3] & 0xff) << 24;
+  }
+
+  private static int hash (int seq) {
+    return (seq * -1640531535) >>> (32 - HASH_BITS);
+  }
+
+  private static IOException corrupt () {
+    return new IOException("corrupt compressed page");
+  }
+}
@@ -0,0 +1,118 @@
+/* File MappedIO.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Page I/O through a memory mapping of the file, so that a transfer is a
+ * memory copy and costs no system call.  The file is mapped in chunks of
+ * 64 MB, since one mapping holds at most 2 GB.  Each chunk is mapped when
+ * first touched, and only as far as the file reaches; when a write lies
+ * past the end of a chunk's mapping, that chunk alone is mapped again,
+ * larger, which also grows the file.
+ * <br>
+ * Written pages reach the disk when the operating system writes them back,
+ * or on force().
+ */
+class MappedIO extends PageIO {
+
+  private static final int PAGES_PER_CHUNK = (1 << 26) / MINIBASE_PAGESIZE;
+  private static final long CHUNK_SIZE =
+    (long)PAGES_PER_CHUNK * MINIBASE_PAGESIZE;
+
+  private final FileChannel channel;
+
+  /** the mappings; grown and replaced under this object's monitor */
+  private volatile MappedByteBuffer [] chunks = new MappedByteBuffer[0];
+
+  MappedIO (FileChannel channel) {
+    this.channel = channel;
+  }
+
+  void read (int pid, ByteBuffer buffer) throws IOException {
+    ByteBuffer dst = buffer.duplicate();
+    dst.clear();
+    ByteBuffer page = page(pid, false);
+    if (page == null) {
+      // Past the end of the file.
+      while (dst.hasRemaining())
+	dst.put((byte)0);
+      return;
+    }
+    dst.put(page);
+  }
+
+  void write (int pid, ByteBuffer buffer) throws IOException {
+    ByteBuffer src = buffer.duplicate();
+    src.clear();
+    page(pid, true).put(src);
+  }
+
+  void force () throws IOException {
+    for (MappedByteBuffer chunk : chunks)
+      if (chunk != null)
+	chunk.force();
+  }
+
+  void close () {
+    // Mappings cannot be released explicitly; they go with the buffers.
+    chunks = new MappedByteBuffer[0];
+  }
+
+  /**
+   * @return a view of one page of the mapping, or null if the page lies
+   *         past the end of the file and extend is false.
+   */
+  private ByteBuffer page (int pid, boolean extend) throws IOException {
+    int c = pid / PAGES_PER_CHUNK;
+    int offset = (pid % PAGES_PER_CHUNK) * MINIBASE_PAGESIZE;
+    MappedByteBuffer [] cs = chunks;
+    MappedByteBuffer chunk = (c < cs.length) ? cs[c] : null;
+    if (chunk == null || chunk.capacity() < offset + MINIBASE_PAGESIZE) {
+      chunk = map(c, offset + MINIBASE_PAGESIZE, extend);
+      if (chunk == null)
+	return null;
+    }
+    return chunk.slice(offset, MINIBASE_PAGESIZE);
+  }
+
+  /**
+   * Map a chunk as far as the file reaches, and at least to the given
+   * length if extend is set.
+   *
+   * @return the mapping, or null if it would not reach that length.
+   */
+  private synchronized MappedByteBuffer map (int c, int length,
+					     boolean extend)
+    throws IOException {
+
+    MappedByteBuffer [] cs = chunks;
+    if (c < cs.length && cs[c] != null && cs[c].capacity() >= length)
+      return cs[c];	// mapped meanwhile by another thread
+
+    long start = c * CHUNK_SIZE;
+    long size = Math.min(CHUNK_SIZE, Math.max(0, channel.size() - start));
+    if (size < length) {
+      if (!extend)
+	return null;
+      size = length;
+    }
+    MappedByteBuffer chunk =
+      channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+
+    if (c >= cs.length) {
+      MappedByteBuffer [] grown = new MappedByteBuffer[c + 1];
+      System.arraycopy(cs, 0, grown, 0, cs.length);
+      cs = grown;
+    }
+    else
+      cs = cs.clone();
+    cs[c] = chunk;
+    chunks = cs;
+    return chunk;
+  }
+}
@@ -2,10 +2,21 @@
 
 package diskmgr;
 
+import java.nio.ByteBuffer;
 import global.*;
 
  /**
   * class Page
+  * <p>
+  * A page's bytes are either a heap array or a slice of off-heap memory,
+  * such as a frame of a buffer pool kept outside the Java heap.  Both
+  * kinds can be reached through getBuffer().  A page over bare off-heap
+  * memory has no array; one over Storage, as the buffer manager pins,
+  * gets one from getpage() by moving to the heap, which costs a copy.
+  * A buffer obtained from getBuffer() before the move is then stale: it
+  * still shows the old memory, so it does not see changes made through
+  * the array, and changes made through it are lost.  Clients of an
+  * off-heap buffer pool should use getBuffer() only.
   */
 
 public class Page implements GlobalConst{
@@ -30,15 +41,55 @@ public class Page implements GlobalConst{
     }
   
   /**
-   * return the data byte array
+   * Constructor of class Page over off-heap memory
+   * @param 	abuffer   a direct buffer of page size
+   */
+  public Page(ByteBuffer abuffer)
+    {
+      buffer = abuffer;
+    }
+  
+  /**
+   * Constructor of class Page over storage that may move
+   * @param 	astorage   the storage of the page's bytes
+   */
+  public Page(Storage astorage)
+    {
+      storage = astorage;
+    }
+  
+  /**
+   * return the data byte array.  A page over Storage is moved to the heap
+   * first, so a buffer obtained from getBuffer() before must not be used
+   * to change it.
    * @return 	the byte array of the page
+   * @exception UnsupportedOperationException the page is over bare
+   *            off-heap memory
    */
   public byte [] getpage()
     {
+      if (storage != null)
+	return storage.array();
+      if (data == null)
+	throw new UnsupportedOperationException("off-heap page has no array; use getBuffer()");
       return data;
       
     }
   
+  /**
+   * return the page's bytes as a buffer.  Use absolute get and put;
+   * the buffer is shared by everyone holding the page.
+   * @return 	a buffer of page size
+   */
+  public ByteBuffer getBuffer()
+    {
+      if (storage != null)
+	return storage.buffer();
+      if (buffer == null)
+	buffer = ByteBuffer.wrap(data);
+      return buffer;
+    }
+  
   /**
    * set the page with the given byte array
    * @param 	array   a byte array of page size
@@ -46,6 +97,30 @@ public class Page implements GlobalConst{
   public void setpage(byte [] array)
     {
       data = array;
+      buffer = null;
+      storage = null;
+    }
+  
+  /**
+   * set the page to the given off-heap memory
+   * @param 	abuffer   a direct buffer of page size
+   */
+  public void setpage(ByteBuffer abuffer)
+    {
+      data = null;
+      buffer = abuffer;
+      storage = null;
+    }
+  
+  /**
+   * set the page to the given storage
+   * @param 	astorage   the storage of the page's bytes
+   */
+  public void setpage(Storage astorage)
+    {
+      data = null;
+      buffer = null;
+      storage = astorage;
     }
   
   /**
@@ -54,4 +129,34 @@ public class Page implements GlobalConst{
    */
   protected byte [] data;
   
+  /**
+   * private field: the bytes as a buffer; the only storage of an
+   * off-heap page, and a wrapper around data otherwise
+   */
+  protected ByteBuffer buffer;
+  
+  /**
+   * private field: where the bytes are, if they may move between the
+   * heap and off-heap memory; data and buffer are unused then
+   */
+  protected Storage storage;
+  
+  /**
+   * Page bytes that start off the heap and move to it when an array is
+   * asked for, such as a frame of an off-heap buffer pool.
+   */
+  public interface Storage
+  {
+    /**
+     * @return 	the bytes as a buffer of page size, wherever they are now
+     */
+    ByteBuffer buffer();
+    
+    /**
+     * move the bytes to the heap, if they are not there yet
+     * @return 	the bytes as an array of page size
+     */
+    byte [] array();
+  }
+  
 }
@@ -0,0 +1,14 @@
+package diskmgr;
+import chainexception.*;
+
+/**
+ * A page read from disk does not match the checksum stamped when it was
+ * written: it was torn by a crash, or damaged on the device.
+ */
+public class PageChecksumException extends FileIOException {
+  
+  public PageChecksumException(Exception e, String name)
+    {
+      super(e, name); 
+    }
+}
@@ -0,0 +1,80 @@
+/* File PageIO.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import global.*;
+
+/**
+ * How a DB moves pages between its file and memory.  The DB checks page
+ * numbers; a PageIO only transfers whole pages, and must allow transfers
+ * of different pages from many threads at once.
+ */
+abstract class PageIO implements GlobalConst {
+
+  /**
+   * Read a page.  Bytes past the end of the file read as zeroes.
+   *
+   * @param pid the page number
+   * @param dst receives the page, from index 0
+   */
+  abstract void read (int pid, ByteBuffer dst) throws IOException;
+
+  /**
+   * Write a page, extending the file if it lies past the end.
+   *
+   * @param pid the page number
+   * @param src holds the page, from index 0
+   */
+  abstract void write (int pid, ByteBuffer src) throws IOException;
+
+  /**
+   * Read consecutive pages.  By default they are read one at a time.
+   *
+   * @param first the first page number
+   * @param dsts receive the pages, in order
+   */
+  void readRun (int first, ByteBuffer [] dsts) throws IOException {
+    for (int i = 0; i < dsts.length; i++)
+      read(first + i, dsts[i]);
+  }
+
+  /**
+   * Write consecutive pages.  By default they are written one at a time.
+   *
+   * @param first the first page number
+   * @param srcs hold the pages, in order
+   */
+  void writeRun (int first, ByteBuffer [] srcs) throws IOException {
+    for (int i = 0; i < srcs.length; i++)
+      write(first + i, srcs[i]);
+  }
+
+  /**
+   * @return how many independent queues transfers may be spread over,
+   *         such as one per device; 1 by default
+   */
+  int queues () {
+    return 1;
+  }
+
+  /**
+   * @param pid a page number
+   * @return the queue, from 0 to queues() - 1, that transfers the page
+   */
+  int queue (int pid) {
+    return 0;
+  }
+
+  /**
+   * Make every page written so far durable.
+   */
+  abstract void force () throws IOException;
+
+  /**
+   * Release the resources held for the file; the file itself is closed
+   * by the DB.
+   */
+  void close () throws IOException { }
+}
@@ -0,0 +1,115 @@
+/* File SideFile.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * A file kept beside a database holding a fixed-size entry per page,
+ * such as a checksum or the page's place in another file.  The file is
+ * memory-mapped in chunks of 1 MB, each mapped when first touched, so
+ * reading or changing an entry is a memory access; entries are made
+ * durable by force().  Entries never set read as 0.
+ * <br>
+ * Entries of different pages may be used from many threads at once.
+ */
+class SideFile {
+
+  private static final long CHUNK_SIZE = 1 << 20;
+
+  private final FileChannel channel;
+  private final int entry_size;
+  private final long entries_per_chunk;
+
+  /** the mappings; grown and replaced under this object's monitor */
+  private volatile MappedByteBuffer [] chunks = new MappedByteBuffer[0];
+
+  /**
+   * Open a side file, creating it if it does not exist.
+   *
+   * @param path the file
+   * @param entry_size the size of an entry: 4 or 8 bytes
+   */
+  SideFile (String path, int entry_size) throws IOException {
+    this.channel = FileChannel.open(Paths.get(path),
+				    StandardOpenOption.CREATE,
+				    StandardOpenOption.READ,
+				    StandardOpenOption.WRITE);
+    this.entry_size = entry_size;
+    this.entries_per_chunk = CHUNK_SIZE / entry_size;
+  }
+
+  /**
+   * @return the number of entries the file has room for; those past it
+   *         are 0
+   */
+  long size () throws IOException {
+    return channel.size() / entry_size;
+  }
+
+  int getInt (long i) throws IOException {
+    return chunk(i).getInt(offset(i));
+  }
+
+  void putInt (long i, int v) throws IOException {
+    chunk(i).putInt(offset(i), v);
+  }
+
+  long getLong (long i) throws IOException {
+    return chunk(i).getLong(offset(i));
+  }
+
+  void putLong (long i, long v) throws IOException {
+    chunk(i).putLong(offset(i), v);
+  }
+
+  void force () throws IOException {
+    for (MappedByteBuffer chunk : chunks)
+      if (chunk != null)
+	chunk.force();
+  }
+
+  void close () throws IOException {
+    // Mappings cannot be released explicitly; they go with the buffers.
+    chunks = new MappedByteBuffer[0];
+    channel.close();
+  }
+
+  private int offset (long i) {
+    return (int) (i % entries_per_chunk) * entry_size;
+  }
+
+  /**
+   * @return the mapping holding an entry, mapping it, and so growing the
+   *         file, if need be
+   */
+  private MappedByteBuffer chunk (long i) throws IOException {
+    int c = (int) (i / entries_per_chunk);
+    MappedByteBuffer [] cs = chunks;
+    if (c < cs.length && cs[c] != null)
+      return cs[c];
+    return map(c);
+  }
+
+  private synchronized MappedByteBuffer map (int c) throws IOException {
+    MappedByteBuffer [] cs = chunks;
+    if (c < cs.length && cs[c] != null)
+      return cs[c];	// mapped meanwhile by another thread
+
+    MappedByteBuffer chunk =
+      channel.map(FileChannel.MapMode.READ_WRITE, c * CHUNK_SIZE, CHUNK_SIZE);
+    if (c >= cs.length) {
+      MappedByteBuffer [] grown = new MappedByteBuffer[c + 1];
+      System.arraycopy(cs, 0, grown, 0, cs.length);
+      cs = grown;
+    }
+    else
+      cs = cs.clone();
+    cs[c] = chunk;
+    chunks = cs;
+    return chunk;
+  }
+}
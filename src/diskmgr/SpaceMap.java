@@ -0,0 +1,64 @@
+/* File SpaceMap.java */
+
+package diskmgr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bit operations on a space-map page, a word at a time.  Bit b of byte j
+ * of a space-map page stands for its page 8*j + b, so reading eight bytes
+ * as a little-endian long gives a word in which bit i stands for page
+ * 64*k + i.  Runs of bits are set or cleared with one masked update at
+ * each end and whole-word stores in between; nothing is allocated.
+ */
+final class SpaceMap {
+
+  private SpaceMap () { }
+
+  /**
+   * The word holding bits 64*k .. 64*k+63 of a space-map page.
+   */
+  static long getWord (ByteBuffer buf, int k) {
+    long w = buf.getLong(k << 3);
+    return (buf.order() == ByteOrder.LITTLE_ENDIAN) ? w : Long.reverseBytes(w);
+  }
+
+  /**
+   * Store the word holding bits 64*k .. 64*k+63 of a space-map page.
+   */
+  static void putWord (ByteBuffer buf, int k, long w) {
+    buf.putLong(k << 3, (buf.order() == ByteOrder.LITTLE_ENDIAN)
+		? w : Long.reverseBytes(w));
+  }
+
+  /**
+   * Set or clear bits first .. first+count-1 of a space-map page.
+   *
+   * @param bit 1 to set the bits, 0 to clear them
+   */
+  static void setRange (ByteBuffer buf, int first, int count, int bit) {
+    if (count <= 0)
+      return;
+    int end = first + count;		// exclusive
+    int k = first >>> 6;
+    int last = (end - 1) >>> 6;
+    long head = -1L << (first & 63);
+    long tail = ((end & 63) == 0) ? -1L : -1L >>> (64 - (end & 63));
+
+    if (k == last) {
+      update(buf, k, head & tail, bit);
+      return;
+    }
+    update(buf, k, head, bit);
+    long fill = (bit == 1) ? -1L : 0L;
+    for (k++; k < last; k++)
+      buf.putLong(k << 3, fill);
+    update(buf, last, tail, bit);
+  }
+
+  private static void update (ByteBuffer buf, int k, long mask, int bit) {
+    long w = getWord(buf, k);
+    putWord(buf, k, (bit == 1) ? (w | mask) : (w & ~mask));
+  }
+}
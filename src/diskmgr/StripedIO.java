@@ -0,0 +1,129 @@
+/* File StripedIO.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Page I/O that spreads the pages of a database over several files,
+ * which may be on different devices.  The pages are dealt out round
+ * robin in stripe units of unit consecutive pages: the first unit goes
+ * to the first file, the next to the second, and so on, coming back to
+ * the first file after the last.  Each file is reached through its own
+ * PageIO, so transfers to different files do not wait on each other, and
+ * each file is a queue of its own for asynchronous requests.
+ * <br>
+ * Page 0 is always the first page of the first file.
+ */
+class StripedIO extends PageIO {
+
+  private final PageIO [] stripes;
+  private final RandomAccessFile [] files;
+  private final int unit;
+
+  /**
+   * @param files the stripe files; the first is the database file, which
+   *        the DB closes, and the others are closed with this PageIO
+   * @param stripes the I/O for each file
+   * @param unit the number of consecutive pages kept in one file
+   */
+  StripedIO (RandomAccessFile [] files, PageIO [] stripes, int unit) {
+    this.files = files;
+    this.stripes = stripes;
+    this.unit = unit;
+  }
+
+  /** @return the file holding a page */
+  int stripe (int pid) {
+    return (pid / unit) % stripes.length;
+  }
+
+  /** @return where a page is in its file */
+  int local (int pid) {
+    return (pid / unit / stripes.length) * unit + pid % unit;
+  }
+
+  /** @return the I/O of the first file */
+  PageIO first () {
+    return stripes[0];
+  }
+
+  int queues () {
+    return stripes.length;
+  }
+
+  int queue (int pid) {
+    return stripe(pid);
+  }
+
+  void read (int pid, ByteBuffer dst) throws IOException {
+    stripes[stripe(pid)].read(local(pid), dst);
+  }
+
+  void write (int pid, ByteBuffer src) throws IOException {
+    stripes[stripe(pid)].write(local(pid), src);
+  }
+
+  /** A run is read as a run in each stripe unit it touches.
+   */
+  void readRun (int first, ByteBuffer [] dsts) throws IOException {
+    for (int i = 0; i < dsts.length; ) {
+      int pid = first + i;
+      int n = Math.min(dsts.length - i, unit - pid % unit);
+      stripes[stripe(pid)].readRun(local(pid),
+				   Arrays.copyOfRange(dsts, i, i + n));
+      i += n;
+    }
+  }
+
+  /** A run is written as a run in each stripe unit it touches.
+   */
+  void writeRun (int first, ByteBuffer [] srcs) throws IOException {
+    for (int i = 0; i < srcs.length; ) {
+      int pid = first + i;
+      int n = Math.min(srcs.length - i, unit - pid % unit);
+      stripes[stripe(pid)].writeRun(local(pid),
+				    Arrays.copyOfRange(srcs, i, i + n));
+      i += n;
+    }
+  }
+
+  /**
+   * Size each file to hold its share of a database.
+   *
+   * @param num_pages the number of pages in the database
+   */
+  void setLength (int num_pages) throws IOException {
+    int round = unit * stripes.length;
+    for (int s = 0; s < files.length; s++) {
+      long rest = num_pages % round - (long) s * unit;
+      long pages = (long) (num_pages / round) * unit
+	+ Math.max(0, Math.min(unit, rest));
+      files[s].setLength(pages * MINIBASE_PAGESIZE);
+    }
+  }
+
+  void force () throws IOException {
+    for (PageIO p : stripes)
+      p.force();
+  }
+
+  void close () throws IOException {
+    IOException failure = null;
+    for (int s = 0; s < stripes.length; s++) {
+      try {
+	stripes[s].close();
+	if (s > 0)
+	  files[s].close();
+      }
+      catch (IOException e) {
+	if (failure == null)
+	  failure = e;
+      }
+    }
+    if (failure != null)
+      throw failure;
+  }
+}
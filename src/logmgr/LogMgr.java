@@ -0,0 +1,492 @@
+/* File LogMgr.java */
+
+package logmgr;
+
+import global.GlobalConst;
+import global.PageId;
+import global.SystemDefs;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import chainexception.ChainException;
+import diskmgr.Page;
+
+/**
+ * The write-ahead log. Changes to pages are appended to a sequential log
+ * file as compact records, each holding the bytes of a page as they are
+ * after the change; the pages themselves can then be written back whenever
+ * the buffer manager likes, provided the log reaches the disk first (the
+ * WAL rule, which BufMgr enforces for a LogMgr given to it).
+ * <p>
+ * A log sequence number (LSN) is the offset in the log just past a record,
+ * so the log is on disk up to an LSN once flush() of it returns. Records are
+ * gathered in memory until then. Flushes are group commits: while one
+ * caller writes and forces the log, others queue up behind it, and the next
+ * of them writes everything appended meanwhile with a single force, so the
+ * forces per commit fall as more callers commit at once.
+ * <p>
+ * Each record is its length, a CRC32 of its body, and the body: a type byte
+ * and the type's fields. On opening, the log is read up to the first record
+ * that is cut short or fails its check, and cut there, so a record torn by
+ * a crash is dropped.
+ * <p>
+ * A checkpoint record lists the pages dirty in the buffer pool when it was
+ * taken, each with its recovery LSN, a record boundary at or before its
+ * first change not yet on disk. The offset of the latest checkpoint is kept
+ * in a master file beside the log, and recovery redoes the log only from the
+ * oldest of those LSNs; see getRedoLSN().
+ */
+public class LogMgr implements GlobalConst {
+
+	/** the after-image of a run of bytes on one page */
+	public static final byte UPDATE = 1;
+	/** a commit point; every record before it is durable with it */
+	public static final byte COMMIT = 2;
+	/** the dirty pages and their recovery LSNs */
+	public static final byte CHECKPOINT = 3;
+
+	/** length and checksum */
+	private static final int HEADER = 8;
+	/** type, page, offset, length */
+	private static final int UPDATE_FIELDS = 1 + 4 + 2 + 2;
+	/** type, begin, number of pages */
+	private static final int CHECKPOINT_FIELDS = 1 + 8 + 4;
+	/** longest record body read back; anything longer is garbage */
+	private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+	private final FileChannel channel;
+	/** holds the offset of the latest checkpoint record */
+	private final Path master;
+
+	/** records appended but not yet written */
+	private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+	/** the other buffer, for pending to become when a flush takes it */
+	private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+	/** LSN of the last record appended */
+	private long endLsn;
+	/** the log is on disk up to here */
+	private volatile long flushedLsn;
+	/** whether a flush is writing and forcing the log */
+	private boolean flushing;
+
+	private final CRC32 crc = new CRC32();
+	private final LongAdder records = new LongAdder();
+	private final LongAdder commits = new LongAdder();
+	private final LongAdder forces = new LongAdder();
+	private final LongAdder checkpoints = new LongAdder();
+
+	/**
+	 * Open a log file, creating it if it does not exist.
+	 *
+	 * @param path
+	 *            the log file.
+	 * @throws IOException
+	 */
+	public LogMgr(String path) throws IOException {
+		channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		master = Paths.get(path + ".master");
+		long end = scan(0, null);
+		if (end < channel.size())
+			channel.truncate(end);
+		endLsn = flushedLsn = end;
+	}
+
+	/**
+	 * Log a change to a page: bytes offset .. offset+length-1 of the page as
+	 * they are now.
+	 *
+	 * @param pid
+	 *            the page changed.
+	 * @param page
+	 *            the page, holding the change.
+	 * @param offset
+	 *            the first byte changed.
+	 * @param length
+	 *            the number of bytes changed.
+	 * @return the record's LSN.
+	 */
+	public long logUpdate(int pid, Page page, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > MINIBASE_PAGESIZE)
+			throw new IllegalArgumentException("bad range " + offset + "+"
+					+ length);
+		ByteBuffer src = page.getBuffer().duplicate();
+		src.limit(offset + length).position(offset);
+		synchronized (this) {
+			ByteBuffer out = room(UPDATE_FIELDS + length);
+			int body = out.position() + HEADER;
+			out.position(body);
+			out.put(UPDATE).putInt(pid).putShort((short) offset)
+					.putShort((short) length).put(src);
+			return seal(out, body);
+		}
+	}
+
+	/**
+	 * Append a checkpoint record, force it to disk, and make it the one
+	 * recovery starts from. The pages are those that were dirty in the
+	 * buffer pool after the log reached begin, each with an LSN at or before
+	 * its oldest change not on disk. They may be gathered while the pool is
+	 * in use: a page cleaned meanwhile is merely redone for nothing, and a
+	 * page first changed meanwhile is covered by begin.
+	 *
+	 * @param begin
+	 *            getEndLSN() as it was before the pages were gathered.
+	 * @param pids
+	 *            the dirty pages.
+	 * @param recLsns
+	 *            for each page, the LSN of a record boundary at or before its
+	 *            oldest change not on disk.
+	 * @param n
+	 *            the number of pages.
+	 * @return the checkpoint record's LSN.
+	 * @throws IOException
+	 */
+	public long checkpoint(long begin, int[] pids, long[] recLsns, int n)
+			throws IOException {
+		long start, lsn;
+		synchronized (this) {
+			start = endLsn;
+			ByteBuffer out = room(CHECKPOINT_FIELDS + 12 * n);
+			int body = out.position() + HEADER;
+			out.position(body);
+			out.put(CHECKPOINT).putLong(begin).putInt(n);
+			for (int i = 0; i < n; i++)
+				out.putInt(pids[i]).putLong(recLsns[i]);
+			lsn = seal(out, body);
+		}
+		flush(lsn);
+
+		// Replace the master record in one step, so a crash leaves either
+		// the old checkpoint or the new one.
+		Path tmp = Paths.get(master + ".tmp");
+		ByteBuffer rec = ByteBuffer.allocate(8).putLong(0, start);
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			out.write(rec);
+			out.force(false);
+		}
+		Files.move(tmp, master, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		checkpoints.increment();
+		return lsn;
+	}
+
+	/**
+	 * The LSN recovery must redo the log from: the oldest recovery LSN in
+	 * the latest checkpoint, or where the checkpoint began if it lists no
+	 * older one. Without a checkpoint, the log is redone from the start.
+	 *
+	 * @return the LSN.
+	 * @throws IOException
+	 */
+	public long getRedoLSN() throws IOException {
+		if (!Files.exists(master))
+			return 0;
+		final long start = ByteBuffer.wrap(Files.readAllBytes(master))
+				.getLong();
+		// A checkpoint cut off the end of the log is no use.
+		final long[] redo = { 0 };
+		if (start >= getEndLSN())
+			return 0;
+		scan(start, new Visitor() {
+			public void visit(long lsn, ByteBuffer body) throws IOException {
+				if (body.get(0) == CHECKPOINT) {
+					redo[0] = body.getLong(1);
+					int n = body.getInt(9);
+					for (int i = 0; i < n; i++)
+						redo[0] = Math.min(redo[0], body.getLong(
+								CHECKPOINT_FIELDS + 12 * i + 4));
+				}
+				throw new EOFException();
+			}
+		});
+		return redo[0];
+	}
+
+	/**
+	 * Redo the log from the latest checkpoint's redo LSN on.
+	 *
+	 * @return the number of changes redone.
+	 * @throws IOException
+	 *             if the log cannot be read, or a page cannot be pinned.
+	 */
+	public int recover() throws IOException {
+		return redo(getRedoLSN());
+	}
+
+	/**
+	 * Append a commit record and wait until it, and so every record before
+	 * it, is on disk. Concurrent commits share one write and force.
+	 *
+	 * @return the commit record's LSN.
+	 * @throws IOException
+	 */
+	public long commit() throws IOException {
+		long lsn;
+		synchronized (this) {
+			ByteBuffer out = room(1);
+			int body = out.position() + HEADER;
+			out.position(body);
+			out.put(COMMIT);
+			lsn = seal(out, body);
+		}
+		flush(lsn);
+		commits.increment();
+		return lsn;
+	}
+
+	/**
+	 * Make room for a record with a body of the given size.
+	 */
+	private ByteBuffer room(int bodySize) {
+		int need = HEADER + bodySize;
+		if (pending.remaining() < need) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(
+					2 * pending.capacity(), pending.position() + need));
+			pending.flip();
+			grown.put(pending);
+			pending = grown;
+		}
+		return pending;
+	}
+
+	/**
+	 * Fill in the header of the record whose body starts at body and ends at
+	 * the buffer's position.
+	 *
+	 * @return the record's LSN.
+	 */
+	private long seal(ByteBuffer out, int body) {
+		int length = out.position() - body;
+		crc.reset();
+		crc.update(out.array(), out.arrayOffset() + body, length);
+		out.putInt(body - HEADER, length);
+		out.putInt(body - HEADER + 4, (int) crc.getValue());
+		endLsn += HEADER + length;
+		records.increment();
+		return endLsn;
+	}
+
+	/**
+	 * Wait until the log is on disk up to an LSN, writing it there if no one
+	 * else is. Whoever writes takes every record appended so far.
+	 *
+	 * @param lsn
+	 *            the LSN.
+	 * @throws IOException
+	 */
+	public void flush(long lsn) throws IOException {
+		if (lsn <= flushedLsn)
+			return;
+		ByteBuffer out;
+		long start, end;
+		synchronized (this) {
+			boolean interrupted = false;
+			while (flushing && lsn > flushedLsn) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (lsn <= flushedLsn)
+				return;
+			flushing = true;
+			out = pending;
+			pending = spare;
+			spare = null;
+			start = flushedLsn;
+			end = endLsn;
+		}
+
+		boolean written = false;
+		try {
+			out.flip();
+			for (long pos = start; out.hasRemaining();)
+				pos += channel.write(out, pos);
+			channel.force(false);
+			forces.increment();
+			written = true;
+		} finally {
+			synchronized (this) {
+				if (written) {
+					flushedLsn = end;
+					out.clear();
+					spare = out;
+				} else {
+					// Put the records back in front of those appended since,
+					// for the next flush to try again.
+					out.rewind();
+					pending.flip();
+					ByteBuffer merged = ByteBuffer.allocate(Math.max(
+							pending.capacity(), out.limit() + pending.limit()));
+					merged.put(out).put(pending);
+					pending = merged;
+					spare = ByteBuffer.allocate(out.capacity());
+				}
+				flushing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Force every record appended so far to disk.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		long lsn;
+		synchronized (this) {
+			lsn = endLsn;
+		}
+		flush(lsn);
+	}
+
+	/**
+	 * Redo the logged changes from an LSN on, in log order, through the
+	 * buffer manager of SystemDefs, so that every page holds its last logged
+	 * contents. Redoing a change twice does no harm, so the log may be
+	 * replayed from any record boundary at or before the oldest change not
+	 * yet on disk.
+	 *
+	 * @param from
+	 *            the LSN to start at: 0, or that of a record.
+	 * @return the number of changes redone.
+	 * @throws IOException
+	 *             if the log cannot be read, or a page cannot be pinned.
+	 */
+	public int redo(long from) throws IOException {
+		flush();
+		final int[] redone = new int[1];
+		final Page page = new Page();
+		final PageId pid = new PageId();
+		scan(from, new Visitor() {
+			public void visit(long lsn, ByteBuffer body) throws IOException,
+					ChainException {
+				if (body.get(0) != UPDATE)
+					return;
+				pid.pid = body.getInt(1);
+				int offset = body.getShort(5);
+				int length = body.getShort(7);
+				SystemDefs.JavabaseBM.pinPage(pid, page, false);
+				ByteBuffer dst = page.getBuffer().duplicate();
+				dst.position(offset);
+				body.limit(UPDATE_FIELDS + length).position(UPDATE_FIELDS);
+				dst.put(body);
+				SystemDefs.JavabaseBM.unpinPage(pid, true);
+				redone[0]++;
+			}
+		});
+		return redone[0];
+	}
+
+	/** Receives the records read by scan(). */
+	private interface Visitor {
+		void visit(long lsn, ByteBuffer body) throws IOException,
+				ChainException;
+	}
+
+	/**
+	 * Read the records on disk from an LSN on, up to the end of the log or
+	 * the first record that is cut short or fails its check.
+	 *
+	 * @return the LSN of the last good record, or from if there is none.
+	 */
+	private long scan(long from, Visitor visitor) throws IOException {
+		channel.position(from);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel), 64 * 1024));
+		CRC32 check = new CRC32();
+		byte[] body = new byte[HEADER + UPDATE_FIELDS + MINIBASE_PAGESIZE];
+		long lsn = from;
+		for (;;) {
+			int length, sum;
+			try {
+				length = in.readInt();
+				sum = in.readInt();
+				if (length <= 0 || length > MAX_RECORD)
+					return lsn;
+				if (length > body.length)
+					body = new byte[length];
+				in.readFully(body, 0, length);
+			} catch (EOFException e) {
+				return lsn;
+			}
+			check.reset();
+			check.update(body, 0, length);
+			if ((int) check.getValue() != sum)
+				return lsn;
+			lsn += HEADER + length;
+			if (visitor != null) {
+				try {
+					visitor.visit(lsn, ByteBuffer.wrap(body, 0, length)
+							.slice());
+				} catch (EOFException e) {
+					// The visitor has seen enough.
+					return lsn;
+				} catch (ChainException e) {
+					throw new IOException("LOGMGR: redo failed at LSN " + lsn,
+							e);
+				}
+			}
+		}
+	}
+
+	/** @return the LSN up to which the log is on disk. */
+	public long getFlushedLSN() {
+		return flushedLsn;
+	}
+
+	/** @return the LSN of the last record appended. */
+	public synchronized long getEndLSN() {
+		return endLsn;
+	}
+
+	/** @return the number of records appended since the log was opened. */
+	public long getRecords() {
+		return records.sum();
+	}
+
+	/** @return the number of commits since the log was opened. */
+	public long getCommits() {
+		return commits.sum();
+	}
+
+	/** @return the number of checkpoints taken since the log was opened. */
+	public long getCheckpoints() {
+		return checkpoints.sum();
+	}
+
+	/** @return the number of times the log was forced to disk. */
+	public long getForces() {
+		return forces.sum();
+	}
+
+	/**
+	 * Force the log and close it.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		flush();
+		channel.close();
+	}
+
+}
@@ -0,0 +1,548 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import chainexception.*;
+import logmgr.*;
+
+/**
+ * This class checks, one at a time, that the buffer manager's features do
+ * what they claim, rather than only that nothing breaks under load (for
+ * which see BMStressTest).
+ * <br>
+ * Test 1 replays one reference string against every replacement policy
+ * and checks the order in which each evicts the pages, and that names of
+ * no policy are refused.
+ * Test 2 leaves pages dirty in an idle pool and checks that the page
+ * cleaner writes every one of them to disk.
+ * Test 3 runs a client written against Page.getpage(), as BMTest is,
+ * on an off-heap pool.
+ * Test 4 scans the pages in order and checks that read-ahead brought in
+ * most of them before they were pinned.
+ * Test 5 publishes buffer managers through JMX.
+ * Test 6 makes the write of a dirty victim fail while a run of new pages
+ * is being pinned, and checks that nothing stays pinned or allocated.
+ */
+class BMFeatureDriver extends TestDriver implements GlobalConst {
+
+  private static final int NUM_PAGES = 100;
+
+  private static final String [] POLICIES =
+    { "Clock", "LRU", "MRU", "LRU-2", "2Q" };
+
+  /**
+   * The pages each policy of POLICIES evicts in test 1, in order.
+   */
+  private static final int [][] EVICTED = {
+    { 10, 11, 12, 13, 14, 10 },	// Clock sweeps like LRU here
+    { 10, 11, 12, 13, 14, 10 },	// LRU
+    { 13, 14, 10, 15, 16, 17 },	// MRU
+    { 11, 12, 13, 14, 10, 15 },	// LRU-2 keeps page 10, used twice
+    { 10, 11, 12, 13, 14, 15 },	// 2Q keeps page 10, seen again in A1out
+  };
+
+  /**
+   * BMFeatureDriver Constructor, inherited from TestDriver
+   */
+  public BMFeatureDriver () {
+    super("bmfeature");
+  }
+
+  /**
+   * overrides the test1 function in TestDriver.  Four frames are filled
+   * with pages 10 to 13, page 10 being used again before the others are
+   * read; then pages 14, 10, 15, 16 and 17 are read in turn, and a last
+   * victim is chosen.  Names of no policy must raise an
+   * IllegalArgumentException.
+   *
+   * @return whether test1 has passed
+   */
+  protected boolean test1 () {
+
+    System.out.print("\n  Test 1 checks the eviction order of each policy:\n");
+
+    boolean status = OK;
+    for (int p = 0; p < POLICIES.length; p++) {
+      Replacer r = Replacer.newReplacer(POLICIES[p], 4);
+      int [] pageIn = new int[4];
+      int [] evicted = new int[EVICTED[p].length];
+
+      load(r, pageIn, r.pick(), 10);
+      r.pinned(0);
+      r.unpinned(0);
+      for (int pid = 11; pid <= 13; pid++)
+	load(r, pageIn, r.pick(), pid);
+
+      int [] reads = { 14, 10, 15, 16, 17 };
+      for (int i = 0; i < evicted.length; i++) {
+	int frame = r.pick();
+	evicted[i] = pageIn[frame];
+	if (i < reads.length)
+	  load(r, pageIn, frame, reads[i]);
+      }
+
+      System.out.print("  - " + POLICIES[p] + " evicts "
+		       + Arrays.toString(evicted) + "\n");
+      if (!Arrays.equals(evicted, EVICTED[p])) {
+	System.err.print("*** " + POLICIES[p] + " should evict "
+			 + Arrays.toString(EVICTED[p]) + "\n");
+	status = FAIL;
+      }
+    }
+
+    for (String name : new String [] { "FIFO", "LRU-K2", "LRU-0", null }) {
+      try {
+	Replacer.newReplacer(name, 4);
+	System.err.print("*** There is no policy \"" + name + "\"\n");
+	status = FAIL;
+      }
+      catch (IllegalArgumentException e) {
+      }
+    }
+    System.out.print("  - names of no policy are refused\n");
+
+    if ( status == OK )
+      System.out.print("  Test 1 completed successfully.\n");
+    return status;
+  }
+
+  /**
+   * overrides the test2 function in TestDriver.  Some pages are changed
+   * and left unpinned; nothing else uses the pool while the cleaner runs.
+   *
+   * @return whether test2 has passed
+   */
+  protected boolean test2 () {
+
+    System.out.print("\n  Test 2 lets the page cleaner write back an idle pool:\n");
+
+    PageId firstPid = fresh("Clock");
+    if (firstPid == null)
+      return FAIL;
+    BufMgr bm = SystemDefs.JavabaseBM;
+    int dirty = NUMBUF / 2;
+    Page pg = new Page();
+    PageId pid = new PageId();
+    try {
+      for (int i = 0; i < dirty; i++) {
+	pid.pid = firstPid.pid + i;
+	bm.pinPage(pid, pg, false);
+	pg.getBuffer().putInt(0, pid.pid);
+	bm.unpinPage(pid, true);
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not change page " + pid.pid + "\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    if (bm.getNumDirtyBuffers() != dirty) {
+      System.err.print("*** " + bm.getNumDirtyBuffers()
+		       + " frames are dirty, expected " + dirty + "\n");
+      return FAIL;
+    }
+
+    bm.startPageCleaner(1000);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (bm.getNumDirtyBuffers() > 0
+	   && System.currentTimeMillis() < deadline) {
+      try {
+	Thread.sleep(10);
+      }
+      catch (InterruptedException e) {
+	break;
+      }
+    }
+    bm.stopPageCleaner();
+
+    System.out.print("  - the cleaner wrote " + bm.getCleanerWrites()
+		     + " pages\n");
+    if (bm.getNumDirtyBuffers() != 0 || bm.getCleanerWrites() != dirty
+	|| bm.getBackgroundFailures() != 0) {
+      System.err.print("*** " + bm.getNumDirtyBuffers()
+		       + " frames are still dirty; the cleaner wrote "
+		       + bm.getCleanerWrites() + " pages, expected " + dirty
+		       + ", and failed " + bm.getBackgroundFailures()
+		       + " times: " + bm.getLastBackgroundFailure() + "\n");
+      return FAIL;
+    }
+
+    // The pages are on disk, not just marked clean.
+    Page disk = new Page();
+    try {
+      for (int i = 0; i < dirty; i++) {
+	pid.pid = firstPid.pid + i;
+	SystemDefs.JavabaseDB.read_page(pid, disk);
+	if (disk.getBuffer().getInt(0) != pid.pid) {
+	  System.err.print("*** Page " + pid.pid + " is not on disk\n");
+	  return FAIL;
+	}
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not read back page " + pid.pid + "\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  Test 2 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * overrides the test3 function in TestDriver.  Every page is written
+   * through its array and read back, first through its array and then
+   * through its buffer; there are more pages than frames, so most are
+   * evicted and read back in between.  Each array asked for copies its
+   * frame to the heap, and reading through buffers alone copies none.
+   *
+   * @return whether test3 has passed
+   */
+  protected boolean test3 () {
+
+    System.out.print("\n  Test 3 uses page arrays on an off-heap pool:\n");
+
+    PageId firstPid = fresh("Clock");
+    if (firstPid == null)
+      return FAIL;
+    BufMgr bm = new BufMgr(NUMBUF, "Clock", true);
+    SystemDefs.JavabaseBM = bm;
+    Page pg = new Page();
+    PageId pid = new PageId();
+    try {
+      for (int i = 0; i < NUM_PAGES; i++) {
+	pid.pid = firstPid.pid + i;
+	bm.pinPage(pid, pg, false);
+	Convert.setIntValue(pid.pid + 99999, 0, pg.getpage());
+	// The buffer sees what was written to the array.
+	if (pg.getBuffer().getInt(0) != pid.pid + 99999) {
+	  System.err.print("*** The buffer of page " + pid.pid
+			   + " does not show its array\n");
+	  return FAIL;
+	}
+	bm.unpinPage(pid, true);
+      }
+      for (int i = 0; i < NUM_PAGES; i++) {
+	pid.pid = firstPid.pid + i;
+	bm.pinPage(pid, pg, false);
+	int data = Convert.getIntValue(0, pg.getpage());
+	bm.unpinPage(pid, false);
+	if (data != pid.pid + 99999) {
+	  System.err.print("*** Read " + data + " from the array of page "
+			   + pid.pid + ", expected " + (pid.pid + 99999) + "\n");
+	  return FAIL;
+	}
+      }
+      if (bm.getHeapCopies() < NUM_PAGES) {
+	System.err.print("*** " + bm.getHeapCopies() + " frames were copied"
+			 + " to the heap, expected at least " + NUM_PAGES + "\n");
+	return FAIL;
+      }
+      bm.flushAllPages();
+      bm.resetStatistics();
+      for (int i = 0; i < NUM_PAGES; i++) {
+	pid.pid = firstPid.pid + i;
+	bm.pinPage(pid, pg, false);
+	int data = pg.getBuffer().getInt(0);
+	bm.unpinPage(pid, false);
+	if (data != pid.pid + 99999) {
+	  System.err.print("*** Read " + data + " from the buffer of page "
+			   + pid.pid + ", expected " + (pid.pid + 99999) + "\n");
+	  return FAIL;
+	}
+      }
+      if (bm.getHeapCopies() != 0) {
+	System.err.print("*** Reading through buffers copied "
+			 + bm.getHeapCopies() + " frames to the heap\n");
+	return FAIL;
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not use page " + pid.pid + "\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  Test 3 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * overrides the test4 function in TestDriver.  The scan pauses briefly
+   * on each page, as a scan that does some work would, so that the
+   * prefetch thread keeps ahead of it.
+   *
+   * @return whether test4 has passed
+   */
+  protected boolean test4 () {
+
+    System.out.print("\n  Test 4 scans the pages with read-ahead:\n");
+
+    PageId firstPid = fresh("Clock");
+    if (firstPid == null)
+      return FAIL;
+    BufMgr bm = new BufMgr(NUMBUF, "Clock");
+    SystemDefs.JavabaseBM = bm;
+    bm.setReadAhead(8);
+    Page pg = new Page();
+    PageId pid = new PageId();
+    try {
+      for (int i = 0; i < NUM_PAGES; i++) {
+	pid.pid = firstPid.pid + i;
+	bm.pinPage(pid, pg, false);
+	bm.unpinPage(pid, false);
+	Thread.sleep(2);
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not scan page " + pid.pid + "\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  - " + bm.getHits() + " hits, " + bm.getMisses()
+		     + " misses, " + bm.getPrefetchedPages() + " pages read in "
+		     + bm.getPrefetchReads() + " reads ahead, "
+		     + bm.getPrefetchHits() + " of them pinned\n");
+    // Every page was pinned once, and only the first few, before the
+    // scan was seen to be sequential, should have been missed.
+    if (bm.getHits() + bm.getMisses() != NUM_PAGES
+	|| bm.getMisses() > NUM_PAGES / 4
+	|| bm.getPrefetchHits() < NUM_PAGES / 2
+	|| bm.getPrefetchHits() > bm.getHits()
+	|| bm.getPrefetchReads() == 0
+	|| bm.getPrefetchedPages() < bm.getPrefetchHits()
+	|| bm.getPrefetchFailures() != 0) {
+      System.err.print("*** Read-ahead did not keep ahead of the scan\n");
+      return FAIL;
+    }
+
+    System.out.print("  Test 4 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * overrides the test5 function in TestDriver.  A buffer manager is
+   * published only when asked, and never in place of another.
+   *
+   * @return whether test5 has passed
+   */
+  protected boolean test5 () {
+
+    System.out.print("\n  Test 5 publishes buffer managers through JMX:\n");
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    BufMgr first = new BufMgr(NUMBUF, "Clock");
+    BufMgr second = new BufMgr(NUMBUF / 2, "Clock");
+    try {
+      ObjectName name = new ObjectName("minibase:type=BufMgr");
+      if (server.isRegistered(name)) {
+	System.err.print("*** A buffer manager registered itself\n");
+	return FAIL;
+      }
+
+      first.registerMBean();
+      try {
+	second.registerMBean();
+	System.err.print("*** A second buffer manager replaced the first\n");
+	return FAIL;
+      }
+      catch (InstanceAlreadyExistsException e) {
+	System.out.print("  - a second registration is refused\n");
+      }
+      second.unregisterMBean();
+      if (!Integer.valueOf(NUMBUF).equals(server.getAttribute(name,
+							      "NumBuffers"))) {
+	System.err.print("*** The first buffer manager is not the one "
+			 + "registered\n");
+	return FAIL;
+      }
+
+      first.unregisterMBean();
+      second.registerMBean();
+      if (!Integer.valueOf(NUMBUF / 2).equals(server.getAttribute(name,
+								  "NumBuffers"))) {
+	System.err.print("*** The second buffer manager is not the one "
+			 + "registered\n");
+	return FAIL;
+      }
+      second.unregisterMBean();
+      if (server.isRegistered(name)) {
+	System.err.print("*** The buffer manager is still registered\n");
+	return FAIL;
+      }
+    }
+    catch (JMException e) {
+      System.err.print("*** JMX failed\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  Test 5 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * overrides the test6 function in TestDriver.  Every frame but two is
+   * left dirty with a change logged to a closed log, so that writing any
+   * of them fails for want of the log.  A run of new pages then finds
+   * frames for its first pages and fails on the rest.
+   *
+   * @return whether test6 has passed
+   */
+  protected boolean test6 () {
+
+    System.out.print("\n  Test 6 fails to pin a run of new pages:\n");
+
+    int run = 5;
+    PageId firstPid = fresh("Clock");
+    if (firstPid == null)
+      return FAIL;
+    BufMgr bm = SystemDefs.JavabaseBM;
+    // Pages read ahead would take frames at random, and could push out
+    // the space-map page before newPage() needs it.
+    bm.setReadAhead(0);
+    String logpath = dbpath + ".log";
+    PageId pid = new PageId();
+    try {
+      // Where a run goes, so that a leaked run shows.
+      PageId expect = new PageId();
+      SystemDefs.JavabaseDB.allocate_page(expect, run);
+      SystemDefs.JavabaseDB.deallocate_page(expect, run);
+
+      LogMgr log = new LogMgr(logpath);
+      bm.setLogMgr(log);
+      log.close();
+      Page pg = new Page();
+      int dirty = NUMBUF - 2;
+      // Kept pinned until all are changed, so none is a victim meanwhile.
+      for (int i = 0; i < dirty; i++) {
+	pid.pid = firstPid.pid + i;
+	bm.pinPage(pid, pg, false);
+	pg.getBuffer().putInt(0, pid.pid);
+	bm.logUpdate(pid, 0, 4);
+      }
+      for (int i = 0; i < dirty; i++) {
+	pid.pid = firstPid.pid + i;
+	bm.unpinPage(pid, true);
+      }
+
+      Page [] pages = new Page[run];
+      for (int i = 0; i < run; i++)
+	pages[i] = new Page();
+      try {
+	bm.newPage(pages);
+	System.err.print("*** The new pages were pinned, although no"
+			 + " victim could be written\n");
+	return FAIL;
+      }
+      catch (IOException e) {
+      }
+      if (bm.getNumPinnedBuffers() != 0) {
+	System.err.print("*** " + bm.getNumPinnedBuffers()
+			 + " frames stayed pinned\n");
+	return FAIL;
+      }
+
+      bm.setLogMgr(null);
+      SystemDefs.JavabaseDB.allocate_page(pid, run);
+      if (pid.pid != expect.pid) {
+	System.err.print("*** A run went to page " + pid.pid + ", expected "
+			 + expect.pid + "; the failed run was not freed\n");
+	return FAIL;
+      }
+      SystemDefs.JavabaseDB.deallocate_page(pid, run);
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not set up the failure\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    finally {
+      bm.setLogMgr(null);
+      new File(logpath).delete();
+    }
+
+    System.out.print("  - nothing stayed pinned or allocated\n");
+    System.out.print("  Test 6 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * Create a fresh database and buffer pool, and allocate the pages.
+   *
+   * @return the first page, or null on failure
+   */
+  private PageId fresh (String policy) {
+
+    try {
+      if (SystemDefs.JavabaseBM != null) {
+	SystemDefs.JavabaseBM.stopPageCleaner();
+	SystemDefs.JavabaseBM.stopCheckpointer();
+      }
+      if (SystemDefs.JavabaseDB != null)
+	SystemDefs.JavabaseDB.closeDB();
+      new SystemDefs(dbpath, NUM_PAGES + 20, NUMBUF, policy);
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not create the database\n");
+      e.printStackTrace();
+      return null;
+    }
+
+    Page pg = new Page();
+    PageId firstPid;
+    try {
+      firstPid = SystemDefs.JavabaseBM.newPage(pg, NUM_PAGES);
+      SystemDefs.JavabaseBM.unpinPage(firstPid, false);
+      SystemDefs.JavabaseBM.flushAllPages();
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not allocate " + NUM_PAGES + " pages\n");
+      e.printStackTrace();
+      return null;
+    }
+    return firstPid;
+  }
+
+  /**
+   * Read a page into a frame the replacer picked, and unpin it.
+   */
+  private static void load (Replacer r, int [] pageIn, int frame, int pid) {
+    pageIn[frame] = pid;
+    r.loaded(frame, pid);
+    r.unpinned(frame);
+  }
+
+  /**
+   * overrides the testName function in TestDriver
+   *
+   * @return the name of the test
+   */
+  protected String testName () {
+    return "Buffer Manager Feature";
+  }
+}
+
+public class BMFeatureTest {
+
+   public static void main (String argv[]) {
+
+     BMFeatureDriver bmf = new BMFeatureDriver();
+     boolean dbstatus;
+
+     dbstatus = bmf.runTests();
+
+     if (dbstatus != true) {
+       System.err.println ("Error encountered during buffer manager feature tests:\n");
+       Runtime.getRuntime().exit(1);
+     }
+
+     Runtime.getRuntime().exit(0);
+   }
+}
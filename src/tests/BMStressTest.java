@@ -0,0 +1,835 @@
+package tests;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import chainexception.*;
+import logmgr.*;
+
+/**
+ * This class drives the buffer manager from many threads at once, under
+ * every replacement policy, and checks that no pin and no update is lost.
+ * <br>
+ * Each thread repeatedly pins a page, increments a counter stored at the
+ * start of the page (under a per-page lock, as a page latch would), and
+ * unpins it dirty.  The pool is much smaller than the set of pages, so the
+ * pins race with evictions, write-backs and reloads of the same pages.  At
+ * the end all pages are flushed, and the counters read back from disk must
+ * add up to the number of increments: a page loaded into two frames at
+ * once, or a lost dirty bit, loses increments.  Then every frame must
+ * still be pinnable: a lost unpin leaks a frame.
+ * <br>
+ * Test 4 runs concurrent sequential scans, which the buffer manager reads
+ * ahead of, and checks that every page seen is the page asked for.
+ * Test 5 allocates whole runs of pinned pages with newPage(Page[]).
+ * Test 6 keeps many asynchronous disk reads and writes in flight.
+ * Test 7 logs every increment and commits it, from all threads at once,
+ * then drops the buffer pool without flushing it and rebuilds the pages
+ * from the log.  Test 8 does the same with a checkpointer running, and
+ * rebuilds the pages from the last checkpoint on.
+ * <br>
+ * Pages are accessed through Page.getBuffer(), so the test also runs
+ * against an off-heap pool (-Dminibase.bufmgr.offheap=true).
+ */
+class BMStressDriver extends TestDriver implements GlobalConst {
+
+  private static final int THREADS = 8;
+  private static final int OPS = 20000;
+  private static final int NUM_PAGES = 200;
+  private static final int COMMITS = 500;
+
+  private static final String [] POLICIES =
+    { "Clock", "LRU", "MRU", "LRU-2", "2Q" };
+
+  /**
+   * BMStressDriver Constructor, inherited from TestDriver
+   */
+  public BMStressDriver () {
+    super("bmstress");
+  }
+
+  /**
+   * overrides the test1 function in TestDriver.  Threads pin pages picked
+   * uniformly at random.
+   *
+   * @return whether test1 has passed
+   */
+  protected boolean test1 () {
+
+    System.out.print("\n  Test 1 pins random pages from " + THREADS
+		     + " threads:\n");
+
+    boolean status = OK;
+    for (String policy : POLICIES)
+      if (stress(policy, false, false) != OK) status = FAIL;
+
+    if ( status == OK )
+      System.out.print("  Test 1 completed successfully.\n");
+    return status;
+  }
+
+  /**
+   * overrides the test2 function in TestDriver.  Half the pins go to four
+   * hot pages, so threads keep missing on the same page at the same time.
+   *
+   * @return whether test2 has passed
+   */
+  protected boolean test2 () {
+
+    System.out.print("\n  Test 2 pins a few hot pages from " + THREADS
+		     + " threads:\n");
+
+    boolean status = OK;
+    for (String policy : POLICIES)
+      if (stress(policy, true, false) != OK) status = FAIL;
+
+    if ( status == OK )
+      System.out.print("  Test 2 completed successfully.\n");
+    return status;
+  }
+
+  /**
+   * overrides the test3 function in TestDriver.  As test1, with a page
+   * cleaner writing pages back behind the threads' backs.
+   *
+   * @return whether test3 has passed
+   */
+  protected boolean test3 () {
+
+    System.out.print("\n  Test 3 pins random pages from " + THREADS
+		     + " threads while a page cleaner runs:\n");
+
+    boolean status = OK;
+    for (String policy : POLICIES)
+      if (stress(policy, false, true) != OK) status = FAIL;
+
+    if ( status == OK )
+      System.out.print("  Test 3 completed successfully.\n");
+    return status;
+  }
+
+  /**
+   * overrides the test4 function in TestDriver.  Threads scan all pages
+   * in order, so the buffer manager reads ahead of them.
+   *
+   * @return whether test4 has passed
+   */
+  protected boolean test4 () {
+
+    System.out.print("\n  Test 4 scans the pages from " + THREADS
+		     + " threads with read-ahead:\n");
+
+    boolean status = OK;
+    for (String policy : POLICIES)
+      if (scan(policy) != OK) status = FAIL;
+
+    if ( status == OK )
+      System.out.print("  Test 4 completed successfully.\n");
+    return status;
+  }
+
+  /**
+   * overrides the test5 function in TestDriver.  A run of new pages is
+   * pinned in one call; a run larger than the pool is refused and leaves
+   * nothing pinned.
+   *
+   * @return whether test5 has passed
+   */
+  protected boolean test5 () {
+
+    System.out.print("\n  Test 5 allocates runs of pinned pages:\n");
+
+    // Free the pages fresh() allocated, so the runs reuse them.
+    PageId pages = fresh("Clock");
+    if (pages == null)
+      return FAIL;
+    BufMgr bm = SystemDefs.JavabaseBM;
+    try {
+      SystemDefs.JavabaseDB.deallocate_page(pages, NUM_PAGES);
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    Page [] run = new Page[NUMBUF / 2];
+    for (int i = 0; i < run.length; i++)
+      run[i] = new Page();
+    PageId first;
+    try {
+      first = bm.newPage(run);
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not allocate a run of pages\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    if (first == null) {
+      System.err.print("*** A run of " + run.length + " pages was refused\n");
+      return FAIL;
+    }
+    try {
+      for (int i = 0; i < run.length; i++) {
+	ByteBuffer buf = run[i].getBuffer();
+	for (int j = 0; j < MINIBASE_PAGESIZE; j++) {
+	  if (buf.get(j) != 0) {
+	    System.err.print("*** New page " + (first.pid + i)
+			     + " is not zero-filled\n");
+	    return FAIL;
+	  }
+	}
+	buf.putInt(0, first.pid + i);
+      }
+      for (int i = 0; i < run.length; i++) {
+	if (run[i].getBuffer().getInt(0) != first.pid + i) {
+	  System.err.print("*** New pages share a frame\n");
+	  return FAIL;
+	}
+	bm.unpinPage(new PageId(first.pid + i), true);
+      }
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    Page [] tooMany = new Page[NUMBUF + 1];
+    for (int i = 0; i < tooMany.length; i++)
+      tooMany[i] = new Page();
+    try {
+      if (bm.newPage(tooMany) != null) {
+	System.err.print("*** A run larger than the pool was pinned\n");
+	return FAIL;
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Allocating too large a run failed\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    // Nothing of the refused run may stay pinned.
+    Page pg = new Page();
+    int pinned = 0;
+    try {
+      for (; pinned < NUMBUF; pinned++)
+	bm.pinPage(new PageId(first.pid + pinned), pg, false);
+      for (int i = 0; i < pinned; i++)
+	bm.unpinPage(new PageId(first.pid + i), false);
+    }
+    catch (Exception e) {
+      System.err.print("*** Only " + pinned + " of " + NUMBUF
+		       + " frames could be pinned after a refused run\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  Test 5 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * overrides the test6 function in TestDriver.  Every page is written,
+   * then read back, with all requests queued at once through a queue much
+   * shorter than the number of pages.
+   *
+   * @return whether test6 has passed
+   */
+  protected boolean test6 () {
+
+    System.out.print("\n  Test 6 queues asynchronous page I/O:\n");
+
+    PageId first = fresh("Clock");
+    if (first == null)
+      return FAIL;
+    DB db = SystemDefs.JavabaseDB;
+    db.setAsyncIO(4, 16);
+
+    try {
+      List<CompletableFuture<Page>> writes =
+	new ArrayList<CompletableFuture<Page>>();
+      for (int i = 0; i < NUM_PAGES; i++) {
+	Page pg = new Page();
+	pg.getBuffer().putInt(8, first.pid + i);
+	writes.add(db.write_page_async(new PageId(first.pid + i), pg));
+      }
+      for (CompletableFuture<Page> w : writes)
+	w.get();
+
+      List<CompletableFuture<Page>> reads =
+	new ArrayList<CompletableFuture<Page>>();
+      for (int i = 0; i < NUM_PAGES; i++)
+	reads.add(db.read_page_async(new PageId(first.pid + i), new Page()));
+      for (int i = 0; i < NUM_PAGES; i++) {
+	int stamp = reads.get(i).get().getBuffer().getInt(8);
+	if (stamp != first.pid + i) {
+	  System.err.print("*** Page " + (first.pid + i) + " read back as "
+			   + stamp + "\n");
+	  return FAIL;
+	}
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Asynchronous I/O failed\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    if (db.getAsyncLatency().count() != 2 * NUM_PAGES) {
+      System.err.print("*** " + db.getAsyncLatency().count()
+		       + " request latencies recorded, expected "
+		       + 2 * NUM_PAGES + "\n");
+      return FAIL;
+    }
+    System.out.print("  Test 6 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * Runs tests 1 to 6, then tests 7 and 8.
+   */
+  protected boolean runAllTests () {
+    boolean ok = super.runAllTests();
+    if (!test7()) { ok = FAIL; }
+    if (!test8()) { ok = FAIL; }
+    return ok;
+  }
+
+  /**
+   * Threads log and commit their increments through the write-ahead log.
+   * Concurrent commits should share forces of the log.  The pool is then
+   * thrown away unflushed, as a crash would, and redoing the log must
+   * bring every increment back.
+   *
+   * @return whether test7 has passed
+   */
+  protected boolean test7 () {
+
+    System.out.print("\n  Test 7 group-commits a write-ahead log:\n");
+
+    PageId first = fresh("Clock");
+    if (first == null)
+      return FAIL;
+    new File(logpath).delete();
+
+    LogMgr log;
+    try {
+      log = new LogMgr(logpath);
+    }
+    catch (IOException e) {
+      System.err.print("*** Could not create the log\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    SystemDefs.JavabaseBM.setLogMgr(log);
+    SystemDefs.JavabaseBM.startPageCleaner(20000);
+    if (!commitAll(first, log))
+      return FAIL;
+
+    System.out.print("    " + log.getCommits() + " commits in "
+		     + log.getForces() + " forces of the log\n");
+    if (log.getForces() >= log.getCommits()) {
+      System.err.print("*** No two commits shared a force of the log\n");
+      return FAIL;
+    }
+
+    // Crash: the dirty frames are lost, and the log is reopened.
+    long total = 0;
+    try {
+      SystemDefs.JavabaseBM.stopPageCleaner();
+      log.close();
+      SystemDefs.JavabaseBM = new BufMgr(NUMBUF, "Clock");
+      log = new LogMgr(logpath);
+      int redone = log.redo(0);
+      if (redone != THREADS * COMMITS) {
+	System.err.print("*** Redid " + redone + " changes, expected "
+			 + THREADS * COMMITS + "\n");
+	return FAIL;
+      }
+      SystemDefs.JavabaseBM.flushAllPages();
+      log.close();
+      total = diskTotal(first);
+    }
+    catch (Exception e) {
+      System.err.print("*** Recovery failed\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    if (total != (long) THREADS * COMMITS) {
+      System.err.print("*** Recovered " + total + " increments, expected "
+		       + (long) THREADS * COMMITS + "\n");
+      return FAIL;
+    }
+    System.out.print("  Test 7 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * As test 7, but with a checkpointer taking fuzzy checkpoints and
+   * writing back the pages that hold recovery back.  Recovery from the
+   * last checkpoint must redo only part of the log, and still bring every
+   * increment back.
+   *
+   * @return whether test8 has passed
+   */
+  protected boolean test8 () {
+
+    System.out.print("\n  Test 8 recovers from a fuzzy checkpoint:\n");
+
+    PageId first = fresh("Clock");
+    if (first == null)
+      return FAIL;
+    new File(logpath).delete();
+    new File(logpath + ".master").delete();
+
+    LogMgr log;
+    try {
+      log = new LogMgr(logpath);
+    }
+    catch (IOException e) {
+      System.err.print("*** Could not create the log\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    SystemDefs.JavabaseBM.setLogMgr(log);
+    SystemDefs.JavabaseBM.startCheckpointer(20, 16 * 1024, 20000);
+    if (!commitAll(first, log))
+      return FAIL;
+
+    // Crash after a last checkpoint, and recover from it.
+    long total = 0;
+    try {
+      SystemDefs.JavabaseBM.stopCheckpointer();
+      if (SystemDefs.JavabaseBM.getBackgroundFailures() != 0) {
+	System.err.print("*** The checkpointer failed "
+			 + SystemDefs.JavabaseBM.getBackgroundFailures()
+			 + " times: "
+			 + SystemDefs.JavabaseBM.getLastBackgroundFailure() + "\n");
+	return FAIL;
+      }
+      SystemDefs.JavabaseBM.checkpoint();
+      System.out.print("    " + log.getCheckpoints() + " checkpoints\n");
+      log.close();
+      SystemDefs.JavabaseBM = new BufMgr(NUMBUF, "Clock");
+      log = new LogMgr(logpath);
+      long redo = log.getRedoLSN();
+      if (redo <= 0) {
+	System.err.print("*** Recovery would start at the head of the log\n");
+	return FAIL;
+      }
+      int redone = log.recover();
+      System.out.print("    redid " + redone + " changes from LSN " + redo
+		       + " of " + log.getEndLSN() + "\n");
+      if (redone >= THREADS * COMMITS) {
+	System.err.print("*** The checkpoint did not shorten recovery\n");
+	return FAIL;
+      }
+      SystemDefs.JavabaseBM.flushAllPages();
+      log.close();
+      total = diskTotal(first);
+    }
+    catch (Exception e) {
+      System.err.print("*** Recovery failed\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    if (total != (long) THREADS * COMMITS) {
+      System.err.print("*** Recovered " + total + " increments, expected "
+		       + (long) THREADS * COMMITS + "\n");
+      return FAIL;
+    }
+    System.out.print("  Test 8 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * Run the committing threads against the pages from first on.
+   */
+  private boolean commitAll (PageId first, LogMgr log) {
+
+    Object [] latches = new Object[NUM_PAGES];
+    for (int i = 0; i < NUM_PAGES; i++)
+      latches[i] = new Object();
+    Committer [] committers = new Committer[THREADS];
+    for (int t = 0; t < THREADS; t++)
+      committers[t] = new Committer(first.pid, latches, log, t);
+    for (Committer c : committers)
+      c.start();
+    for (Committer c : committers) {
+      try {
+	c.join();
+      }
+      catch (InterruptedException e) {
+	return FAIL;
+      }
+      if (c.failure != null) {
+	System.err.print("*** A committing thread failed\n");
+	c.failure.printStackTrace();
+	return FAIL;
+      }
+    }
+    return OK;
+  }
+
+  /**
+   * @return the sum of the counters on the pages from first on, as they
+   *         are in the database rather than the pool
+   */
+  private long diskTotal (PageId first) throws Exception {
+    long total = 0;
+    PageId pid = new PageId();
+    Page disk = new Page();
+    for (int i = 0; i < NUM_PAGES; i++) {
+      pid.pid = first.pid + i;
+      SystemDefs.JavabaseDB.read_page(pid, disk);
+      total += disk.getBuffer().getInt(0);
+    }
+    return total;
+  }
+
+  /**
+   * Create a fresh database and buffer pool, and allocate the pages.
+   *
+   * @return the first page, or null on failure
+   */
+  private PageId fresh (String policy) {
+
+    System.out.print("  - " + policy + "\n");
+
+    try {
+      // A page cleaner left running would write the old pool's pages
+      // into the new database.
+      if (SystemDefs.JavabaseBM != null) {
+	SystemDefs.JavabaseBM.stopPageCleaner();
+	SystemDefs.JavabaseBM.stopCheckpointer();
+      }
+      if (SystemDefs.JavabaseDB != null)
+	SystemDefs.JavabaseDB.closeDB();
+      new SystemDefs(dbpath, NUM_PAGES + 20, NUMBUF, policy);
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not create the database\n");
+      e.printStackTrace();
+      return null;
+    }
+
+    Page pg = new Page();
+    PageId firstPid;
+    try {
+      firstPid = SystemDefs.JavabaseBM.newPage(pg, NUM_PAGES);
+      SystemDefs.JavabaseBM.unpinPage(firstPid, false);
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not allocate " + NUM_PAGES + " pages\n");
+      e.printStackTrace();
+      return null;
+    }
+    return firstPid;
+  }
+
+  /**
+   * Run one stress round against a fresh database and buffer pool.
+   */
+  private boolean stress (String policy, boolean hot, boolean cleaner) {
+
+    PageId firstPid = fresh(policy);
+    if (firstPid == null)
+      return FAIL;
+    Page pg = new Page();
+
+    if (cleaner)
+      SystemDefs.JavabaseBM.startPageCleaner(20000);
+
+    Object [] latches = new Object[NUM_PAGES];
+    for (int i = 0; i < NUM_PAGES; i++)
+      latches[i] = new Object();
+
+    Worker [] workers = new Worker[THREADS];
+    for (int t = 0; t < THREADS; t++)
+      workers[t] = new Worker(firstPid.pid, latches, hot, t);
+    for (Worker w : workers)
+      w.start();
+    for (Worker w : workers) {
+      try {
+	w.join();
+      }
+      catch (InterruptedException e) {
+	return FAIL;
+      }
+      if (w.failure != null) {
+	System.err.print("*** A worker thread failed\n");
+	w.failure.printStackTrace();
+	return FAIL;
+      }
+    }
+
+    SystemDefs.JavabaseBM.stopPageCleaner();
+    if (cleaner && (SystemDefs.JavabaseBM.getCleanerWrites() == 0
+		    || SystemDefs.JavabaseBM.getBackgroundFailures() != 0)) {
+      System.err.print("*** The page cleaner wrote "
+		       + SystemDefs.JavabaseBM.getCleanerWrites()
+		       + " pages and failed "
+		       + SystemDefs.JavabaseBM.getBackgroundFailures()
+		       + " times: "
+		       + SystemDefs.JavabaseBM.getLastBackgroundFailure() + "\n");
+      return FAIL;
+    }
+
+    // Every increment must reach the disk, whether its page was written
+    // back by an eviction, by the cleaner or by flushAllPages.
+    long total = 0;
+    PageId pid = new PageId();
+    try {
+      SystemDefs.JavabaseBM.flushAllPages();
+      Page disk = new Page();
+      for (int i = 0; i < NUM_PAGES; i++) {
+	pid.pid = firstPid.pid + i;
+	SystemDefs.JavabaseDB.read_page(pid, disk);
+	total += disk.getBuffer().getInt(0);
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not read back page " + pid.pid + "\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    if (total != (long) THREADS * OPS) {
+      System.err.print("*** Counted " + total + " increments, expected "
+		       + (long) THREADS * OPS + "\n");
+      return FAIL;
+    }
+
+    // All pins were dropped, so every frame can be pinned at once.
+    int pinned = 0;
+    try {
+      for (; pinned < NUMBUF; pinned++) {
+	pid.pid = firstPid.pid + pinned;
+	SystemDefs.JavabaseBM.pinPage(pid, pg, false);
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Only " + pinned + " of " + NUMBUF
+		       + " frames could be pinned\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    try {
+      for (int i = 0; i < pinned; i++) {
+	pid.pid = firstPid.pid + i;
+	SystemDefs.JavabaseBM.unpinPage(pid, false);
+      }
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+      return FAIL;
+    }
+    if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF) {
+      System.err.print("*** The buffer manager reports "
+		       + SystemDefs.JavabaseBM.getNumUnpinnedBuffers()
+		       + " unpinned frames, expected " + NUMBUF + "\n");
+      return FAIL;
+    }
+
+    return OK;
+  }
+
+  /**
+   * Run one round of concurrent scans against a fresh database and buffer
+   * pool.  Every page is stamped with its own number first.
+   */
+  private boolean scan (String policy) {
+
+    PageId firstPid = fresh(policy);
+    if (firstPid == null)
+      return FAIL;
+    Page pg = new Page();
+    PageId pid = new PageId();
+    try {
+      for (int i = 0; i < NUM_PAGES; i++) {
+	pid.pid = firstPid.pid + i;
+	SystemDefs.JavabaseBM.pinPage(pid, pg, false);
+	pg.getBuffer().putInt(4, pid.pid);
+	SystemDefs.JavabaseBM.unpinPage(pid, true);
+      }
+      SystemDefs.JavabaseBM.flushAllPages();
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not stamp page " + pid.pid + "\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    long hitsBefore = SystemDefs.JavabaseBM.getPrefetchHits();
+    Scanner [] scanners = new Scanner[THREADS];
+    for (int t = 0; t < THREADS; t++)
+      scanners[t] = new Scanner(firstPid.pid);
+    for (Scanner sc : scanners)
+      sc.start();
+    for (Scanner sc : scanners) {
+      try {
+	sc.join();
+      }
+      catch (InterruptedException e) {
+	return FAIL;
+      }
+      if (sc.failure != null) {
+	System.err.print("*** A scan failed\n");
+	sc.failure.printStackTrace();
+	return FAIL;
+      }
+    }
+
+    BufMgr bm = SystemDefs.JavabaseBM;
+    System.out.print("    " + bm.getPrefetchedPages() + " pages read ahead in "
+		     + bm.getPrefetchReads() + " reads, "
+		     + bm.getPrefetchHits() + " used, "
+		     + bm.getPrefetchWasted() + " wasted\n");
+    if (bm.getPrefetchHits() == hitsBefore) {
+      System.err.print("*** No page read ahead was ever used\n");
+      return FAIL;
+    }
+    return OK;
+  }
+
+  /**
+   * A thread reading every page in order.
+   */
+  private static class Scanner extends Thread {
+
+    private final int firstPid;
+    Exception failure;
+
+    Scanner (int firstPid) {
+      this.firstPid = firstPid;
+    }
+
+    public void run () {
+      Page pg = new Page();
+      PageId pid = new PageId();
+      try {
+	for (int i = 0; i < NUM_PAGES; i++) {
+	  pid.pid = firstPid + i;
+	  SystemDefs.JavabaseBM.pinPage(pid, pg, false);
+	  int stamp = pg.getBuffer().getInt(4);
+	  SystemDefs.JavabaseBM.unpinPage(pid, false);
+	  if (stamp != pid.pid)
+	    throw new Exception("page " + pid.pid + " holds page " + stamp);
+	}
+      }
+      catch (Exception e) {
+	failure = e;
+      }
+    }
+  }
+
+  /**
+   * A thread pinning, updating and unpinning pages.
+   */
+  private static class Worker extends Thread {
+
+    private final int firstPid;
+    private final Object [] latches;
+    private final boolean hot;
+    private final Random rand;
+    Exception failure;
+
+    Worker (int firstPid, Object [] latches, boolean hot, int seed) {
+      this.firstPid = firstPid;
+      this.latches = latches;
+      this.hot = hot;
+      this.rand = new Random(seed);
+    }
+
+    public void run () {
+      Page pg = new Page();
+      PageId pid = new PageId();
+      try {
+	for (int i = 0; i < OPS; i++) {
+	  int page = (hot && rand.nextBoolean()) ? rand.nextInt(4)
+	                                         : rand.nextInt(NUM_PAGES);
+	  pid.pid = firstPid + page;
+	  SystemDefs.JavabaseBM.pinPage(pid, pg, false);
+	  synchronized (latches[page]) {
+	    int count = pg.getBuffer().getInt(0);
+	    pg.getBuffer().putInt(0, count + 1);
+	  }
+	  SystemDefs.JavabaseBM.unpinPage(pid, true);
+	}
+      }
+      catch (Exception e) {
+	failure = e;
+      }
+    }
+  }
+
+  /**
+   * A thread logging and committing increments.
+   */
+  private static class Committer extends Thread {
+
+    private final int firstPid;
+    private final Object [] latches;
+    private final LogMgr log;
+    private final Random rand;
+    Exception failure;
+
+    Committer (int firstPid, Object [] latches, LogMgr log, int seed) {
+      this.firstPid = firstPid;
+      this.latches = latches;
+      this.log = log;
+      this.rand = new Random(seed);
+    }
+
+    public void run () {
+      Page pg = new Page();
+      PageId pid = new PageId();
+      try {
+	for (int i = 0; i < COMMITS; i++) {
+	  int page = rand.nextInt(NUM_PAGES);
+	  pid.pid = firstPid + page;
+	  SystemDefs.JavabaseBM.pinPage(pid, pg, false);
+	  synchronized (latches[page]) {
+	    int count = pg.getBuffer().getInt(0);
+	    pg.getBuffer().putInt(0, count + 1);
+	    SystemDefs.JavabaseBM.logUpdate(pid, 0, 4);
+	  }
+	  SystemDefs.JavabaseBM.unpinPage(pid, true);
+	  log.commit();
+	}
+      }
+      catch (Exception e) {
+	failure = e;
+      }
+    }
+  }
+
+  /**
+   * overrides the testName function in TestDriver
+   *
+   * @return the name of the test
+   */
+  protected String testName () {
+    return "Buffer Manager Stress";
+  }
+}
+
+public class BMStressTest {
+
+   public static void main (String argv[]) {
+
+     BMStressDriver bms = new BMStressDriver();
+     boolean dbstatus;
+
+     dbstatus = bms.runTests();
+
+     if (dbstatus != true) {
+       System.err.println ("Error encountered during buffer manager stress tests:\n");
+       Runtime.getRuntime().exit(1);
+     }
+
+     Runtime.getRuntime().exit(0);
+   }
+}
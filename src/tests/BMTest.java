@@ -190,13 +190,7 @@ class BMDriver extends TestDriver implements GlobalConst {
 	// coincidence.
 	int data = pid.pid + 99999;
 	
-	try {
-	  Convert.setIntValue (data, 0, pg.getpage());
-	}
-	catch (IOException e) {
-	  System.err.print ("*** Convert value failed\n");
-	  status = FAIL;
-	}
+	pg.getBuffer().putInt(0, data);
 	
 	if (status == OK) {
 	  try {
@@ -231,15 +225,7 @@ class BMDriver extends TestDriver implements GlobalConst {
       
       if ( status == OK ) {
 
-	int data = 0;
-
-	try {
-	  data = Convert.getIntValue (0, pg.getpage());
-	}
-	catch (IOException e) {
-	  System.err.print ("*** Convert value failed \n");
-	  status = FAIL;
-	}
+	int data = pg.getBuffer().getInt(0);
 	
 	if (status == OK) {
 	  if (data != (pid.pid) + 99999) {
@@ -502,14 +488,7 @@ class BMDriver extends TestDriver implements GlobalConst {
 	// coincidence.
 	int data = pid.pid + 99999;
 	
-	try {
-	  Convert.setIntValue (data, 0, pg.getpage());
-	}
-	catch (IOException e) {
-	  System.err.print ("*** Convert value failed\n");
-	  status = FAIL;
-	  e.printStackTrace();
-	}
+	pg.getBuffer().putInt(0, data);
 	
 	// Leave the page pinned if it equals 12 mod 20.  This is a
 	// random number based loosely on a bug report.
@@ -543,15 +522,7 @@ class BMDriver extends TestDriver implements GlobalConst {
 	
 	if ( status == OK ) {
 	  
-	  int data = 0;
-	  
-	  try {
-	    data = Convert.getIntValue (0, pg.getpage());
-	  }
-	  catch (IOException e) {
-	    System.err.print ("*** Convert value failed \n");
-	    status = FAIL;
-	  }
+	  int data = pg.getBuffer().getInt(0);
 	  
 	  if ( data != pid.pid + 99999 ) {
 	    status = FAIL;
@@ -0,0 +1,1432 @@
+package tests;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import chainexception.*;
+
+/**
+ * This class tests the disk manager through its public interface: pages
+ * written through each kind of I/O must read back the same, and survive
+ * closing and reopening the database.
+ * <br>
+ * Test 1 writes pages one at a time and in runs, through positional file
+ * channel I/O, and reads them back before and after a reopen.
+ * Test 2 does the same through a memory mapping, then reads the pages
+ * back through the file channel.
+ * Test 3 does it with direct I/O, where several pages share a disk block
+ * and each write rewrites the block around its page.
+ * Test 4 allocates and frees random runs of pages, and checks that each
+ * run goes where a first fit over a plain array of pages puts it.
+ * Test 5 frees holes across the words, bytes and pages of the space map,
+ * and checks, after a reopen, that allocations find exactly those holes.
+ * Test 6 allocates best fit, as test 4 does first fit, and then near
+ * given pages.
+ * Test 7 adds and deletes file entries over several header pages, and
+ * looks them up before and after a reopen.
+ * Test 8 grows a database past its first space-map page, and reopens it
+ * without flushing the buffer pool.
+ * Test 9 checksums pages, one of them with a checksum of 0, damages them
+ * on disk and expects them to fail their checks.
+ * Test 10 compresses and decompresses pages with the LZCodec, and feeds
+ * it input that is not compressed pages.
+ * Test 11 writes and rewrites compressed pages, and reads them back
+ * before and after a reopen.
+ * Test 12 stripes pages over three files, reads them back before and
+ * after a reopen, finds each in its file, and opens the database with
+ * other striping.
+ * Test 13 fills the first directory page and more with the longest file
+ * names, and checks that the database keeps its size and striping.
+ * Test 14 copies a checksummed database as a crash would leave it, after
+ * the buffer pool is flushed and after many pages are written, and
+ * checks the pages in the copy.
+ * Test 15 does the same with a compressed database, whose pages must be
+ * found in the copy as last forced.
+ */
+class DBDriver extends TestDriver implements GlobalConst {
+
+  private static final int NUM_PAGES = 200;
+  private static final int RUN = 40;
+  private static final int OPS = 2000;
+  private static final int MAX_RUN = 150;
+  /** the most entries ChecksumIO and CompressedIO hold before they force */
+  private static final int PENDING_LIMIT = 1024;
+  /** the room CompressedIO gives a compressed page */
+  private static final int PACKED_SIZE = MINIBASE_PAGESIZE - 64;
+  private static final byte [][] WORDS = {
+    "minibase ".getBytes(), "buffer ".getBytes(), "page ".getBytes(),
+    "record ".getBytes(), "heap file ".getBytes(), "index ".getBytes(),
+  };
+
+  /** how the database is opened; kept for reopening it */
+  private boolean mapped;
+  private boolean direct;
+  private boolean checksums;
+  private boolean compress;
+  private String [] stripes = new String[0];
+  private int stripe_unit;
+
+  /**
+   * DBDriver Constructor, inherited from TestDriver
+   */
+  public DBDriver () {
+    super("dbtest");
+  }
+
+  /**
+   * overrides the test1 function in TestDriver.
+   *
+   * @return whether test1 has passed
+   */
+  protected boolean test1 () {
+
+    System.out.print("\n  Test 1 reads back pages through file channel I/O:\n");
+
+    if (roundTrip(false, false) == null)
+      return FAIL;
+
+    System.out.print("  Test 1 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * overrides the test2 function in TestDriver.  A mapped database is the
+   * same file as any other, so it can be reopened without the mapping.
+   *
+   * @return whether test2 has passed
+   */
+  protected boolean test2 () {
+
+    System.out.print("\n  Test 2 reads back pages through a memory mapping:\n");
+
+    PageId first = roundTrip(true, false);
+    if (first == null)
+      return FAIL;
+    try {
+      mapped = false;
+      reopen();
+      if (check(first, "unmapped") != OK)
+	return FAIL;
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not reopen the database unmapped\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  Test 2 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * overrides the test3 function in TestDriver.  Half the run is written
+   * a page at a time, so neighbouring pages of a block are written
+   * separately, and none may undo another.  Where the file system
+   * does not support direct I/O, the database falls back to buffered I/O
+   * and the test checks that instead.
+   *
+   * @return whether test3 has passed
+   */
+  protected boolean test3 () {
+
+    System.out.print("\n  Test 3 reads back pages through direct I/O:\n");
+
+    if (roundTrip(false, true) == null)
+      return FAIL;
+    System.out.print("  - the database "
+		     + (SystemDefs.JavabaseDB.isDirectIO() ? "used" : "fell back from")
+		     + " direct I/O\n");
+
+    System.out.print("  Test 3 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * Run the tests past the six TestDriver runs.
+   */
+  protected boolean runAllTests () {
+    boolean ok = super.runAllTests();
+    if (!test7()) { ok = FAIL; }
+    if (!test8()) { ok = FAIL; }
+    if (!test9()) { ok = FAIL; }
+    if (!test10()) { ok = FAIL; }
+    if (!test11()) { ok = FAIL; }
+    if (!test12()) { ok = FAIL; }
+    if (!test13()) { ok = FAIL; }
+    if (!test14()) { ok = FAIL; }
+    if (!test15()) { ok = FAIL; }
+    return ok;
+  }
+
+  /**
+   * overrides the test4 function in TestDriver.  Runs are up to a few
+   * words of the space map long, and start anywhere, so they cross word
+   * boundaries as well as fall within words.  The database does not grow,
+   * so some allocations find no room.
+   *
+   * @return whether test4 has passed
+   */
+  protected boolean test4 () {
+
+    System.out.print("\n  Test 4 allocates pages first fit:\n");
+
+    try {
+      create(2000, false, false);
+      SystemDefs.JavabaseDB.setExtentSize(0);
+      if (allocations(new Random(4), inUse(2000), false) != OK)
+	return FAIL;
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not allocate pages\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  Test 4 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * overrides the test5 function in TestDriver.  The database has three
+   * space-map pages.  Once it is full, holes are freed that cross a word,
+   * a map page, or nothing, and the holes must be all that is free after
+   * the map is read back from disk.
+   *
+   * @return whether test5 has passed
+   */
+  protected boolean test5 () {
+
+    System.out.print("\n  Test 5 reads back the space map:\n");
+
+    int pages = 20000;
+    int [][] holes = {
+      { 63, 2 }, { 100, 1 }, { 127, 130 }, { 1000, 64 },
+      { 8150, 100 }, { 16380, 10 }, { pages - 7, 7 },
+    };
+    try {
+      create(pages, false, false);
+      SystemDefs.JavabaseDB.setExtentSize(0);
+      boolean [] used = inUse(pages);
+      int first = 0;
+      while (used[first])
+	first++;
+      SystemDefs.JavabaseDB.allocate_page(new PageId(), pages - first);
+      Arrays.fill(used, true);
+      for (int [] hole : holes) {
+	SystemDefs.JavabaseDB.deallocate_page(new PageId(hole[0]), hole[1]);
+	Arrays.fill(used, hole[0], hole[0] + hole[1], false);
+      }
+
+      reopen();
+      SystemDefs.JavabaseDB.setExtentSize(0);
+      if (allocations(new Random(5), used, false) != OK)
+	return FAIL;
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not allocate pages\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  Test 5 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * overrides the test6 function in TestDriver.  Best fit depends on free
+   * runs being merged with their neighbours when freed, so that the
+   * extents it chooses among are the longest they can be.
+   *
+   * @return whether test6 has passed
+   */
+  protected boolean test6 () {
+
+    System.out.print("\n  Test 6 allocates pages best fit and near others:\n");
+
+    try {
+      create(2000, false, false);
+      SystemDefs.JavabaseDB.setExtentSize(0);
+      SystemDefs.JavabaseDB.setBestFit(true);
+      if (allocations(new Random(6), inUse(2000), true) != OK)
+	return FAIL;
+
+      // Three adjacent runs freed out of order make one extent.
+      create(1000, false, false);
+      SystemDefs.JavabaseDB.setExtentSize(0);
+      SystemDefs.JavabaseDB.setBestFit(true);
+      DB db = SystemDefs.JavabaseDB;
+      boolean [] used = inUse(1000);
+      int first = 0;
+      while (used[first])
+	first++;
+      db.allocate_page(new PageId(), 1000 - first);
+      for (int p : new int [] { 400, 420, 410 })
+	db.deallocate_page(new PageId(p), 10);
+      db.deallocate_page(new PageId(600), 31);
+      PageId pid = new PageId();
+      db.allocate_page(pid, 30);
+      if (pid.pid != 400) {
+	System.err.print("*** The freed runs were not merged: 30 pages"
+			 + " went to page " + pid.pid + ", expected 400\n");
+	return FAIL;
+      }
+      System.out.print("  - freed neighbours are merged\n");
+
+      // Near: inside a free extent, the nearest one after, the nearest
+      // one before, and the only one long enough.
+      for (int p : new int [] { 100, 300, 500 })
+	db.deallocate_page(new PageId(p), (p == 500) ? 20 : 10);
+      int [][] cases = {
+	{ 5, 305, 305 }, { 5, 290, 300 }, { 5, 330, 305 }, { 15, 200, 500 },
+      };
+      for (int [] c : cases) {
+	db.allocate_page(pid, c[0], new PageId(c[1]));
+	if (pid.pid != c[2]) {
+	  System.err.print("*** " + c[0] + " pages near page " + c[1]
+			   + " went to page " + pid.pid + ", expected "
+			   + c[2] + "\n");
+	  return FAIL;
+	}
+	db.deallocate_page(pid, c[0]);
+      }
+      System.out.print("  - runs go near the pages asked for\n");
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not allocate pages\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  Test 6 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * Every third file is deleted, and files are added again into the
+   * slots freed, so the directory must follow slots being reused as well
+   * as entries coming and going.
+   *
+   * @return whether test7 has passed
+   */
+  protected boolean test7 () {
+
+    System.out.print("\n  Test 7 adds and deletes file entries:\n");
+
+    int files = 100;
+    Map<String,Integer> expect = new HashMap<String,Integer>();
+    try {
+      create(NUM_PAGES, false, false);
+      DB db = SystemDefs.JavabaseDB;
+      for (int i = 0; i < files; i++) {
+	db.add_file_entry("file" + i, new PageId(10 + i));
+	expect.put("file" + i, 10 + i);
+      }
+      for (int i = 0; i < files; i += 3) {
+	db.delete_file_entry("file" + i);
+	expect.remove("file" + i);
+      }
+      for (int i = 0; i < files; i += 6) {
+	db.add_file_entry("again" + i, new PageId(150 + i / 6));
+	expect.put("again" + i, 150 + i / 6);
+      }
+      if (lookUp(expect, files, "as added") != OK)
+	return FAIL;
+
+      try {
+	db.add_file_entry("file1", new PageId(20));
+	System.err.print("*** A file was added twice\n");
+	return FAIL;
+      }
+      catch (DuplicateEntryException e) {
+      }
+      try {
+	db.delete_file_entry("file0");
+	System.err.print("*** A file was deleted twice\n");
+	return FAIL;
+      }
+      catch (FileEntryNotFoundException e) {
+      }
+
+      reopen();
+      if (lookUp(expect, files, "after a reopen") != OK)
+	return FAIL;
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not change the file directory\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  Test 7 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * The growth adds a space-map page.  Changes made through the buffer
+   * pool are lost when it is dropped, as in a crash, but the growth
+   * itself must not be: the new size and the new map page are written
+   * by the time the allocation returns.
+   *
+   * @return whether test8 has passed
+   */
+  protected boolean test8 () {
+
+    System.out.print("\n  Test 8 grows a database:\n");
+
+    int pages = 100;
+    int extent = 9000;
+    try {
+      create(pages, false, false);
+      SystemDefs.JavabaseDB.setExtentSize(extent);
+      PageId pid = new PageId();
+      SystemDefs.JavabaseDB.allocate_page(pid, pages);
+      int grown = SystemDefs.JavabaseDB.db_num_pages();
+      if (grown != pages + extent) {
+	System.err.print("*** The database grew to " + grown
+			 + " pages, expected " + (pages + extent) + "\n");
+	return FAIL;
+      }
+      SystemDefs.JavabaseDB.write_page(new PageId(grown - 1),
+				       pattern(grown - 1));
+
+      // Drop the pool unflushed.
+      SystemDefs.JavabaseDB.closeDB();
+      SystemDefs.JavabaseBM = new BufMgr(NUMBUF, "Clock");
+      SystemDefs.JavabaseDB = newDB();
+      SystemDefs.JavabaseDB.openDB(dbpath, mapped);
+
+      if (SystemDefs.JavabaseDB.db_num_pages() != grown) {
+	System.err.print("*** The database has "
+			 + SystemDefs.JavabaseDB.db_num_pages()
+			 + " pages after a reopen, expected " + grown + "\n");
+	return FAIL;
+      }
+      Page pg = new Page();
+      SystemDefs.JavabaseDB.read_page(new PageId(grown - 1), pg);
+      if (!Arrays.equals(pg.getpage(), pattern(grown - 1).getpage())) {
+	System.err.print("*** The last page was lost\n");
+	return FAIL;
+      }
+      // The second space-map page describes itself as in use.
+      int map = MINIBASE_PAGESIZE * 8;
+      SystemDefs.JavabaseDB.allocate_page(pid, 1, new PageId(map));
+      if (pid.pid == map) {
+	System.err.print("*** The new space-map page " + map
+			 + " was allocated\n");
+	return FAIL;
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not grow the database\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  - grown to " + (pages + extent)
+		     + " pages, and still so after a reopen\n");
+    System.out.print("  Test 8 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * Pages are damaged in the file after they have been checksummed and
+   * forced.  Each must then fail its check, read from the database and
+   * pinned in the buffer pool; a checksum of 0 is checked like any other.
+   *
+   * @return whether test9 has passed
+   */
+  protected boolean test9 () {
+
+    System.out.print("\n  Test 9 damages checksummed pages:\n");
+
+    PageId first = new PageId();
+    Page [] written = { pattern(0), zeroChecksum(pattern(1)) };
+    if (crc32c(written[1].getpage()) != 0) {
+      System.err.print("*** No page with a checksum of 0 was made\n");
+      return FAIL;
+    }
+    try {
+      checksums = true;
+      create(NUM_PAGES, false, false);
+      SystemDefs.JavabaseDB.allocate_page(first, written.length);
+      for (int i = 0; i < written.length; i++)
+	SystemDefs.JavabaseDB.write_page(new PageId(first.pid + i),
+					 written[i]);
+      reopen();
+      Page pg = new Page();
+      for (int i = 0; i < written.length; i++) {
+	SystemDefs.JavabaseDB.read_page(new PageId(first.pid + i), pg);
+	if (!Arrays.equals(pg.getpage(), written[i].getpage())) {
+	  System.err.print("*** Page " + (first.pid + i)
+			   + " is not the page written\n");
+	  return FAIL;
+	}
+      }
+      close();
+
+      // Flip a byte of each page in the file, behind the checksums.
+      RandomAccessFile file = new RandomAccessFile(dbpath, "rw");
+      for (int i = 0; i < written.length; i++) {
+	long at = (long) (first.pid + i) * MINIBASE_PAGESIZE + 100;
+	file.seek(at);
+	int b = file.read();
+	file.seek(at);
+	file.write(b ^ 0x10);
+      }
+      file.close();
+
+      SystemDefs.JavabaseBM = new BufMgr(NUMBUF, "Clock");
+      SystemDefs.JavabaseDB = newDB();
+      SystemDefs.JavabaseDB.openDB(dbpath, mapped);
+      for (int i = 0; i < written.length; i++) {
+	PageId pid = new PageId(first.pid + i);
+	try {
+	  SystemDefs.JavabaseDB.read_page(pid, pg);
+	  System.err.print("*** Damaged page " + pid.pid
+			   + " was read without an error\n");
+	  return FAIL;
+	}
+	catch (PageChecksumException e) {
+	}
+	try {
+	  SystemDefs.JavabaseBM.pinPage(pid, pg, false);
+	  System.err.print("*** Damaged page " + pid.pid
+			   + " was pinned without an error\n");
+	  return FAIL;
+	}
+	catch (PageChecksumException e) {
+	}
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not check damaged pages\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    finally {
+      checksums = false;
+    }
+
+    System.out.print("  - " + written.length + " damaged pages failed"
+		     + " their checks, read and pinned\n");
+    System.out.print("  Test 9 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * Pages of text, of a repeating pattern, of zeros and of random bytes
+   * must come back as they were; long runs of literals and long matches
+   * take the continuation bytes of the format.  Input cut short, asking
+   * for the wrong length, or matching before the start of the output must
+   * raise an IOException.
+   *
+   * @return whether test10 has passed
+   */
+  protected boolean test10 () {
+
+    System.out.print("\n  Test 10 compresses and decompresses pages:\n");
+
+    Random rnd = new Random(10);
+    byte [] random = new byte[MINIBASE_PAGESIZE];
+    rnd.nextBytes(random);
+    byte [] mixed = new byte[MINIBASE_PAGESIZE];
+    rnd.nextBytes(mixed);
+    System.arraycopy(mixed, 0, mixed, 600, MINIBASE_PAGESIZE - 600);
+    byte [][] pages = {
+      text(rnd), pattern(5).getpage(), new byte[MINIBASE_PAGESIZE], mixed
+    };
+
+    int [] table = new int[LZCodec.TABLE_SIZE];
+    byte [] packed = new byte[PACKED_SIZE];
+    byte [] out = new byte[MINIBASE_PAGESIZE];
+    try {
+      for (int i = 0; i < pages.length; i++) {
+	int length = LZCodec.compress(pages[i], MINIBASE_PAGESIZE, packed,
+				      table);
+	if (length < 0) {
+	  System.err.print("*** Page " + i + " did not compress\n");
+	  return FAIL;
+	}
+	LZCodec.decompress(packed, 0, length, out, MINIBASE_PAGESIZE);
+	if (!Arrays.equals(out, pages[i])) {
+	  System.err.print("*** Page " + i + " did not decompress to"
+			   + " itself\n");
+	  return FAIL;
+	}
+      }
+      if (LZCodec.compress(random, MINIBASE_PAGESIZE, packed, table) >= 0) {
+	System.err.print("*** Random bytes compressed\n");
+	return FAIL;
+      }
+
+      int length = LZCodec.compress(pages[0], MINIBASE_PAGESIZE, packed,
+				    table);
+      byte [][] corrupt = {
+	Arrays.copyOf(packed, length - 1),	// cut short
+	{ },					// empty
+	{ 0x10, 'a', 5, 0 },			// match before the start
+	{ 0x10, 'a', 0, 0 },			// match no distance back
+      };
+      int [] sizes = { MINIBASE_PAGESIZE, MINIBASE_PAGESIZE, 5, 5 };
+      for (int i = 0; i < corrupt.length; i++)
+	if (decompresses(corrupt[i], corrupt[i].length, sizes[i])) {
+	  System.err.print("*** Corrupt input " + i + " decompressed\n");
+	  return FAIL;
+	}
+      if (decompresses(packed, length, MINIBASE_PAGESIZE - 1)) {
+	System.err.print("*** A page decompressed to the wrong length\n");
+	return FAIL;
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not compress and decompress pages\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+
+    System.out.print("  - " + pages.length + " pages decompressed to"
+		     + " themselves, random bytes did not compress\n");
+    System.out.print("  - corrupt input was refused\n");
+    System.out.print("  Test 10 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * Each page is rewritten in rounds, changing between text, a pattern
+   * and random bytes, so that its compressed size changes and it moves
+   * between slots.  The database is forced after each round, which must
+   * free the slots left behind, so the data file stays small.
+   *
+   * @return whether test11 has passed
+   */
+  protected boolean test11 () {
+
+    System.out.print("\n  Test 11 writes compressed pages:\n");
+
+    int rounds = 12;
+    PageId first = new PageId();
+    File z = new File(dbpath + ".z");
+    try {
+      compress = true;
+      create(NUM_PAGES, false, false);
+      if (!SystemDefs.JavabaseDB.isCompressed()) {
+	System.err.print("*** The database is not compressed\n");
+	return FAIL;
+      }
+      SystemDefs.JavabaseDB.allocate_page(first, RUN);
+      PageId pid = new PageId();
+      for (int round = 0; round < rounds; round++) {
+	for (int i = 0; i < RUN; i++) {
+	  pid.pid = first.pid + i;
+	  SystemDefs.JavabaseDB.write_page(pid,
+					   new Page(content(pid.pid, round)));
+	}
+	SystemDefs.JavabaseDB.force();
+      }
+      if (z.length() > 2L * RUN * MINIBASE_PAGESIZE) {
+	System.err.print("*** The data file grew to " + z.length()
+			 + " bytes for " + RUN + " pages\n");
+	return FAIL;
+      }
+      if (compressed(first, rounds - 1, "as written") != OK)
+	return FAIL;
+      reopen();
+      if (compressed(first, rounds - 1, "after a reopen") != OK)
+	return FAIL;
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not write and read compressed pages\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    finally {
+      compress = false;
+    }
+
+    System.out.print("  - " + RUN + " pages rewritten " + rounds
+		     + " times in " + z.length() + " bytes\n");
+    System.out.print("  Test 11 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * The run of pages spans several units of each file.  Each page is
+   * looked for in its file, where the units of the database are dealt
+   * out round robin.  Opening the database with fewer files, another
+   * unit, or no striping must fail with a DiskMgrException.
+   *
+   * @return whether test12 has passed
+   */
+  protected boolean test12 () {
+
+    System.out.print("\n  Test 12 stripes pages over files:\n");
+
+    String [] files = { dbpath + ".s1", dbpath + ".s2" };
+    int unit = 4;
+    try {
+      stripes = files;
+      stripe_unit = unit;
+      PageId first = roundTrip(false, false);
+      if (first == null)
+	return FAIL;
+      if (SystemDefs.JavabaseDB.getStripeCount() != files.length + 1) {
+	System.err.print("*** The database is striped over "
+			 + SystemDefs.JavabaseDB.getStripeCount()
+			 + " files, expected " + (files.length + 1) + "\n");
+	return FAIL;
+      }
+      close();
+
+      String [] all = { dbpath, files[0], files[1] };
+      byte [] data = new byte[MINIBASE_PAGESIZE];
+      for (int pid = first.pid; pid < first.pid + RUN; pid++) {
+	int stripe = (pid / unit) % all.length;
+	long at = (long) ((pid / unit / all.length) * unit + pid % unit)
+	  * MINIBASE_PAGESIZE;
+	RandomAccessFile file = new RandomAccessFile(all[stripe], "r");
+	file.seek(at);
+	file.readFully(data);
+	file.close();
+	if (!Arrays.equals(data, pattern(pid).getpage())) {
+	  System.err.print("*** Page " + pid + " is not at byte " + at
+			   + " of " + all[stripe] + "\n");
+	  return FAIL;
+	}
+      }
+      System.out.print("  - each page found in its file\n");
+
+      String [][] otherFiles = { { files[0] }, files, { } };
+      int [] otherUnits = { unit, unit * 2, unit };
+      for (int i = 0; i < otherFiles.length; i++) {
+	stripes = otherFiles[i];
+	stripe_unit = otherUnits[i];
+	try {
+	  newDB().openDB(dbpath, false);
+	  System.err.print("*** The database opened striped over "
+			   + (otherFiles[i].length + 1) + " files in units of "
+			   + otherUnits[i] + " pages\n");
+	  return FAIL;
+	}
+	catch (DiskMgrException e) {
+	}
+      }
+      System.out.print("  - opening with other striping failed\n");
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not stripe the database\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    finally {
+      stripes = new String[0];
+      for (String f : files)
+	new File(f).delete();
+    }
+
+    System.out.print("  Test 12 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * The first page of the directory shares the page with the database's
+   * size, the number of its space-map pages and its striping, kept at
+   * the end.  Filling every entry with a name as long as can be must
+   * leave them alone, and so must the entries on the following directory
+   * pages.  The database is striped so that its first page records it.
+   *
+   * @return whether test13 has passed
+   */
+  protected boolean test13 () {
+
+    System.out.print("\n  Test 13 fills the first directory page:\n");
+
+    int files = 40;
+    String [] striped = { dbpath + ".s1" };
+    int unit = 8;
+    Map<String,Integer> expect = new HashMap<String,Integer>();
+    try {
+      stripes = striped;
+      stripe_unit = unit;
+      create(NUM_PAGES, false, false);
+      for (int i = 0; i < files; i++) {
+	SystemDefs.JavabaseDB.add_file_entry(longName(i), new PageId(10 + i));
+	expect.put(longName(i), 10 + i);
+      }
+      reopen();
+      if (SystemDefs.JavabaseDB.db_num_pages() != NUM_PAGES) {
+	System.err.print("*** The database has "
+			 + SystemDefs.JavabaseDB.db_num_pages()
+			 + " pages, expected " + NUM_PAGES + "\n");
+	return FAIL;
+      }
+      if (SystemDefs.JavabaseDB.getStripeCount() != 2
+	  || SystemDefs.JavabaseDB.getStripeUnit() != unit) {
+	System.err.print("*** The database is striped over "
+			 + SystemDefs.JavabaseDB.getStripeCount()
+			 + " files in units of "
+			 + SystemDefs.JavabaseDB.getStripeUnit() + " pages\n");
+	return FAIL;
+      }
+      for (int i = 0; i < files; i++) {
+	PageId start = SystemDefs.JavabaseDB.get_file_entry(longName(i));
+	if (start == null || start.pid != expect.get(longName(i))) {
+	  System.err.print("*** " + longName(i) + " was lost\n");
+	  return FAIL;
+	}
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not fill the directory\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    finally {
+      try {
+	close();
+      }
+      catch (IOException e) {
+      }
+      stripes = new String[0];
+      for (String f : striped)
+	new File(f).delete();
+    }
+
+    System.out.print("  - " + files + " files with names of " + (MAX_NAME - 1)
+		     + " characters found after a reopen\n");
+    System.out.print("  Test 13 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * The database is copied while open, as a crash would leave it, once
+   * the buffer pool has written back changed pages with flushAllPages(),
+   * and once more pages have been written than checksums are held.  Every
+   * page flushed must pass its check in the copy; of the others, only
+   * those written since the database was last forced may fail, or, if it
+   * is compressed as well, be found as last forced.
+   *
+   * @return whether test14 has passed
+   */
+  protected boolean test14 () {
+
+    System.out.print("\n  Test 14 checks pages after a crash:\n");
+
+    String copy = dbpath + ".crash";
+    String [] files = { "", ".crc", ".z", ".zmap" };
+    int many = PENDING_LIMIT * 3 / 2;
+    int failed = 0;
+    try {
+      checksums = true;
+      create(many + 10, false, false);
+      PageId first = new PageId();
+      SystemDefs.JavabaseDB.allocate_page(first, many);
+      for (int pid = first.pid; pid < first.pid + many; pid++)
+	SystemDefs.JavabaseDB.write_page(new PageId(pid), pattern(pid));
+      reopen();
+
+      Page pg = new Page();
+      for (int pid = first.pid; pid < first.pid + RUN; pid++) {
+	PageId id = new PageId(pid);
+	SystemDefs.JavabaseBM.pinPage(id, pg, false);
+	pg.getBuffer().put(0, pattern(pid + 1).getpage());
+	SystemDefs.JavabaseBM.unpinPage(id, true);
+      }
+      SystemDefs.JavabaseBM.flushAllPages();
+      copyFiles(dbpath, copy, files);
+      DB crashed = newDB();
+      crashed.openDB(copy, false);
+      try {
+	for (int pid = first.pid; pid < first.pid + RUN; pid++) {
+	  crashed.read_page(new PageId(pid), pg);
+	  if (!Arrays.equals(pg.getpage(), pattern(pid + 1).getpage())) {
+	    System.err.print("*** Flushed page " + pid + " is not the page"
+			     + " written\n");
+	    return FAIL;
+	  }
+	}
+      }
+      finally {
+	crashed.closeDB();
+      }
+      System.out.print("  - " + RUN + " pages flushed by the buffer pool"
+		       + " passed their checks\n");
+
+      for (int pid = first.pid; pid < first.pid + many; pid++)
+	SystemDefs.JavabaseDB.write_page(new PageId(pid), pattern(pid + 2));
+      copyFiles(dbpath, copy, files);
+      crashed = newDB();
+      crashed.openDB(copy, false);
+      try {
+	for (int pid = first.pid; pid < first.pid + many; pid++) {
+	  try {
+	    crashed.read_page(new PageId(pid), pg);
+	  }
+	  catch (PageChecksumException e) {
+	    failed++;
+	    continue;
+	  }
+	  int forced = (pid < first.pid + RUN) ? pid + 1 : pid;
+	  if (Arrays.equals(pg.getpage(), pattern(forced).getpage()))
+	    failed++;
+	  else if (!Arrays.equals(pg.getpage(), pattern(pid + 2).getpage())) {
+	    System.err.print("*** Page " + pid + " is not the page"
+			     + " written\n");
+	    return FAIL;
+	  }
+	}
+      }
+      finally {
+	crashed.closeDB();
+      }
+      if (failed > PENDING_LIMIT) {
+	System.err.print("*** " + failed + " of " + many + " pages written"
+			 + " were not found as written\n");
+	return FAIL;
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not check a crashed database\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    finally {
+      checksums = false;
+      for (String f : files)
+	new File(copy + f).delete();
+    }
+
+    System.out.print("  - " + failed + " of " + many + " pages written"
+		     + " without a force were not found as written\n");
+    System.out.print("  Test 14 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * As test 14, with compressed pages: the pages flushed must be found in
+   * the copy, and the others either as written or as last forced, which
+   * only those written since the last force may be.
+   *
+   * @return whether test15 has passed
+   */
+  protected boolean test15 () {
+
+    System.out.print("\n  Test 15 finds compressed pages after a crash:\n");
+
+    String copy = dbpath + ".crash";
+    String [] files = { "", ".crc", ".z", ".zmap" };
+    int many = PENDING_LIMIT * 3 / 2;
+    int lost = 0;
+    try {
+      compress = true;
+      create(many + 10, false, false);
+      PageId first = new PageId();
+      SystemDefs.JavabaseDB.allocate_page(first, many);
+      for (int pid = first.pid; pid < first.pid + many; pid++)
+	SystemDefs.JavabaseDB.write_page(new PageId(pid),
+					 new Page(content(pid, 0)));
+      reopen();
+
+      Page pg = new Page();
+      for (int pid = first.pid; pid < first.pid + RUN; pid++) {
+	PageId id = new PageId(pid);
+	SystemDefs.JavabaseBM.pinPage(id, pg, false);
+	pg.getBuffer().put(0, content(pid, 1));
+	SystemDefs.JavabaseBM.unpinPage(id, true);
+      }
+      SystemDefs.JavabaseBM.flushAllPages();
+      copyFiles(dbpath, copy, files);
+      DB crashed = newDB();
+      crashed.openDB(copy, false);
+      try {
+	for (int pid = first.pid; pid < first.pid + RUN; pid++) {
+	  crashed.read_page(new PageId(pid), pg);
+	  if (!Arrays.equals(pg.getpage(), content(pid, 1))) {
+	    System.err.print("*** Flushed page " + pid + " is not the page"
+			     + " written\n");
+	    return FAIL;
+	  }
+	}
+      }
+      finally {
+	crashed.closeDB();
+      }
+      System.out.print("  - " + RUN + " pages flushed by the buffer pool"
+		       + " were found\n");
+
+      for (int pid = first.pid; pid < first.pid + many; pid++)
+	SystemDefs.JavabaseDB.write_page(new PageId(pid),
+					 new Page(content(pid, 2)));
+      copyFiles(dbpath, copy, files);
+      crashed = newDB();
+      crashed.openDB(copy, false);
+      try {
+	for (int pid = first.pid; pid < first.pid + many; pid++) {
+	  crashed.read_page(new PageId(pid), pg);
+	  int forced = (pid < first.pid + RUN) ? 1 : 0;
+	  if (Arrays.equals(pg.getpage(), content(pid, forced)))
+	    lost++;
+	  else if (!Arrays.equals(pg.getpage(), content(pid, 2))) {
+	    System.err.print("*** Page " + pid + " is neither the page"
+			     + " written nor the page forced\n");
+	    return FAIL;
+	  }
+	}
+      }
+      finally {
+	crashed.closeDB();
+      }
+      if (lost > PENDING_LIMIT) {
+	System.err.print("*** " + lost + " of " + many + " pages written"
+			 + " were lost\n");
+	return FAIL;
+      }
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not read a crashed compressed database\n");
+      e.printStackTrace();
+      return FAIL;
+    }
+    finally {
+      compress = false;
+      for (String f : files)
+	new File(copy + f).delete();
+    }
+
+    System.out.print("  - " + lost + " of " + many + " pages written"
+		     + " without a force were lost\n");
+    System.out.print("  Test 15 completed successfully.\n");
+    return OK;
+  }
+
+  /**
+   * Copy a database and those of the files beside it, named after it with
+   * the given suffixes, that exist, over any earlier copy.
+   */
+  private static void copyFiles (String from, String to, String [] suffixes)
+    throws IOException {
+
+    for (String f : suffixes)
+      if (new File(from + f).exists())
+	Files.copy(Paths.get(from + f), Paths.get(to + f),
+		   StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * @return a file name of MAX_NAME - 1 characters, the longest allowed
+   */
+  private static String longName (int i) {
+    StringBuilder name = new StringBuilder("file" + i + "-");
+    while (name.length() < MAX_NAME - 1)
+      name.append((char) ('a' + name.length() % 26));
+    return name.toString();
+  }
+
+  /**
+   * Check that exactly the expected files are in the directory, with
+   * their first pages.
+   */
+  private boolean lookUp (Map<String,Integer> expect, int files, String when)
+    throws Exception {
+
+    for (int i = 0; i < files; i++) {
+      for (String name : new String [] { "file" + i, "again" + i }) {
+	PageId start = SystemDefs.JavabaseDB.get_file_entry(name);
+	Integer want = expect.get(name);
+	if ((start == null) != (want == null)
+	    || (start != null && start.pid != want)) {
+	  System.err.print("*** " + name + " starts at "
+			   + (start == null ? "no page" : "page " + start.pid)
+			   + " " + when + ", expected "
+			   + (want == null ? "no page" : "page " + want) + "\n");
+	  return FAIL;
+	}
+      }
+    }
+    System.out.print("  - " + expect.size() + " files found " + when + "\n");
+    return OK;
+  }
+
+  /**
+   * @return which pages of a new database are in use: page 0 and the
+   *         space map
+   */
+  private static boolean [] inUse (int pages) throws Exception {
+    boolean [] used = new boolean[pages];
+    PageId pid = new PageId();
+    SystemDefs.JavabaseDB.allocate_page(pid, 1);
+    for (int i = 0; i < pid.pid; i++)
+      used[i] = true;
+    SystemDefs.JavabaseDB.deallocate_page(pid, 1);
+    return used;
+  }
+
+  /**
+   * Allocate and free random runs of pages, and check each allocation
+   * against a first or best fit over an array of the pages in use.
+   */
+  private boolean allocations (Random rnd, boolean [] used, boolean best)
+    throws Exception {
+
+    DB db = SystemDefs.JavabaseDB;
+    List<int []> runs = new ArrayList<int []>();
+    int full = 0;
+    PageId pid = new PageId();
+
+    for (int op = 0; op < OPS; op++) {
+      if (!runs.isEmpty() && rnd.nextBoolean()) {
+	int [] run = runs.remove(rnd.nextInt(runs.size()));
+	db.deallocate_page(new PageId(run[0]), run[1]);
+	Arrays.fill(used, run[0], run[0] + run[1], false);
+	continue;
+      }
+
+      int size = 1 + rnd.nextInt(MAX_RUN);
+      int expect = best ? bestFit(used, size) : firstFit(used, size);
+      try {
+	db.allocate_page(pid, size);
+      }
+      catch (OutOfSpaceException e) {
+	if (expect >= 0) {
+	  System.err.print("*** No room for " + size + " pages, but there"
+			   + " is room at page " + expect + "\n");
+	  return FAIL;
+	}
+	full++;
+	continue;
+      }
+      if (pid.pid != expect) {
+	System.err.print("*** " + size + " pages went to page " + pid.pid
+			 + ", expected " + expect + "\n");
+	return FAIL;
+      }
+      Arrays.fill(used, pid.pid, pid.pid + size, true);
+      runs.add(new int [] { pid.pid, size });
+    }
+
+    System.out.print("  - " + OPS + " allocations and frees, " + full
+		     + " allocations finding no room\n");
+    return OK;
+  }
+
+  /**
+   * @return the first page of the first run of size free pages, or -1
+   */
+  private static int firstFit (boolean [] used, int size) {
+    int free = 0;
+    for (int i = 0; i < used.length; i++) {
+      free = used[i] ? 0 : free + 1;
+      if (free == size)
+	return i - size + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * @return the first page of the shortest run of free pages holding size
+   *         pages, the first such if there are several, or -1
+   */
+  private static int bestFit (boolean [] used, int size) {
+    int best = -1, bestLength = Integer.MAX_VALUE;
+    for (int i = 0; i < used.length; ) {
+      if (used[i]) {
+	i++;
+	continue;
+      }
+      int start = i;
+      while (i < used.length && !used[i])
+	i++;
+      if (i - start >= size && i - start < bestLength) {
+	best = start;
+	bestLength = i - start;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Write a run of pages, half one at a time and half in one call, and
+   * check them, read one at a time and in one call, before and after the
+   * database is reopened.
+   *
+   * @return the first page of the run, or null on failure
+   */
+  private PageId roundTrip (boolean mapped, boolean direct) {
+
+    PageId first = new PageId();
+    try {
+      create(NUM_PAGES, mapped, direct);
+      SystemDefs.JavabaseDB.allocate_page(first, RUN);
+
+      PageId pid = new PageId();
+      for (int i = 0; i < RUN / 2; i++) {
+	pid.pid = first.pid + i;
+	SystemDefs.JavabaseDB.write_page(pid, pattern(pid.pid));
+      }
+      PageId [] pids = new PageId[RUN / 2];
+      Page [] pages = new Page[RUN / 2];
+      for (int i = 0; i < RUN / 2; i++) {
+	pids[i] = new PageId(first.pid + RUN / 2 + i);
+	pages[i] = pattern(pids[i].pid);
+      }
+      SystemDefs.JavabaseDB.write_pages(pids, pages);
+
+      if (check(first, "as written") != OK)
+	return null;
+      reopen();
+      if (check(first, "after a reopen") != OK)
+	return null;
+    }
+    catch (Exception e) {
+      System.err.print("*** Could not write and read back the pages\n");
+      e.printStackTrace();
+      return null;
+    }
+    return first;
+  }
+
+  /**
+   * Check that the run of pages from first holds its patterns, read one at
+   * a time and all at once.
+   */
+  private boolean check (PageId first, String when) throws Exception {
+
+    Page pg = new Page();
+    PageId pid = new PageId();
+    for (int i = 0; i < RUN; i++) {
+      pid.pid = first.pid + i;
+      SystemDefs.JavabaseDB.read_page(pid, pg);
+      if (!Arrays.equals(pg.getpage(), pattern(pid.pid).getpage())) {
+	System.err.print("*** Page " + pid.pid + " read " + when
+			 + " is not the page written\n");
+	return FAIL;
+      }
+    }
+
+    Page [] pages = new Page[RUN];
+    for (int i = 0; i < RUN; i++)
+      pages[i] = new Page();
+    SystemDefs.JavabaseDB.read_pages(first, pages);
+    for (int i = 0; i < RUN; i++) {
+      if (!Arrays.equals(pages[i].getpage(),
+			 pattern(first.pid + i).getpage())) {
+	System.err.print("*** Page " + (first.pid + i) + " read " + when
+			 + " in a run is not the page written\n");
+	return FAIL;
+      }
+    }
+    System.out.print("  - " + RUN + " pages read back " + when + "\n");
+    return OK;
+  }
+
+  /**
+   * @return a page whose bytes depend on its number
+   */
+  private static Page pattern (int pid) {
+    byte [] data = new byte[MINIBASE_PAGESIZE];
+    for (int i = 0; i < data.length; i++)
+      data[i] = (byte) (pid * 31 + i * 7);
+    return new Page(data);
+  }
+
+  /**
+   * @return whether the input decompresses to n bytes, without an
+   *         IOException
+   */
+  private static boolean decompresses (byte [] src, int len, int n) {
+    try {
+      LZCodec.decompress(src, 0, len, new byte[MINIBASE_PAGESIZE], n);
+      return true;
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Check that the run of pages from first holds what round wrote.
+   */
+  private boolean compressed (PageId first, int round, String when)
+    throws Exception {
+
+    Page pg = new Page();
+    PageId pid = new PageId();
+    for (int i = 0; i < RUN; i++) {
+      pid.pid = first.pid + i;
+      SystemDefs.JavabaseDB.read_page(pid, pg);
+      if (!Arrays.equals(pg.getpage(), content(pid.pid, round))) {
+	System.err.print("*** Compressed page " + pid.pid + " read " + when
+			 + " is not the page written\n");
+	return FAIL;
+      }
+    }
+    System.out.print("  - " + RUN + " compressed pages read back " + when
+		     + "\n");
+    return OK;
+  }
+
+  /**
+   * @return the bytes a round writes to a page: text, a pattern or random
+   *         bytes, by turns
+   */
+  private static byte [] content (int pid, int round) {
+    Random rnd = new Random(pid * 1000 + round);
+    switch ((pid + round) % 3) {
+    case 0:
+      return text(rnd);
+    case 1:
+      return pattern(pid + round).getpage();
+    default:
+      byte [] data = new byte[MINIBASE_PAGESIZE];
+      rnd.nextBytes(data);
+      return data;
+    }
+  }
+
+  /**
+   * @return a page of words and numbers, which compresses about twofold
+   */
+  private static byte [] text (Random rnd) {
+    byte [] data = new byte[MINIBASE_PAGESIZE];
+    for (int i = 0; i < data.length; ) {
+      byte [] word = (rnd.nextInt(3) == 0)
+	? (rnd.nextInt(100000) + " ").getBytes()
+	: WORDS[rnd.nextInt(WORDS.length)];
+      for (int k = 0; k < word.length && i < data.length; k++)
+	data[i++] = word[k];
+    }
+    return data;
+  }
+
+  /**
+   * Change the last four bytes of a page so that its CRC32C is 0.  A
+   * CRC is linear in the bits of its input, so the bit flips that cancel
+   * it are found by elimination over the changes single flips make.
+   *
+   * @return the page
+   */
+  private static Page zeroChecksum (Page page) {
+    byte [] data = page.getpage();
+    int [] basis = new int[32];
+    int [] flips = new int[32];
+    int base = crc32c(data);
+    for (int bit = 0; bit < 32; bit++) {
+      flipBit(data, bit);
+      int v = crc32c(data) ^ base, f = 1 << bit;
+      flipBit(data, bit);
+      for (int b = 31; b >= 0 && v != 0; b--) {
+	if ((v >>> b & 1) == 0)
+	  continue;
+	if (basis[b] == 0) {
+	  basis[b] = v;
+	  flips[b] = f;
+	}
+	v ^= basis[b];
+	f ^= flips[b];
+      }
+    }
+    int f = 0;
+    for (int b = 31; b >= 0; b--)
+      if ((base >>> b & 1) != 0) {
+	base ^= basis[b];
+	f ^= flips[b];
+      }
+    for (int bit = 0; bit < 32; bit++)
+      if ((f >>> bit & 1) != 0)
+	flipBit(data, bit);
+    return page;
+  }
+
+  /** Flip one of the last 32 bits of a page. */
+  private static void flipBit (byte [] data, int bit) {
+    data[data.length - 4 + bit / 8] ^= (byte) (1 << bit % 8);
+  }
+
+  private static int crc32c (byte [] data) {
+    CRC32C crc = new CRC32C();
+    crc.update(data);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Create a fresh database, and a buffer pool for it.
+   */
+  private void create (int pages, boolean mapped, boolean direct)
+    throws Exception {
+
+    close();
+    this.mapped = mapped;
+    this.direct = direct;
+    SystemDefs.JavabaseBM = new BufMgr(NUMBUF, "Clock");
+    SystemDefs.JavabaseDB = newDB();
+    SystemDefs.JavabaseDB.openDB(dbpath, pages, mapped);
+  }
+
+  /**
+   * Close the database and open it again as it was opened, with a new
+   * buffer pool, so that nothing is read from the old one.
+   */
+  private void reopen () throws Exception {
+
+    SystemDefs.JavabaseBM.flushAllPages();
+    SystemDefs.JavabaseDB.closeDB();
+    SystemDefs.JavabaseBM = new BufMgr(NUMBUF, "Clock");
+    SystemDefs.JavabaseDB = newDB();
+    SystemDefs.JavabaseDB.openDB(dbpath, mapped);
+  }
+
+  /**
+   * @return a database object set up as the current one is
+   */
+  private DB newDB () {
+    DB db = new DB();
+    db.setDirectIO(direct);
+    if (checksums)
+      db.setChecksums(true);
+    if (compress)
+      db.setCompression(true);
+    if (stripes.length > 0)
+      db.setStriping(stripe_unit, stripes);
+    return db;
+  }
+
+  /**
+   * Close the database, if one is open.
+   */
+  private void close () throws IOException {
+    if (SystemDefs.JavabaseDB != null) {
+      SystemDefs.JavabaseDB.closeDB();
+      SystemDefs.JavabaseDB = null;
+    }
+  }
+
+  /**
+   * overrides the testName function in TestDriver
+   *
+   * @return the name of the test
+   */
+  protected String testName () {
+    return "Disk Manager";
+  }
+}
+
+public class DBTest {
+
+   public static void main (String argv[]) {
+
+     DBDriver dbt = new DBDriver();
+     boolean dbstatus;
+
+     dbstatus = dbt.runTests();
+
+     if (dbstatus != true) {
+       System.err.println ("Error encountered during disk manager tests:\n");
+       Runtime.getRuntime().exit(1);
+     }
+
+     Runtime.getRuntime().exit(0);
+   }
+}
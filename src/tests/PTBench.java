@@ -0,0 +1,61 @@
+package tests;
+
+import java.util.*;
+import global.*;
+import bufmgr.*;
+
+/**
+ * Measures how the cost of a buffer manager page-table lookup (the work
+ * done by every pinPage() hit) scales with the size of the buffer pool.
+ * <br>
+ * For each pool size the page table is filled with one page per frame,
+ * using widely scattered page numbers, and then probed with a random mix
+ * of resident and non-resident page numbers.  The cost per lookup should
+ * stay flat as the pool grows.
+ */
+public class PTBench implements GlobalConst {
+
+  private static final int LOOKUPS = 1 << 22;
+  private static final int ROUNDS = 5;
+
+  public static void main (String argv[]) {
+
+    int [] poolSizes = { 64, 1024, 16384, 65536, 262144, 1048576 };
+    Random rand = new Random(448);
+
+    System.out.println ("\n" + "Page table lookup cost by pool size" + "\n");
+    System.out.println ("      frames     ns/lookup");
+
+    long sink = 0;
+    for (int n : poolSizes) {
+
+      BufMgr bm = new BufMgr(n, "Clock");
+      int [] resident = new int[n];
+      for (int i = 0; i < n; i++) {
+	resident[i] = i * 7 + 3;
+	bm.set(new PageId(resident[i]), i);
+      }
+
+      // Three quarters of the probes hit, the rest miss.
+      PageId [] probes = new PageId[LOOKUPS];
+      for (int i = 0; i < LOOKUPS; i++) {
+	int pid = (i % 4 == 3) ? resident[rand.nextInt(n)] + 1
+	                       : resident[rand.nextInt(n)];
+	probes[i] = new PageId(pid);
+      }
+
+      long best = Long.MAX_VALUE;
+      for (int r = 0; r < ROUNDS; r++) {
+	long start = System.nanoTime();
+	for (int i = 0; i < LOOKUPS; i++)
+	  sink += bm.get(probes[i]);
+	best = Math.min(best, System.nanoTime() - start);
+      }
+
+      System.out.printf ("%12d %13.2f%n", n, (double) best / LOOKUPS);
+    }
+
+    // Keep the lookups from being optimized away.
+    if (sink == 42) System.out.println();
+  }
+}
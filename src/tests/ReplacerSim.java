@@ -0,0 +1,114 @@
+package tests;
+
+import java.util.*;
+import bufmgr.*;
+
+/**
+ * Compares the hit ratios of the buffer replacement policies by replaying
+ * synthetic page reference strings against each replacer.  No disk I/O is
+ * done: every reference pins a page and unpins it straight away, as a scan
+ * or an index probe would.
+ */
+public class ReplacerSim {
+
+  private static final int FRAMES = 1000;
+  private static final int REFS = 2000000;
+
+  private static final String [] POLICIES =
+    { "Clock", "LRU", "MRU", "LRU-2", "2Q" };
+
+  public static void main (String argv[]) {
+
+    String [] workloads = { "loop", "uniform", "zipf", "zipf+scan" };
+
+    System.out.println ("\n" + "Hit ratio with " + FRAMES + " frames, "
+			+ REFS + " references" + "\n");
+    System.out.printf ("%-12s", "workload");
+    for (String p : POLICIES)
+      System.out.printf ("%9s", p);
+    System.out.println ();
+
+    for (String w : workloads) {
+      int [] trace = trace(w, new Random(448));
+      System.out.printf ("%-12s", w);
+      for (String p : POLICIES)
+	System.out.printf ("%9.4f", hitRatio(p, trace));
+      System.out.println ();
+    }
+  }
+
+  /**
+   * Replay a reference string against one policy.
+   */
+  private static double hitRatio (String policy, int [] trace) {
+
+    Replacer replacer = Replacer.newReplacer(policy, FRAMES);
+    Map<Integer,Integer> frameOf = new HashMap<Integer,Integer>();
+    int [] pageIn = new int[FRAMES];
+    Arrays.fill(pageIn, -1);
+    long hits = 0;
+
+    for (int pid : trace) {
+      Integer f = frameOf.get(pid);
+      if (f != null) {
+	hits++;
+	replacer.pinned(f);
+      }
+      else {
+	f = replacer.pick();
+	if (pageIn[f] != -1)
+	  frameOf.remove(pageIn[f]);
+	pageIn[f] = pid;
+	frameOf.put(pid, f);
+	replacer.loaded(f, pid);
+      }
+      replacer.unpinned(f);
+    }
+    return (double) hits / trace.length;
+  }
+
+  /**
+   * Build a reference string.
+   *   loop      - repeated sequential scans of a file 1.5 times the pool
+   *   uniform   - uniformly random pages of a file 4 times the pool
+   *   zipf      - Zipf (s = 0.9) over a file 10 times the pool
+   *   zipf+scan - zipf, with a quarter of the references from a long scan
+   */
+  private static int [] trace (String workload, Random rand) {
+
+    int [] t = new int[REFS];
+    int n = FRAMES * 10;
+    double [] cdf = zipfCdf(n, 0.9);
+    int scanPos = 0;
+
+    for (int i = 0; i < REFS; i++) {
+      if (workload.equals("loop"))
+	t[i] = i % (FRAMES * 3 / 2);
+      else if (workload.equals("uniform"))
+	t[i] = rand.nextInt(FRAMES * 4);
+      else if (workload.equals("zipf")
+	       || rand.nextInt(4) != 0)
+	t[i] = zipf(cdf, rand);
+      else
+	t[i] = n + scanPos++;
+    }
+    return t;
+  }
+
+  private static double [] zipfCdf (int n, double s) {
+    double [] cdf = new double[n];
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += 1.0 / Math.pow(i + 1, s);
+      cdf[i] = sum;
+    }
+    for (int i = 0; i < n; i++)
+      cdf[i] /= sum;
+    return cdf;
+  }
+
+  private static int zipf (double [] cdf, Random rand) {
+    int i = Arrays.binarySearch(cdf, rand.nextDouble());
+    return (i >= 0) ? i : -i - 1;
+  }
+}